@@ -0,0 +1,439 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput and latency benchmark for get/put under contention.
+ * Every run preloads a tree, lets a number of threads hammer it with a mix of gets and puts for a warmup period,
+ * and then measures for a fixed duration. It reports ops/s and latency percentiles per operation type.
+ * Example: java -cp out TreeBenchmark --threads 1,4,16 --read-ratio 0.9 --distribution zipfian --engine red_black,skip_list
+ */
+public class TreeBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        Options options = Options.parse(args);
+        System.out.println(options);
+        System.out.println();
+        System.out.printf("%-22s %-8s %-8s %14s %10s %10s %10s %10s %10s%n",
+                "engine", "threads", "op", "ops/s", "p50 ns", "p90 ns", "p99 ns", "p99.9 ns", "max ns");
+
+        for (TreeEngine engine : options.engines) {
+            for (int threads : options.threads) {
+                Result result = run(options, engine, threads);
+                result.print(engine, threads);
+            }
+        }
+    }
+
+    /**
+     * Runs one warmup and one measurement period with the given number of threads on a freshly preloaded tree.
+     * @param options The benchmark options.
+     * @param engine  The engine to create the tree with.
+     * @param threads The number of threads to run.
+     * @return The measured result.
+     */
+    private static Result run(Options options, TreeEngine engine, int threads) throws InterruptedException {
+        SortedByteMap tree = engine.create();
+        byte[][] keys = new byte[options.treeSize][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = keyFor(i, options.keySize);
+            tree.put(keys[i], keys[i]);
+        }
+
+        Worker[] workers = new Worker[threads];
+        CountDownLatch startLatch = new CountDownLatch(1);
+        AtomicLong sequence = new AtomicLong(options.treeSize);
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(tree, keys, options, sequence, startLatch, 42L + i);
+            workers[i].start();
+        }
+
+        startLatch.countDown();
+        Thread.sleep(options.warmupSeconds * 1000L);
+        for (Worker worker : workers) {
+            worker.measuring = true;
+        }
+        long start = System.nanoTime();
+        Thread.sleep(options.durationSeconds * 1000L);
+        for (Worker worker : workers) {
+            worker.running = false;
+        }
+        long elapsed = System.nanoTime() - start;
+        for (Worker worker : workers) {
+            worker.join();
+        }
+
+        Result result = new Result(elapsed);
+        for (Worker worker : workers) {
+            result.reads.add(worker.reads);
+            result.writes.add(worker.writes);
+        }
+        return result;
+    }
+
+    /**
+     * Builds a key of the given size for the given index.
+     * The index is stored big-endian in the last bytes with the sign bit of every byte flipped,
+     * so that keys sort in index order under the trees' signed byte comparison.
+     * @param index   The index of the key.
+     * @param keySize The size of the key in bytes, at least 8.
+     * @return The key.
+     */
+    static byte[] keyFor(long index, int keySize) {
+        byte[] key = new byte[keySize];
+        Arrays.fill(key, 0, keySize - Long.BYTES, (byte) 'k');
+        ByteBuffer.wrap(key, keySize - Long.BYTES, Long.BYTES).putLong(index ^ 0x8080808080808080L);
+        return key;
+    }
+
+    /**
+     * A benchmark thread. Latencies are only recorded once the warmup is over.
+     */
+    private static class Worker extends Thread {
+        private final SortedByteMap tree;
+        private final byte[][] keys;
+        private final Options options;
+        private final AtomicLong sequence;
+        private final CountDownLatch startLatch;
+        private final SplittableRandom random;
+        private final KeyChooser chooser;
+        final LatencyHistogram reads = new LatencyHistogram();
+        final LatencyHistogram writes = new LatencyHistogram();
+        volatile boolean measuring;
+        volatile boolean running = true;
+        volatile long sink;
+
+        Worker(SortedByteMap tree, byte[][] keys, Options options, AtomicLong sequence, CountDownLatch startLatch, long seed) {
+            this.tree = tree;
+            this.keys = keys;
+            this.options = options;
+            this.sequence = sequence;
+            this.startLatch = startLatch;
+            this.random = new SplittableRandom(seed);
+            this.chooser = KeyChooser.create(options.distribution, keys.length, random);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                startLatch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            byte[] value = new byte[options.valueSize];
+            long blackhole = 0;
+            while (running) {
+                boolean read = random.nextDouble() < options.readRatio;
+                byte[] key;
+                if (!read && options.distribution == Distribution.SEQUENTIAL) {
+                    // Sequential writes append new keys at the end, like a time series ingest.
+                    key = keyFor(sequence.getAndIncrement(), options.keySize);
+                } else {
+                    key = keys[chooser.next()];
+                }
+
+                long start = System.nanoTime();
+                if (read) {
+                    byte[] result = tree.get(key);
+                    blackhole += (result == null ? 0 : result.length);
+                } else {
+                    tree.put(key, value);
+                }
+                long latency = System.nanoTime() - start;
+
+                if (measuring) {
+                    (read ? reads : writes).record(latency);
+                }
+            }
+            sink = blackhole;
+        }
+    }
+
+    /**
+     * Supported key distributions.
+     */
+    enum Distribution {
+        UNIFORM, ZIPFIAN, SEQUENTIAL
+    }
+
+    /**
+     * Picks the indexes of the keys to operate on.
+     */
+    private abstract static class KeyChooser {
+
+        abstract int next();
+
+        static KeyChooser create(Distribution distribution, int items, SplittableRandom random) {
+            switch (distribution) {
+                case ZIPFIAN:
+                    return new ZipfianChooser(items, random);
+                case SEQUENTIAL:
+                    return new SequentialChooser(items, random.nextInt(items));
+                default:
+                    return new UniformChooser(items, random);
+            }
+        }
+    }
+
+    private static class UniformChooser extends KeyChooser {
+        private final int items;
+        private final SplittableRandom random;
+
+        UniformChooser(int items, SplittableRandom random) {
+            this.items = items;
+            this.random = random;
+        }
+
+        @Override
+        int next() {
+            return random.nextInt(items);
+        }
+    }
+
+    private static class SequentialChooser extends KeyChooser {
+        private final int items;
+        private int position;
+
+        SequentialChooser(int items, int start) {
+            this.items = items;
+            this.position = start;
+        }
+
+        @Override
+        int next() {
+            position = (position + 1) % items;
+            return position;
+        }
+    }
+
+    /**
+     * Zipfian distribution with exponent 0.99, following Gray et al. "Quickly Generating Billion-Record
+     * Synthetic Databases" (the same generator YCSB uses). The ranks are scrambled with a multiplicative hash,
+     * so the hot keys are spread over the whole tree instead of sitting next to each other.
+     */
+    private static class ZipfianChooser extends KeyChooser {
+        private static final double THETA = 0.99;
+        private final int items;
+        private final SplittableRandom random;
+        private final double alpha;
+        private final double zetaN;
+        private final double eta;
+
+        ZipfianChooser(int items, SplittableRandom random) {
+            this.items = items;
+            this.random = random;
+            this.zetaN = zeta(items);
+            this.alpha = 1.0 / (1.0 - THETA);
+            this.eta = (1 - Math.pow(2.0 / items, 1 - THETA)) / (1 - zeta(2) / zetaN);
+        }
+
+        private static double zeta(int n) {
+            double sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, THETA);
+            }
+            return sum;
+        }
+
+        @Override
+        int next() {
+            double u = random.nextDouble();
+            double uz = u * zetaN;
+            long rank;
+            if (uz < 1.0) {
+                rank = 0;
+            } else if (uz < 1.0 + Math.pow(0.5, THETA)) {
+                rank = 1;
+            } else {
+                rank = (long) (items * Math.pow(eta * u - eta + 1, alpha));
+            }
+            return (int) Math.floorMod(rank * 0x9E3779B97F4A7C15L, (long) items);
+        }
+    }
+
+    /**
+     * Log-linear latency histogram: every power of two is split into 32 buckets, which keeps the error below ~3%.
+     * Each worker owns its histograms, they are only merged after the run.
+     */
+    static class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private final long[] counts = new long[64 * SUB_BUCKETS];
+        private long total;
+        private long max;
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            counts[indexOf(value)]++;
+            total++;
+            max = Math.max(max, value);
+        }
+
+        void add(LatencyHistogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+
+        long total() {
+            return total;
+        }
+
+        long max() {
+            return max;
+        }
+
+        long percentile(double percentile) {
+            if (total == 0) {
+                return 0;
+            }
+            long wanted = (long) Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= wanted) {
+                    return Math.min(upperBoundOf(i), max);
+                }
+            }
+            return max;
+        }
+
+        private static int indexOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+            int subBucket = (int) (value >>> magnitude) - SUB_BUCKETS / 2;
+            return magnitude * SUB_BUCKETS / 2 + SUB_BUCKETS / 2 + subBucket;
+        }
+
+        private static long upperBoundOf(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int magnitude = (index - SUB_BUCKETS / 2) / (SUB_BUCKETS / 2);
+            int subBucket = (index - SUB_BUCKETS / 2) % (SUB_BUCKETS / 2);
+            return ((long) (subBucket + SUB_BUCKETS / 2 + 1) << magnitude) - 1;
+        }
+    }
+
+    /**
+     * Merged measurements of one run.
+     */
+    private static class Result {
+        private final long elapsedNanos;
+        final LatencyHistogram reads = new LatencyHistogram();
+        final LatencyHistogram writes = new LatencyHistogram();
+
+        Result(long elapsedNanos) {
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        void print(TreeEngine engine, int threads) {
+            LatencyHistogram all = new LatencyHistogram();
+            all.add(reads);
+            all.add(writes);
+            printLine(engine, threads, "get", reads);
+            printLine(engine, threads, "put", writes);
+            printLine(engine, threads, "total", all);
+        }
+
+        private void printLine(TreeEngine engine, int threads, String operation, LatencyHistogram histogram) {
+            double opsPerSecond = histogram.total() * 1_000_000_000.0 / elapsedNanos;
+            System.out.printf("%-22s %-8d %-8s %14.0f %10d %10d %10d %10d %10d%n", engine, threads, operation, opsPerSecond,
+                    histogram.percentile(50), histogram.percentile(90), histogram.percentile(99),
+                    histogram.percentile(99.9), histogram.max());
+        }
+    }
+
+    /**
+     * Command line options, all of them optional.
+     */
+    static class Options {
+        int[] threads = {1, 2, 4, 8};
+        double readRatio = 0.9;
+        int keySize = 16;
+        int valueSize = 16;
+        int treeSize = 100_000;
+        Distribution distribution = Distribution.UNIFORM;
+        TreeEngine[] engines = {TreeEngine.RED_BLACK};
+        int warmupSeconds = 2;
+        int durationSeconds = 5;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + args[i]);
+                }
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--threads":
+                        options.threads = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+                        break;
+                    case "--read-ratio":
+                        options.readRatio = Double.parseDouble(value);
+                        break;
+                    case "--key-size":
+                        options.keySize = Integer.parseInt(value);
+                        break;
+                    case "--value-size":
+                        options.valueSize = Integer.parseInt(value);
+                        break;
+                    case "--tree-size":
+                        options.treeSize = Integer.parseInt(value);
+                        break;
+                    case "--distribution":
+                        options.distribution = Distribution.valueOf(value.toUpperCase());
+                        break;
+                    case "--engine":
+                        options.engines = Arrays.stream(value.split(","))
+                                .map(name -> TreeEngine.valueOf(name.toUpperCase()))
+                                .toArray(TreeEngine[]::new);
+                        break;
+                    case "--warmup":
+                        options.warmupSeconds = Integer.parseInt(value);
+                        break;
+                    case "--duration":
+                        options.durationSeconds = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (options.keySize < Long.BYTES) {
+                throw new IllegalArgumentException("Keys need at least " + Long.BYTES + " bytes.");
+            }
+            if (options.treeSize < 2) {
+                throw new IllegalArgumentException("The tree needs at least 2 keys.");
+            }
+            return options;
+        }
+
+        @Override
+        public String toString() {
+            List<String> parts = new ArrayList<>();
+            parts.add("engines=" + Arrays.toString(engines));
+            parts.add("threads=" + Arrays.toString(threads));
+            parts.add("readRatio=" + readRatio);
+            parts.add("keySize=" + keySize);
+            parts.add("valueSize=" + valueSize);
+            parts.add("treeSize=" + treeSize);
+            parts.add("distribution=" + distribution);
+            parts.add("warmup=" + warmupSeconds + "s");
+            parts.add("duration=" + durationSeconds + "s");
+            return String.join(", ", parts);
+        }
+    }
+}
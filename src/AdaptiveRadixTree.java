@@ -0,0 +1,758 @@
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Adaptive radix tree (ART) engine. Instead of comparing whole keys at every level, a lookup consumes the key
+ * one byte per level, so its cost depends on the key length and not on the number of keys.
+ * <ul>
+ * <li>Inner nodes come in four sizes, Node4, Node16, Node48 and Node256, and grow or shrink with their number
+ * of children, so sparse levels don't pay for 256 slots.</li>
+ * <li>Path compression: a chain of nodes with a single child is collapsed into a prefix stored in the node below.</li>
+ * <li>Lazy expansion: a key that is the only one below a slot is stored there as a leaf holding the whole key,
+ * without any inner nodes for the rest of its bytes.</li>
+ * </ul>
+ * Keys that shared prefixes (tenant, table, row) share their inner nodes, and a key that ends at an inner node,
+ * because it is a prefix of longer keys, is stored as that node's terminal leaf.
+ * Iteration is in the same order as Arrays.compare: every byte is mapped to the digit (byte ^ 0x80), which turns
+ * signed byte order into the unsigned order of the slots, and a terminal leaf comes before all children.
+ * The whole tree is guarded by one ReentrantReadWriteLock, like ThreadSafeTree.
+ */
+public class AdaptiveRadixTree implements SortedByteMap {
+
+    private final ReentrantReadWriteLock lock;
+    private final ReentrantReadWriteLock.WriteLock writeLock;
+    private final ReentrantReadWriteLock.ReadLock readLock;
+    private Node root;
+    private int size;
+    private byte[] removedValue;
+
+    private abstract static class Node {
+    }
+
+    /**
+     * A key-value pair. It holds the whole key, so it can sit at any depth.
+     */
+    private static final class Leaf extends Node {
+        final byte[] key;
+        byte[] value;
+
+        Leaf(byte[] key, byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Inner node. Below the digit leading to it, all of its keys continue with prefix. A key ending right after
+     * the prefix is the terminal leaf, every other key continues in the child for its next digit.
+     */
+    private abstract static class Inner extends Node {
+        byte[] prefix;
+        Leaf terminal;
+        int count;
+
+        abstract Node find(int digit);
+
+        /** Adds a child for a digit that has none yet. The node must not be full. */
+        abstract void add(int digit, Node child);
+
+        /** Replaces the child of a digit that has one. */
+        abstract void replace(int digit, Node child);
+
+        abstract void remove(int digit);
+
+        /** Returns the smallest digit at or above from that has a child, or -1. */
+        abstract int nextDigit(int from);
+
+        abstract boolean isFull();
+
+        /** Returns a bigger node with the same contents. */
+        abstract Inner grow();
+
+        /** Returns a smaller node with the same contents if this one is sparse enough, otherwise this node. */
+        abstract Inner shrink();
+
+        /**
+         * Copies the prefix, the terminal leaf and all children into another node.
+         * @param target The node to copy into, which has to be big enough.
+         * @return The target.
+         */
+        Inner copyTo(Inner target) {
+            target.prefix = prefix;
+            target.terminal = terminal;
+            for (int digit = nextDigit(0); digit >= 0; digit = nextDigit(digit + 1)) {
+                target.add(digit, find(digit));
+            }
+            return target;
+        }
+    }
+
+    /**
+     * Node with up to a handful of children, kept as parallel arrays sorted by digit.
+     * Node4 and Node16 only differ in their capacity.
+     */
+    private abstract static class SortedNode extends Inner {
+        final byte[] digits;
+        final Node[] children;
+
+        SortedNode(int capacity) {
+            this.digits = new byte[capacity];
+            this.children = new Node[capacity];
+        }
+
+        /**
+         * Finds the position of a digit.
+         * @param digit The digit.
+         * @return The position of the digit, or -1 if it has no child.
+         */
+        int position(int digit) {
+            for (int i = 0; i < count; i++) {
+                int current = digits[i] & 0xFF;
+                if (current == digit) {
+                    return i;
+                }
+                if (current > digit) {
+                    break;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Node find(int digit) {
+            int position = position(digit);
+            return position < 0 ? null : children[position];
+        }
+
+        @Override
+        void add(int digit, Node child) {
+            int position = 0;
+            while (position < count && (digits[position] & 0xFF) < digit) {
+                position++;
+            }
+            System.arraycopy(digits, position, digits, position + 1, count - position);
+            System.arraycopy(children, position, children, position + 1, count - position);
+            digits[position] = (byte) digit;
+            children[position] = child;
+            count++;
+        }
+
+        @Override
+        void replace(int digit, Node child) {
+            children[position(digit)] = child;
+        }
+
+        @Override
+        void remove(int digit) {
+            int position = position(digit);
+            System.arraycopy(digits, position + 1, digits, position, count - position - 1);
+            System.arraycopy(children, position + 1, children, position, count - position - 1);
+            count--;
+            children[count] = null;
+        }
+
+        @Override
+        int nextDigit(int from) {
+            for (int i = 0; i < count; i++) {
+                if ((digits[i] & 0xFF) >= from) {
+                    return digits[i] & 0xFF;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        boolean isFull() {
+            return count == digits.length;
+        }
+    }
+
+    private static final class Node4 extends SortedNode {
+        Node4() {
+            super(4);
+        }
+
+        @Override
+        Inner grow() {
+            return copyTo(new Node16());
+        }
+
+        @Override
+        Inner shrink() {
+            return this;
+        }
+    }
+
+    private static final class Node16 extends SortedNode {
+        Node16() {
+            super(16);
+        }
+
+        @Override
+        Inner grow() {
+            return copyTo(new Node48());
+        }
+
+        @Override
+        Inner shrink() {
+            return count <= 3 ? copyTo(new Node4()) : this;
+        }
+    }
+
+    /**
+     * Node with up to 48 children, found through a 256-entry index of slot numbers, where 0 means no child.
+     */
+    private static final class Node48 extends Inner {
+        final byte[] index = new byte[256];
+        final Node[] children = new Node[48];
+
+        @Override
+        Node find(int digit) {
+            int slot = index[digit];
+            return slot == 0 ? null : children[slot - 1];
+        }
+
+        @Override
+        void add(int digit, Node child) {
+            int slot = 0;
+            while (children[slot] != null) {
+                slot++;
+            }
+            children[slot] = child;
+            index[digit] = (byte) (slot + 1);
+            count++;
+        }
+
+        @Override
+        void replace(int digit, Node child) {
+            children[index[digit] - 1] = child;
+        }
+
+        @Override
+        void remove(int digit) {
+            children[index[digit] - 1] = null;
+            index[digit] = 0;
+            count--;
+        }
+
+        @Override
+        int nextDigit(int from) {
+            for (int digit = from; digit < 256; digit++) {
+                if (index[digit] != 0) {
+                    return digit;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        boolean isFull() {
+            return count == children.length;
+        }
+
+        @Override
+        Inner grow() {
+            return copyTo(new Node256());
+        }
+
+        @Override
+        Inner shrink() {
+            return count <= 12 ? copyTo(new Node16()) : this;
+        }
+    }
+
+    /**
+     * Node with a slot for every digit.
+     */
+    private static final class Node256 extends Inner {
+        final Node[] children = new Node[256];
+
+        @Override
+        Node find(int digit) {
+            return children[digit];
+        }
+
+        @Override
+        void add(int digit, Node child) {
+            children[digit] = child;
+            count++;
+        }
+
+        @Override
+        void replace(int digit, Node child) {
+            children[digit] = child;
+        }
+
+        @Override
+        void remove(int digit) {
+            children[digit] = null;
+            count--;
+        }
+
+        @Override
+        int nextDigit(int from) {
+            for (int digit = from; digit < 256; digit++) {
+                if (children[digit] != null) {
+                    return digit;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        boolean isFull() {
+            return false;
+        }
+
+        @Override
+        Inner grow() {
+            return this;
+        }
+
+        @Override
+        Inner shrink() {
+            return count <= 37 ? copyTo(new Node48()) : this;
+        }
+    }
+
+    /**
+     * Default constructor. Creates a new tree and its own internal lock.
+     */
+    public AdaptiveRadixTree() {
+        this(new ReentrantReadWriteLock());
+    }
+
+    /**
+     * Constructor for when an external lock is provided.
+     * This allows for coordinating operations on this tree with other data structures.
+     * @param lock The external lock to use.
+     */
+    public AdaptiveRadixTree(ReentrantReadWriteLock lock) {
+        if (lock == null) {
+            throw new IllegalArgumentException("Provide a non-null lock for the tree.");
+        }
+        this.lock = lock;
+        this.readLock = lock.readLock();
+        this.writeLock = lock.writeLock();
+    }
+
+    /**
+     * Retrieves the value associated with the given key.
+     * @param key The key to search for.
+     * @return The value associated with the key, or null if the key is not found.
+     */
+    @Override
+    public byte[] get(byte[] key) {
+        if (key == null) return null;
+
+        readLock.lock();
+        try {
+            Node node = root;
+            int depth = 0;
+            while (node instanceof Inner) {
+                Inner inner = (Inner) node;
+                if (matchingPrefix(inner, key, depth) < inner.prefix.length) {
+                    return null;
+                }
+                depth += inner.prefix.length;
+                if (depth == key.length) {
+                    return inner.terminal == null ? null : inner.terminal.value;
+                }
+                node = inner.find(digit(key[depth]));
+                depth++;
+            }
+            Leaf leaf = (Leaf) node;
+            return leaf != null && Arrays.equals(leaf.key, key) ? leaf.value : null;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Inserts or updates a key-value pair in the tree.
+     * @param key   The key to insert or update.
+     * @param value The value to associate with the key.
+     */
+    @Override
+    public void put(byte[] key, byte[] value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("Null values or keys not allowed in the tree.");
+        }
+
+        writeLock.lock();
+        try {
+            root = insert(root, key, value, 0);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the given key from the tree. Nodes left with fewer children shrink, and a node left with
+     * a single child and no terminal leaf is merged into that child, so the tree stays path-compressed.
+     * @param key The key to remove.
+     * @return The value that was associated with the key, or null if the key was not found.
+     */
+    @Override
+    public byte[] remove(byte[] key) {
+        if (key == null) return null;
+
+        writeLock.lock();
+        try {
+            removedValue = null;
+            root = delete(root, key, 0);
+            byte[] oldValue = removedValue;
+            removedValue = null;
+            return oldValue;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns an ordered iterator over the key-value pairs in the given range.
+     * The whole range is collected in one pass while the read lock is held, so the iterator is a point-in-time view
+     * and needs no lock itself, but writers wait for that pass and the pairs take memory in proportion to the range.
+     * Subtrees entirely outside the range are skipped.
+     * @param fromKey The lowest key to include, or null to start at the first key.
+     * @param toKey   The key to stop before (exclusive), or null to run until the last key.
+     * @return An iterator over the pairs in ascending key order.
+     */
+    public Iterator<Map.Entry<byte[], byte[]>> scan(byte[] fromKey, byte[] toKey) {
+        List<Map.Entry<byte[], byte[]>> entries = new ArrayList<>();
+        readLock.lock();
+        try {
+            walk(root, new Path(), fromKey, toKey,
+                    (key, value) -> entries.add(new AbstractMap.SimpleImmutableEntry<>(key, value)));
+        } finally {
+            readLock.unlock();
+        }
+        return entries.iterator();
+    }
+
+    /**
+     * Visits every key-value pair in ascending key order.
+     * The whole walk happens under the read lock, so the action must not write to this tree.
+     * @param action The action to run for every pair.
+     */
+    public void forEach(BiConsumer<byte[], byte[]> action) {
+        if (action == null) {
+            throw new NullPointerException("Provide a non-null action.");
+        }
+
+        readLock.lock();
+        try {
+            walk(root, new Path(), null, null, action);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of key-value pairs in the tree.
+     * @return The number of pairs.
+     */
+    public int size() {
+        readLock.lock();
+        try {
+            return size;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Inserts or updates a pair in the subtree in the given slot.
+     * @param node  The node in the slot, or null if it is empty.
+     * @param key   The key to insert or update.
+     * @param value The value to associate with the key.
+     * @param depth The number of key bytes consumed above the node.
+     * @return The node to put in the slot, which changes when a node is split or grown.
+     */
+    private Node insert(Node node, byte[] key, byte[] value, int depth) {
+        if (node == null) {
+            size++;
+            return new Leaf(key, value);
+        }
+
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            if (Arrays.equals(leaf.key, key)) {
+                leaf.value = value;
+                return leaf;
+            }
+            // Lazy expansion ends here: both keys get an inner node for their common bytes.
+            int common = depth;
+            while (common < key.length && common < leaf.key.length && key[common] == leaf.key[common]) {
+                common++;
+            }
+            Inner inner = new Node4();
+            inner.prefix = Arrays.copyOfRange(key, depth, common);
+            attach(inner, leaf, common);
+            attach(inner, new Leaf(key, value), common);
+            size++;
+            return inner;
+        }
+
+        Inner inner = (Inner) node;
+        int matching = matchingPrefix(inner, key, depth);
+        if (matching < inner.prefix.length) {
+            // The key leaves the compressed path, so the path is split where it does.
+            Inner parent = new Node4();
+            parent.prefix = Arrays.copyOf(inner.prefix, matching);
+            parent.add(digit(inner.prefix[matching]), inner);
+            inner.prefix = Arrays.copyOfRange(inner.prefix, matching + 1, inner.prefix.length);
+            attach(parent, new Leaf(key, value), depth + matching);
+            size++;
+            return parent;
+        }
+
+        depth += inner.prefix.length;
+        if (depth == key.length) {
+            if (inner.terminal == null) {
+                inner.terminal = new Leaf(key, value);
+                size++;
+            } else {
+                inner.terminal.value = value;
+            }
+            return inner;
+        }
+
+        int digit = digit(key[depth]);
+        Node child = inner.find(digit);
+        if (child != null) {
+            Node newChild = insert(child, key, value, depth + 1);
+            if (newChild != child) {
+                inner.replace(digit, newChild);
+            }
+            return inner;
+        }
+        if (inner.isFull()) {
+            inner = inner.grow();
+        }
+        inner.add(digit, new Leaf(key, value));
+        size++;
+        return inner;
+    }
+
+    /**
+     * Removes a key from the subtree in the given slot and compacts the nodes on the way back up.
+     * The removed value is left in removedValue.
+     * @param node  The node in the slot, or null if it is empty.
+     * @param key   The key to remove.
+     * @param depth The number of key bytes consumed above the node.
+     * @return The node to put in the slot, or null if the slot became empty.
+     */
+    private Node delete(Node node, byte[] key, int depth) {
+        if (node == null) {
+            return null;
+        }
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            if (!Arrays.equals(leaf.key, key)) {
+                return leaf;
+            }
+            removedValue = leaf.value;
+            size--;
+            return null;
+        }
+
+        Inner inner = (Inner) node;
+        if (matchingPrefix(inner, key, depth) < inner.prefix.length) {
+            return inner;
+        }
+        depth += inner.prefix.length;
+        if (depth == key.length) {
+            if (inner.terminal == null) {
+                return inner;
+            }
+            removedValue = inner.terminal.value;
+            inner.terminal = null;
+            size--;
+            return compact(inner);
+        }
+
+        int digit = digit(key[depth]);
+        Node child = inner.find(digit);
+        if (child == null) {
+            return inner;
+        }
+        Node newChild = delete(child, key, depth + 1);
+        if (newChild == child) {
+            return inner;
+        }
+        if (newChild == null) {
+            inner.remove(digit);
+        } else {
+            inner.replace(digit, newChild);
+        }
+        return compact(inner);
+    }
+
+    /**
+     * Brings an inner node that just lost a key back into shape.
+     * @param inner The inner node.
+     * @return The node to put in its slot instead.
+     */
+    private Node compact(Inner inner) {
+        if (inner.count == 0) {
+            // Leaves hold their whole key, so the terminal leaf can move up into the slot as it is.
+            return inner.terminal;
+        }
+        if (inner.count == 1 && inner.terminal == null) {
+            int digit = inner.nextDigit(0);
+            Node child = inner.find(digit);
+            if (child instanceof Inner) {
+                Inner below = (Inner) child;
+                byte[] prefix = Arrays.copyOf(inner.prefix, inner.prefix.length + 1 + below.prefix.length);
+                prefix[inner.prefix.length] = (byte) (digit ^ 0x80);
+                System.arraycopy(below.prefix, 0, prefix, inner.prefix.length + 1, below.prefix.length);
+                below.prefix = prefix;
+            }
+            return child;
+        }
+        return inner.shrink();
+    }
+
+    /**
+     * Puts a leaf into a fresh inner node, as its terminal leaf if its key ends at the given depth.
+     * @param inner The inner node.
+     * @param leaf  The leaf.
+     * @param depth The number of key bytes consumed down to the inner node, prefix included.
+     */
+    private static void attach(Inner inner, Leaf leaf, int depth) {
+        if (depth == leaf.key.length) {
+            inner.terminal = leaf;
+        } else {
+            inner.add(digit(leaf.key[depth]), leaf);
+        }
+    }
+
+    /**
+     * Visits the pairs of a subtree in key order, skipping the parts outside the range.
+     * All keys below a node start with the bytes on the path to it, which bounds the whole subtree from below.
+     * @param node   The root of the subtree.
+     * @param path   The key bytes leading to the node.
+     * @param from   The lowest key to include, or null for no lower bound.
+     * @param to     The key to stop before, or null for no upper bound.
+     * @param action The action to run for every pair in the range.
+     * @return False once the upper bound was reached, so the walk can stop.
+     */
+    private static boolean walk(Node node, Path path, byte[] from, byte[] to, BiConsumer<byte[], byte[]> action) {
+        if (node == null) {
+            return true;
+        }
+        if (node instanceof Leaf) {
+            return visit((Leaf) node, from, to, action);
+        }
+
+        Inner inner = (Inner) node;
+        int mark = path.length;
+        path.append(inner.prefix);
+        try {
+            if (to != null && path.compareTo(to) >= 0) {
+                return false;
+            }
+            if (from != null && path.compareTo(from) < 0 && !path.isPrefixOf(from)) {
+                return true;
+            }
+            if (inner.terminal != null && !visit(inner.terminal, from, to, action)) {
+                return false;
+            }
+            for (int digit = inner.nextDigit(0); digit >= 0; digit = inner.nextDigit(digit + 1)) {
+                path.append((byte) (digit ^ 0x80));
+                boolean more = walk(inner.find(digit), path, from, to, action);
+                path.length--;
+                if (!more) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            path.length = mark;
+        }
+    }
+
+    /**
+     * Visits a single leaf if it is in the range.
+     * @param leaf   The leaf.
+     * @param from   The lowest key to include, or null for no lower bound.
+     * @param to     The key to stop before, or null for no upper bound.
+     * @param action The action to run.
+     * @return False if the leaf is at or past the upper bound.
+     */
+    private static boolean visit(Leaf leaf, byte[] from, byte[] to, BiConsumer<byte[], byte[]> action) {
+        if (to != null && Arrays.compare(leaf.key, to) >= 0) {
+            return false;
+        }
+        if (from == null || Arrays.compare(leaf.key, from) >= 0) {
+            action.accept(leaf.key, leaf.value);
+        }
+        return true;
+    }
+
+    /**
+     * Returns how many bytes of a node's prefix the key matches.
+     * @param inner The node.
+     * @param key   The key.
+     * @param depth The number of key bytes consumed above the node.
+     * @return The length of the match, which equals the prefix length if the whole prefix matches.
+     */
+    private static int matchingPrefix(Inner inner, byte[] key, int depth) {
+        int limit = Math.min(inner.prefix.length, key.length - depth);
+        int matching = 0;
+        while (matching < limit && inner.prefix[matching] == key[depth + matching]) {
+            matching++;
+        }
+        return matching;
+    }
+
+    /**
+     * Maps a key byte to the slot digit, flipping the sign bit so that slots in ascending order
+     * follow the signed byte order of Arrays.compare.
+     * @param keyByte The key byte.
+     * @return The digit, from 0 to 255.
+     */
+    private static int digit(byte keyByte) {
+        return (keyByte ^ 0x80) & 0xFF;
+    }
+
+    /**
+     * The key bytes on the way down during a walk, kept in a growing array.
+     */
+    private static final class Path {
+        byte[] bytes = new byte[32];
+        int length;
+
+        void append(byte[] more) {
+            ensureCapacity(length + more.length);
+            System.arraycopy(more, 0, bytes, length, more.length);
+            length += more.length;
+        }
+
+        void append(byte more) {
+            ensureCapacity(length + 1);
+            bytes[length++] = more;
+        }
+
+        int compareTo(byte[] key) {
+            return Arrays.compare(bytes, 0, length, key, 0, key.length);
+        }
+
+        boolean isPrefixOf(byte[] key) {
+            return length <= key.length && Arrays.equals(bytes, 0, length, key, 0, length);
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+            }
+        }
+    }
+}
@@ -0,0 +1,548 @@
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * B+-tree engine behind the same API as ThreadSafeTree. Every node holds up to a few dozen keys in an array
+ * and is searched with a binary search, so a lookup touches one node per level of a tree that is only a handful
+ * of levels deep, instead of one node per level of a binary tree. All pairs sit in the leaves, which are linked
+ * in key order for scans.
+ * The whole tree is guarded by one ReentrantReadWriteLock, like ThreadSafeTree. Splits only ever go from a child
+ * to its parent along the descent path, which leaves room for latch crabbing later.
+ * Removes are lazy: a key is taken out of its leaf, but leaves are never merged or rebalanced, and an empty leaf
+ * stays linked in. Separators still route correctly, so only space is lost, and only after mass removals.
+ * <p>
+ * With prefix compression, a node stores the prefix shared by every key in its range once, and its keys only as
+ * the suffixes after it. The range of a child is bounded by the separators on both sides of it, so the prefix
+ * the two separators share is shared by every key that can ever be in the child, and it stays valid no matter
+ * what is inserted later. It is worked out when the node is created by a split. A key routed into a node is always
+ * in its range, so the descent compares suffixes only and skips the shared prefix without looking at it.
+ * The leftmost and rightmost child of an inner node are bounded by a separator further up, and only inherit the
+ * prefix of their parent.
+ */
+public class BPlusTree implements SortedByteMap {
+
+    private static final int DEFAULT_ORDER = 64;
+
+    private final ReentrantReadWriteLock lock;
+    private final ReentrantReadWriteLock.WriteLock writeLock;
+    private final ReentrantReadWriteLock.ReadLock readLock;
+    private final int order;
+    private final boolean compressKeys;
+    private Node root;
+    private int size;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * A node with its keys in ascending order in the first size slots of keys.
+     * Every key in the node's range starts with prefix, and keys only holds what follows it.
+     */
+    private abstract static class Node {
+        final byte[][] keys;
+        byte[] prefix = EMPTY;
+        int size;
+
+        Node(int order) {
+            this.keys = new byte[order + 1][];
+        }
+    }
+
+    /**
+     * Leaf holding the pairs themselves, and the link to the leaf with the next larger keys.
+     */
+    private static final class Leaf extends Node {
+        final byte[][] values;
+        Leaf next;
+
+        Leaf(int order) {
+            super(order);
+            this.values = new byte[order + 1][];
+        }
+    }
+
+    /**
+     * Inner node. Child i holds the keys from keys[i - 1], inclusive, up to keys[i], exclusive,
+     * with the node's prefix in front of both.
+     */
+    private static final class Inner extends Node {
+        final Node[] children;
+
+        Inner(int order) {
+            super(order);
+            this.children = new Node[order + 2];
+        }
+    }
+
+    /**
+     * The result of splitting a node: the new right sibling and the smallest key that routes to it, in full.
+     */
+    private static final class Split {
+        final byte[] separator;
+        final Node right;
+
+        Split(byte[] separator, Node right) {
+            this.separator = separator;
+            this.right = right;
+        }
+    }
+
+    /**
+     * Default constructor. Creates a new tree and its own internal lock.
+     */
+    public BPlusTree() {
+        this(new ReentrantReadWriteLock());
+    }
+
+    /**
+     * Constructor for when an external lock is provided.
+     * This allows for coordinating operations on this tree with other data structures.
+     * @param lock The external lock to use.
+     */
+    public BPlusTree(ReentrantReadWriteLock lock) {
+        this(lock, DEFAULT_ORDER);
+    }
+
+    /**
+     * Constructor that also sets the order, the most keys a node holds before it splits.
+     * @param lock  The external lock to use.
+     * @param order The order of the tree, at least 3.
+     */
+    public BPlusTree(ReentrantReadWriteLock lock, int order) {
+        this(lock, order, false);
+    }
+
+    /**
+     * Constructor that also chooses whether keys are stored prefix-compressed, see the class description.
+     * Compression saves space and comparison work for keys with long shared prefixes, at the cost of copying
+     * the suffix of every inserted key and putting scanned keys back together.
+     * @param lock         The external lock to use.
+     * @param order        The order of the tree, at least 3.
+     * @param compressKeys True to store the keys prefix-compressed.
+     */
+    public BPlusTree(ReentrantReadWriteLock lock, int order, boolean compressKeys) {
+        if (lock == null) {
+            throw new IllegalArgumentException("Provide a non-null lock for the tree.");
+        }
+        if (order < 3) {
+            throw new IllegalArgumentException("The order of the tree has to be at least 3.");
+        }
+        this.lock = lock;
+        this.readLock = lock.readLock();
+        this.writeLock = lock.writeLock();
+        this.order = order;
+        this.compressKeys = compressKeys;
+        this.root = new Leaf(order);
+    }
+
+    /**
+     * Creates a tree with its own internal lock that stores its keys prefix-compressed.
+     * @return The new tree.
+     */
+    public static BPlusTree withPrefixCompression() {
+        return new BPlusTree(new ReentrantReadWriteLock(), DEFAULT_ORDER, true);
+    }
+
+    /**
+     * Retrieves the value associated with the given key.
+     * @param key The key to search for.
+     * @return The value associated with the key, or null if the key is not found.
+     */
+    @Override
+    public byte[] get(byte[] key) {
+        if (key == null) return null;
+
+        readLock.lock();
+        try {
+            Leaf leaf = findLeaf(key);
+            int index = search(leaf, key);
+            return index < 0 ? null : leaf.values[index];
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Inserts or updates a key-value pair in the tree.
+     * A full leaf is split in half, and the split propagates up as far as the parents are full too.
+     * @param key   The key to insert or update.
+     * @param value The value to associate with the key.
+     */
+    @Override
+    public void put(byte[] key, byte[] value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("Null values or keys not allowed in the tree.");
+        }
+
+        writeLock.lock();
+        try {
+            Split split = insert(root, key, value);
+            if (split != null) {
+                Inner newRoot = new Inner(order);
+                newRoot.keys[0] = split.separator;
+                newRoot.children[0] = root;
+                newRoot.children[1] = split.right;
+                newRoot.size = 1;
+                root = newRoot;
+                // Both children of the root are bounded on one side only, so there's no prefix to gain.
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the given key from its leaf. Leaves are not merged, see the class description.
+     * @param key The key to remove.
+     * @return The value that was associated with the key, or null if the key was not found.
+     */
+    @Override
+    public byte[] remove(byte[] key) {
+        if (key == null) return null;
+
+        writeLock.lock();
+        try {
+            Leaf leaf = findLeaf(key);
+            int index = search(leaf, key);
+            if (index < 0) {
+                return null;
+            }
+            byte[] oldValue = leaf.values[index];
+            int moved = leaf.size - index - 1;
+            System.arraycopy(leaf.keys, index + 1, leaf.keys, index, moved);
+            System.arraycopy(leaf.values, index + 1, leaf.values, index, moved);
+            leaf.size--;
+            leaf.keys[leaf.size] = null;
+            leaf.values[leaf.size] = null;
+            size--;
+            return oldValue;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns an ordered iterator over the key-value pairs in the given range.
+     * The whole range is collected along the linked leaves in one pass while the read lock is held, so the iterator
+     * is a point-in-time view and needs no lock itself, but writers wait for that pass and the pairs take memory
+     * in proportion to the range.
+     * @param fromKey The lowest key to include, or null to start at the first key.
+     * @param toKey   The key to stop before (exclusive), or null to run until the last key.
+     * @return An iterator over the pairs in ascending key order.
+     */
+    public Iterator<Map.Entry<byte[], byte[]>> scan(byte[] fromKey, byte[] toKey) {
+        List<byte[]> keys = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+
+        readLock.lock();
+        try {
+            Leaf leaf;
+            int index;
+            if (fromKey == null) {
+                leaf = firstLeaf();
+                index = 0;
+            } else {
+                leaf = findLeaf(fromKey);
+                index = search(leaf, fromKey);
+                if (index < 0) {
+                    index = -index - 1;
+                }
+            }
+            for (; leaf != null; leaf = leaf.next, index = 0) {
+                for (; index < leaf.size; index++) {
+                    byte[] key = fullKey(leaf, index);
+                    if (toKey != null && Arrays.compare(key, toKey) >= 0) {
+                        return new ScanIterator(keys, values);
+                    }
+                    keys.add(key);
+                    values.add(leaf.values[index]);
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+        return new ScanIterator(keys, values);
+    }
+
+    /**
+     * Visits every key-value pair in ascending key order, walking the linked leaves.
+     * The whole walk happens under the read lock, so the action must not write to this tree.
+     * @param action The action to run for every pair.
+     */
+    public void forEach(BiConsumer<byte[], byte[]> action) {
+        if (action == null) {
+            throw new NullPointerException("Provide a non-null action.");
+        }
+
+        readLock.lock();
+        try {
+            for (Leaf leaf = firstLeaf(); leaf != null; leaf = leaf.next) {
+                for (int i = 0; i < leaf.size; i++) {
+                    action.accept(fullKey(leaf, i), leaf.values[i]);
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of key-value pairs in the tree.
+     * @return The number of pairs.
+     */
+    public int size() {
+        readLock.lock();
+        try {
+            return size;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Descends to the leaf whose range covers the given key. Must be called while holding a lock.
+     * @param key The key to search for.
+     * @return The leaf.
+     */
+    private Leaf findLeaf(byte[] key) {
+        Node node = root;
+        while (node instanceof Inner) {
+            Inner inner = (Inner) node;
+            node = inner.children[childIndex(inner, key)];
+        }
+        return (Leaf) node;
+    }
+
+    /**
+     * Returns the leftmost leaf. Must be called while holding a lock.
+     * @return The leaf with the smallest keys.
+     */
+    private Leaf firstLeaf() {
+        Node node = root;
+        while (node instanceof Inner) {
+            node = ((Inner) node).children[0];
+        }
+        return (Leaf) node;
+    }
+
+    /**
+     * Inserts or updates a pair in the subtree under the given node, splitting nodes that overflow.
+     * @param node  The root of the subtree.
+     * @param key   The key to insert or update.
+     * @param value The value to associate with the key.
+     * @return The split of the node if it overflowed, or null.
+     */
+    private Split insert(Node node, byte[] key, byte[] value) {
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            int index = search(leaf, key);
+            if (index >= 0) {
+                leaf.values[index] = value;
+                return null;
+            }
+            index = -index - 1;
+            int moved = leaf.size - index;
+            System.arraycopy(leaf.keys, index, leaf.keys, index + 1, moved);
+            System.arraycopy(leaf.values, index, leaf.values, index + 1, moved);
+            leaf.keys[index] = suffix(key, leaf.prefix.length);
+            leaf.values[index] = value;
+            leaf.size++;
+            size++;
+            return leaf.size > order ? splitLeaf(leaf) : null;
+        }
+
+        Inner inner = (Inner) node;
+        int index = childIndex(inner, key);
+        Split split = insert(inner.children[index], key, value);
+        if (split == null) {
+            return null;
+        }
+        int moved = inner.size - index;
+        System.arraycopy(inner.keys, index, inner.keys, index + 1, moved);
+        System.arraycopy(inner.children, index + 1, inner.children, index + 2, moved);
+        inner.keys[index] = suffix(split.separator, inner.prefix.length);
+        inner.children[index + 1] = split.right;
+        inner.size++;
+        if (compressKeys) {
+            compressChild(inner, index);
+            compressChild(inner, index + 1);
+        }
+        return inner.size > order ? splitInner(inner) : null;
+    }
+
+    /**
+     * Moves the upper half of an overflowing leaf into a new leaf linked in right after it.
+     * @param leaf The leaf to split.
+     * @return The split, whose separator is the first key of the new leaf.
+     */
+    private Split splitLeaf(Leaf leaf) {
+        Leaf right = new Leaf(order);
+        int keep = leaf.size / 2;
+        right.size = leaf.size - keep;
+        System.arraycopy(leaf.keys, keep, right.keys, 0, right.size);
+        System.arraycopy(leaf.values, keep, right.values, 0, right.size);
+        Arrays.fill(leaf.keys, keep, leaf.size, null);
+        Arrays.fill(leaf.values, keep, leaf.size, null);
+        leaf.size = keep;
+        right.prefix = leaf.prefix;
+        right.next = leaf.next;
+        leaf.next = right;
+        return new Split(fullKey(right, 0), right);
+    }
+
+    /**
+     * Moves the upper half of an overflowing inner node into a new node. The middle key moves up to the parent.
+     * @param inner The inner node to split.
+     * @return The split, whose separator is the middle key.
+     */
+    private Split splitInner(Inner inner) {
+        Inner right = new Inner(order);
+        int middle = inner.size / 2;
+        byte[] separator = fullKey(inner, middle);
+        right.size = inner.size - middle - 1;
+        System.arraycopy(inner.keys, middle + 1, right.keys, 0, right.size);
+        System.arraycopy(inner.children, middle + 1, right.children, 0, right.size + 1);
+        Arrays.fill(inner.keys, middle, inner.size, null);
+        Arrays.fill(inner.children, middle + 1, inner.size + 1, null);
+        inner.size = middle;
+        right.prefix = inner.prefix;
+        return new Split(separator, right);
+    }
+
+    /**
+     * Lengthens the prefix of a child to what its two separators share, and strips the added bytes off its keys.
+     * A child at either end of its parent is left alone, since one of its bounds is further up.
+     * @param parent The parent, whose separators around the child are in place.
+     * @param index  The index of the child.
+     */
+    private static void compressChild(Inner parent, int index) {
+        if (index == 0 || index == parent.size) {
+            return;
+        }
+        byte[] low = parent.keys[index - 1];
+        byte[] high = parent.keys[index];
+        // The separators differ, so mismatch finds where, or the length of the shorter one if it is a prefix.
+        int common = Arrays.mismatch(low, high);
+        Node child = parent.children[index];
+        int length = parent.prefix.length + common;
+        if (length <= child.prefix.length) {
+            return;
+        }
+        byte[] prefix = Arrays.copyOf(parent.prefix, length);
+        System.arraycopy(low, 0, prefix, parent.prefix.length, common);
+        int strip = length - child.prefix.length;
+        for (int i = 0; i < child.size; i++) {
+            child.keys[i] = Arrays.copyOfRange(child.keys[i], strip, child.keys[i].length);
+        }
+        child.prefix = prefix;
+    }
+
+    /**
+     * Puts a stored key back together with the prefix of its node.
+     * @param node  The node.
+     * @param index The index of the key.
+     * @return The full key, which is the stored array itself if the node has no prefix.
+     */
+    private static byte[] fullKey(Node node, int index) {
+        byte[] suffix = node.keys[index];
+        if (node.prefix.length == 0) {
+            return suffix;
+        }
+        byte[] key = Arrays.copyOf(node.prefix, node.prefix.length + suffix.length);
+        System.arraycopy(suffix, 0, key, node.prefix.length, suffix.length);
+        return key;
+    }
+
+    /**
+     * Returns what follows a node's prefix in a key from its range.
+     * @param key    The full key.
+     * @param offset The length of the prefix.
+     * @return The suffix, which is the key itself if the prefix is empty.
+     */
+    private static byte[] suffix(byte[] key, int offset) {
+        return offset == 0 ? key : Arrays.copyOfRange(key, offset, key.length);
+    }
+
+    /**
+     * Binary searches an inner node for the child whose range covers the given key.
+     * The key is in the node's range, so only the part after the node's prefix is compared.
+     * @param inner The inner node.
+     * @param key   The key to search for.
+     * @return The index of the child, which is the number of separators not greater than the key.
+     */
+    private static int childIndex(Inner inner, byte[] key) {
+        int low = 0;
+        int high = inner.size;
+        int offset = inner.prefix.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            byte[] separator = inner.keys[middle];
+            if (Arrays.compare(separator, 0, separator.length, key, offset, key.length) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Binary searches a leaf for the given key, comparing only the part after the leaf's prefix like childIndex.
+     * @param leaf The leaf.
+     * @param key  The key to search for.
+     * @return The index of the key, or (-(insertion point) - 1) if it isn't there, like Arrays.binarySearch.
+     */
+    private static int search(Leaf leaf, byte[] key) {
+        int low = 0;
+        int high = leaf.size - 1;
+        int offset = leaf.prefix.length;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            byte[] stored = leaf.keys[middle];
+            int compare = Arrays.compare(stored, 0, stored.length, key, offset, key.length);
+            if (compare < 0) {
+                low = middle + 1;
+            } else if (compare > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Iterator over the pairs collected by a scan. It works purely on its own lists, so it needs no locking.
+     */
+    private static class ScanIterator implements Iterator<Map.Entry<byte[], byte[]>> {
+        private final List<byte[]> keys;
+        private final List<byte[]> values;
+        private int position;
+
+        ScanIterator(List<byte[]> keys, List<byte[]> values) {
+            this.keys = keys;
+            this.values = values;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < keys.size();
+        }
+
+        @Override
+        public Map.Entry<byte[], byte[]> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<byte[], byte[]> entry = new AbstractMap.SimpleImmutableEntry<>(keys.get(position), values.get(position));
+            position++;
+            return entry;
+        }
+    }
+}
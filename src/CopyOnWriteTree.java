@@ -0,0 +1,442 @@
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+public class CopyOnWriteTree implements SortedByteMap {
+
+    private static final boolean RED = true;
+    private static final boolean BLACK = false;
+
+    private final ReentrantLock writeLock;
+    private volatile Node root;
+
+    /**
+     * Immutable node. Once a node is reachable from a published root it never changes,
+     * which is what lets readers go without any lock.
+     */
+    private static final class Node {
+        final byte[] key;
+        final byte[] value;
+        final Node left;
+        final Node right;
+        final boolean color;
+
+        Node(byte[] key, byte[] value, Node left, Node right, boolean color) {
+            this.key = key;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            this.color = color;
+        }
+    }
+
+    /**
+     * Default constructor. Creates a new tree and its own internal lock for the writers.
+     */
+    public CopyOnWriteTree() {
+        this(new ReentrantLock());
+    }
+
+    /**
+     * Constructor for when an external lock is provided for the writers.
+     * Readers never touch it.
+     * @param lock The external lock to use.
+     */
+    public CopyOnWriteTree(ReentrantLock lock) {
+        if (lock == null) {
+            throw new IllegalArgumentException("Provide a non-null lock for the tree.");
+        }
+        this.writeLock = lock;
+    }
+
+    /**
+     * Retrieves the value associated with the given key.
+     * This is wait-free: it reads the current root once and descends through immutable nodes.
+     * @param key The key to search for.
+     * @return The value associated with the key, or null if the key is not found.
+     */
+    @Override
+    public byte[] get(byte[] key) {
+        if (key == null) return null;
+        return find(root, key);
+    }
+
+    /**
+     * Inserts or updates a key-value pair in the tree.
+     * The nodes from the root down to the key are copied, rebalanced on the way back up,
+     * and the new root is published with a single volatile write.
+     * @param key   The key to insert or update.
+     * @param value The value to associate with the key.
+     */
+    @Override
+    public void put(byte[] key, byte[] value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("Null values or keys not allowed in the tree.");
+        }
+
+        writeLock.lock();
+        try {
+            root = blacken(insert(root, key, value));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the given key from the tree, copying the path to it like put does.
+     * A key that isn't there is detected without taking the lock.
+     * @param key The key to remove.
+     * @return The value that was associated with the key, or null if the key was not found.
+     */
+    @Override
+    public byte[] remove(byte[] key) {
+        if (key == null || find(root, key) == null) return null;
+
+        writeLock.lock();
+        try {
+            byte[][] removed = new byte[1][];
+            Node newRoot = delete(root, key, removed);
+            if (removed[0] != null) {
+                root = blacken(newRoot);
+            }
+            return removed[0];
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns an immutable snapshot of the tree. This is free: it just captures the current root.
+     * @return The snapshot.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(root);
+    }
+
+    /**
+     * Returns an ordered iterator over the key-value pairs in the given range of the current version.
+     * @param fromKey The lowest key to include, or null to start at the first key.
+     * @param toKey   The key to stop before (exclusive), or null to run until the last key.
+     * @return An iterator over the pairs in ascending key order.
+     */
+    public Iterator<Map.Entry<byte[], byte[]>> scan(byte[] fromKey, byte[] toKey) {
+        return snapshot().scan(fromKey, toKey);
+    }
+
+    /**
+     * An immutable version of the tree. It keeps answering with the contents of the tree at the time
+     * it was taken, no matter what gets written to the tree afterwards.
+     */
+    public static final class Snapshot {
+        private final Node root;
+
+        private Snapshot(Node root) {
+            this.root = root;
+        }
+
+        /**
+         * Retrieves the value associated with the given key in this version.
+         * @param key The key to search for.
+         * @return The value associated with the key, or null if the key is not found.
+         */
+        public byte[] get(byte[] key) {
+            if (key == null) return null;
+            return find(root, key);
+        }
+
+        /**
+         * Returns an ordered iterator over the key-value pairs in the given range of this version.
+         * @param fromKey The lowest key to include, or null to start at the first key.
+         * @param toKey   The key to stop before (exclusive), or null to run until the last key.
+         * @return An iterator over the pairs in ascending key order.
+         */
+        public Iterator<Map.Entry<byte[], byte[]>> scan(byte[] fromKey, byte[] toKey) {
+            return new ScanIterator(root, fromKey, toKey);
+        }
+
+        /**
+         * Visits every key-value pair of this version in ascending key order.
+         * @param action The action to run for every pair.
+         */
+        public void forEach(BiConsumer<byte[], byte[]> action) {
+            if (action == null) {
+                throw new NullPointerException("Provide a non-null action.");
+            }
+            Iterator<Map.Entry<byte[], byte[]>> iterator = scan(null, null);
+            while (iterator.hasNext()) {
+                Map.Entry<byte[], byte[]> entry = iterator.next();
+                action.accept(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Searches a version of the tree for the given key.
+     * @param node The root of the version.
+     * @param key  The key to search for.
+     * @return The value associated with the key, or null if the key is not found.
+     */
+    private static byte[] find(Node node, byte[] key) {
+        while (node != null) {
+            int compare = Arrays.compare(key, node.key);
+            if (compare < 0) {
+                node = node.left;
+            } else if (compare > 0) {
+                node = node.right;
+            } else {
+                return node.value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a copy of the subtree with the pair inserted. Black nodes on the way back up are rebalanced,
+     * which does the job of the rotations and recolorings of an in-place fixTree, but on the copies.
+     * @param node  The root of the subtree.
+     * @param key   The key to insert or update.
+     * @param value The value to associate with the key.
+     * @return The root of the new subtree, which may be red with a red child until its parent rebalances it.
+     */
+    private static Node insert(Node node, byte[] key, byte[] value) {
+        if (node == null) {
+            return new Node(key, value, null, null, RED);
+        }
+        int compare = Arrays.compare(key, node.key);
+        if (compare == 0) {
+            return new Node(node.key, value, node.left, node.right, node.color);
+        }
+        if (node.color == BLACK) {
+            return compare < 0
+                    ? balance(insert(node.left, key, value), node, node.right)
+                    : balance(node.left, node, insert(node.right, key, value));
+        }
+        return compare < 0
+                ? copy(RED, insert(node.left, key, value), node, node.right)
+                : copy(RED, node.left, node, insert(node.right, key, value));
+    }
+
+    /**
+     * Returns a copy of the subtree with the key removed, following Kahrs' functional red-black deletion.
+     * Descending into a black child may leave that side one black short, which balanceLeft/balanceRight repair.
+     * @param node    The root of the subtree.
+     * @param key     The key to remove, which must be in the subtree.
+     * @param removed Receives the value of the removed node.
+     * @return The root of the new subtree.
+     */
+    private static Node delete(Node node, byte[] key, byte[][] removed) {
+        if (node == null) {
+            return null;
+        }
+        int compare = Arrays.compare(key, node.key);
+        if (compare < 0) {
+            if (isBlack(node.left)) {
+                return balanceLeft(delete(node.left, key, removed), node, node.right);
+            }
+            return copy(RED, delete(node.left, key, removed), node, node.right);
+        } else if (compare > 0) {
+            if (isBlack(node.right)) {
+                return balanceRight(node.left, node, delete(node.right, key, removed));
+            }
+            return copy(RED, node.left, node, delete(node.right, key, removed));
+        }
+        removed[0] = node.value;
+        return fuse(node.left, node.right);
+    }
+
+    /**
+     * Builds a black node from the given parts, resolving a red child with a red grandchild on either side.
+     * @param left   The left subtree.
+     * @param middle The node whose key and value go in the middle.
+     * @param right  The right subtree.
+     * @return The balanced subtree.
+     */
+    private static Node balance(Node left, Node middle, Node right) {
+        if (isRed(left) && isRed(right)) {
+            return copy(RED, copy(BLACK, left.left, left, left.right), middle, copy(BLACK, right.left, right, right.right));
+        }
+        if (isRed(left) && isRed(left.left)) {
+            return copy(RED, copy(BLACK, left.left.left, left.left, left.left.right), left, copy(BLACK, left.right, middle, right));
+        }
+        if (isRed(left) && isRed(left.right)) {
+            return copy(RED, copy(BLACK, left.left, left, left.right.left), left.right, copy(BLACK, left.right.right, middle, right));
+        }
+        if (isRed(right) && isRed(right.right)) {
+            return copy(RED, copy(BLACK, left, middle, right.left), right, copy(BLACK, right.right.left, right.right, right.right.right));
+        }
+        if (isRed(right) && isRed(right.left)) {
+            return copy(RED, copy(BLACK, left, middle, right.left.left), right.left, copy(BLACK, right.left.right, right, right.right));
+        }
+        return copy(BLACK, left, middle, right);
+    }
+
+    /**
+     * Rebuilds a node whose left subtree just lost one black from its height.
+     * @param left   The left subtree, one black short.
+     * @param middle The node whose key and value go in the middle.
+     * @param right  The right subtree.
+     * @return The repaired subtree.
+     */
+    private static Node balanceLeft(Node left, Node middle, Node right) {
+        if (isRed(left)) {
+            return copy(RED, copy(BLACK, left.left, left, left.right), middle, right);
+        }
+        if (isBlack(right)) {
+            return balance(left, middle, copy(RED, right.left, right, right.right));
+        }
+        if (isRed(right) && isBlack(right.left)) {
+            return copy(RED, copy(BLACK, left, middle, right.left.left), right.left,
+                    balance(right.left.right, right, redden(right.right)));
+        }
+        throw new IllegalStateException("The tree lost its red-black invariants.");
+    }
+
+    /**
+     * Rebuilds a node whose right subtree just lost one black from its height.
+     * @param left   The left subtree.
+     * @param middle The node whose key and value go in the middle.
+     * @param right  The right subtree, one black short.
+     * @return The repaired subtree.
+     */
+    private static Node balanceRight(Node left, Node middle, Node right) {
+        if (isRed(right)) {
+            return copy(RED, left, middle, copy(BLACK, right.left, right, right.right));
+        }
+        if (isBlack(left)) {
+            return balance(copy(RED, left.left, left, left.right), middle, right);
+        }
+        if (isRed(left) && isBlack(left.right)) {
+            return copy(RED, balance(redden(left.left), left, left.right.left), left.right,
+                    copy(BLACK, left.right.right, middle, right));
+        }
+        throw new IllegalStateException("The tree lost its red-black invariants.");
+    }
+
+    /**
+     * Joins the two subtrees of a removed node, all keys of left being smaller than all keys of right.
+     * @param left  The left subtree.
+     * @param right The right subtree.
+     * @return The joined subtree.
+     */
+    private static Node fuse(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (isRed(left) && isRed(right)) {
+            Node inner = fuse(left.right, right.left);
+            if (isRed(inner)) {
+                return copy(RED, copy(RED, left.left, left, inner.left), inner, copy(RED, inner.right, right, right.right));
+            }
+            return copy(RED, left.left, left, copy(RED, inner, right, right.right));
+        }
+        if (isBlack(left) && isBlack(right)) {
+            Node inner = fuse(left.right, right.left);
+            if (isRed(inner)) {
+                return copy(RED, copy(BLACK, left.left, left, inner.left), inner, copy(BLACK, inner.right, right, right.right));
+            }
+            return balanceLeft(left.left, left, copy(BLACK, inner, right, right.right));
+        }
+        if (isRed(right)) {
+            return copy(RED, fuse(left, right.left), right, right.right);
+        }
+        return copy(RED, left.left, left, fuse(left.right, right));
+    }
+
+    /**
+     * Creates a node with the key and value of an existing one, but new children and color.
+     * @param color  The color of the new node.
+     * @param left   The left child.
+     * @param middle The node to take the key and value from.
+     * @param right  The right child.
+     * @return The new node.
+     */
+    private static Node copy(boolean color, Node left, Node middle, Node right) {
+        return new Node(middle.key, middle.value, left, right, color);
+    }
+
+    /**
+     * Turns a black node red, which a deletion needs on the sibling side to even out black heights.
+     * @param node The black node.
+     * @return A red copy of the node.
+     */
+    private static Node redden(Node node) {
+        if (!isBlack(node)) {
+            throw new IllegalStateException("The tree lost its red-black invariants.");
+        }
+        return copy(RED, node.left, node, node.right);
+    }
+
+    /**
+     * Makes sure the root of a new version is black.
+     * @param node The new root.
+     * @return The root, recolored if needed.
+     */
+    private static Node blacken(Node node) {
+        return (node == null || node.color == BLACK ? node : copy(BLACK, node.left, node, node.right));
+    }
+
+    /**
+     * Returns whether the given node is red.
+     * @param node The node to check.
+     * @return True if the node is red, false otherwise.
+     */
+    private static boolean isRed(Node node) {
+        return (node != null && node.color == RED);
+    }
+
+    /**
+     * Returns whether the given node is a real black node, as opposed to an empty subtree.
+     * @param node The node to check.
+     * @return True if the node is black and not null, false otherwise.
+     */
+    private static boolean isBlack(Node node) {
+        return (node != null && node.color == BLACK);
+    }
+
+    /**
+     * In-order iterator over one version of the tree.
+     * There are no parent links in a persistent tree, so it keeps the path of pending ancestors on a stack.
+     */
+    private static class ScanIterator implements Iterator<Map.Entry<byte[], byte[]>> {
+        private final ArrayDeque<Node> stack = new ArrayDeque<>();
+        private final byte[] toKey;
+
+        ScanIterator(Node root, byte[] fromKey, byte[] toKey) {
+            this.toKey = toKey;
+            Node node = root;
+            while (node != null) {
+                if (fromKey != null && Arrays.compare(node.key, fromKey) < 0) {
+                    node = node.right;
+                } else {
+                    stack.push(node);
+                    node = node.left;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !stack.isEmpty() && (toKey == null || Arrays.compare(stack.peek().key, toKey) < 0);
+        }
+
+        @Override
+        public Map.Entry<byte[], byte[]> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Node node = stack.pop();
+            for (Node helper = node.right; helper != null; helper = helper.left) {
+                stack.push(helper);
+            }
+            return new AbstractMap.SimpleImmutableEntry<>(node.key, node.value);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Flat-combining front end for a ThreadSafeTree. Instead of every writer fighting for the tree's write lock,
+ * a writer publishes its put in a slot of its own, and whichever writer wins the combiner lock applies all
+ * published puts in one sorted batch, under a single write lock acquisition, with putAllSorted.
+ * Under heavy write contention that replaces many lock handoffs with a few, and consecutive inserts
+ * in a sorted batch share most of their descent through the finger.
+ * Reads and removes go to the tree directly.
+ */
+public class FlatCombiningTree implements SortedByteMap {
+
+    // How often a combiner scans the slots again for puts published while it was applying the previous batch.
+    private static final int COMBINING_PASSES = 3;
+    // Every this many combining rounds, slots of threads that stopped writing are dropped.
+    private static final int CLEANUP_INTERVAL = 1024;
+    // A slot that wasn't used for this many combining rounds is dropped.
+    private static final int SLOT_MAX_AGE = 4096;
+    // How often a waiting writer spins before it starts yielding its processor.
+    private static final int SPINS_BEFORE_YIELD = 64;
+
+    private final ThreadSafeTree tree;
+    private final ReentrantLock combinerLock = new ReentrantLock();
+    private final ConcurrentLinkedQueue<Slot> slots = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Slot> threadSlot = ThreadLocal.withInitial(Slot::new);
+    private long round;
+
+    /**
+     * A thread's published put. The key and value are written before pending is set,
+     * and the outcome is written before pending is cleared, so the volatile flag hands them over.
+     */
+    private static class Slot {
+        byte[] key;
+        byte[] value;
+        RuntimeException failure;
+        long lastUsed;
+        volatile boolean pending;
+        volatile boolean registered;
+    }
+
+    /**
+     * Default constructor. Creates a new, empty tree to combine the writes for.
+     */
+    public FlatCombiningTree() {
+        this(new ThreadSafeTree());
+    }
+
+    /**
+     * Constructor for combining the writes for an existing tree, e.g. one with a write-ahead log attached.
+     * @param tree The tree to apply the writes to.
+     */
+    public FlatCombiningTree(ThreadSafeTree tree) {
+        if (tree == null) {
+            throw new IllegalArgumentException("Provide a non-null tree to combine the writes for.");
+        }
+        this.tree = tree;
+    }
+
+    /**
+     * Retrieves the value associated with the given key.
+     * @param key The key to search for.
+     * @return The value associated with the key, or null if the key is not found.
+     */
+    @Override
+    public byte[] get(byte[] key) {
+        return tree.get(key);
+    }
+
+    /**
+     * Inserts or updates a key-value pair in the tree.
+     * The put is published in this thread's slot and the call returns once some combiner applied it,
+     * possibly this thread itself.
+     * @param key   The key to insert or update.
+     * @param value The value to associate with the key.
+     */
+    @Override
+    public void put(byte[] key, byte[] value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("Null values or keys not allowed in the tree.");
+        }
+
+        Slot slot = threadSlot.get();
+        slot.key = key;
+        slot.value = value;
+        slot.failure = null;
+        slot.pending = true;
+
+        int spins = 0;
+        while (slot.pending) {
+            if (!slot.registered) {
+                // New, or dropped by a cleanup that raced with this put.
+                slot.registered = true;
+                slots.add(slot);
+            }
+            if (combinerLock.tryLock()) {
+                try {
+                    combine();
+                } finally {
+                    combinerLock.unlock();
+                }
+            } else if (++spins < SPINS_BEFORE_YIELD) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+
+        slot.key = null;
+        slot.value = null;
+        if (slot.failure != null) {
+            throw slot.failure;
+        }
+    }
+
+    /**
+     * Removes the given key from the tree.
+     * @param key The key to remove.
+     * @return The value that was associated with the key, or null if the key was not found.
+     */
+    @Override
+    public byte[] remove(byte[] key) {
+        return tree.remove(key);
+    }
+
+    /**
+     * Returns the tree the writes are applied to.
+     * @return The tree.
+     */
+    public ThreadSafeTree tree() {
+        return tree;
+    }
+
+    /**
+     * Applies the published puts. Must be called while holding the combiner lock.
+     * The batch is sorted in the tree's key order, so it can go through putAllSorted. Two pending puts of the same key
+     * come from different threads and are concurrent, so applying them in either order is fine.
+     * If the batch fails, e.g. because the write-ahead log can't be written, every writer in it gets the exception.
+     */
+    private void combine() {
+        for (int pass = 0; pass < COMBINING_PASSES; pass++) {
+            round++;
+            List<Slot> batch = new ArrayList<>();
+            for (Slot slot : slots) {
+                if (slot.pending) {
+                    slot.lastUsed = round;
+                    batch.add(slot);
+                }
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+            Comparator<byte[]> comparator = tree.comparator();
+            batch.sort((first, second) -> comparator.compare(first.key, second.key));
+
+            List<Map.Entry<byte[], byte[]>> entries = new ArrayList<>(batch.size());
+            for (Slot slot : batch) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(slot.key, slot.value));
+            }
+            RuntimeException failure = null;
+            try {
+                tree.putAllSorted(entries);
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            for (Slot slot : batch) {
+                slot.failure = failure;
+                slot.pending = false;
+            }
+
+            if (round % CLEANUP_INTERVAL == 0) {
+                removeIdleSlots();
+            }
+        }
+    }
+
+    /**
+     * Drops the slots that weren't used for a while, so threads that stopped writing don't slow down every scan.
+     * A thread whose slot was dropped registers it again with its next put. Must be called while holding the combiner lock.
+     */
+    private void removeIdleSlots() {
+        Iterator<Slot> iterator = slots.iterator();
+        while (iterator.hasNext()) {
+            Slot slot = iterator.next();
+            if (!slot.pending && round - slot.lastUsed > SLOT_MAX_AGE) {
+                iterator.remove();
+                slot.registered = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,379 @@
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Red-black tree with a lock in every node instead of one lock for the whole tree.
+ * Every operation descends with lock coupling: it locks a child before it lets go of the node above,
+ * so it only ever holds a small window of nodes, and operations on disjoint keys overlap.
+ * To make that possible, put and remove rebalance top-down on the way down (color flips and rotations
+ * within the window) instead of walking back up to the root with parent links afterwards.
+ * A node's fields are only read or written while holding its lock, and locks are only ever taken on
+ * a child of a node that is already held, which keeps the scheme free of deadlocks.
+ */
+public class LockCouplingTree implements SortedByteMap {
+
+    private static final boolean RED = true;
+    private static final boolean BLACK = false;
+    private static final boolean LEFT = false;
+    private static final boolean RIGHT = true;
+
+    // Sentinel above the root, the root is head.right. Its lock guards replacing the root.
+    private final Node head = new Node(null, null, BLACK);
+
+    private static class Node {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        byte[] key;
+        byte[] value;
+        Node left;
+        Node right;
+        boolean color;
+
+        Node(byte[] key, byte[] value, boolean color) {
+            this.key = key;
+            this.value = value;
+            this.color = color;
+        }
+    }
+
+    /**
+     * Retrieves the value associated with the given key, coupling read locks on the way down.
+     * @param key The key to search for.
+     * @return The value associated with the key, or null if the key is not found.
+     */
+    @Override
+    public byte[] get(byte[] key) {
+        if (key == null) return null;
+
+        Node node = head;
+        node.lock.readLock().lock();
+        Node child = head.right;
+        while (child != null) {
+            child.lock.readLock().lock();
+            node.lock.readLock().unlock();
+            node = child;
+            int compare = Arrays.compare(key, node.key);
+            if (compare == 0) {
+                byte[] value = node.value;
+                node.lock.readLock().unlock();
+                return value;
+            }
+            child = compare < 0 ? node.left : node.right;
+        }
+        node.lock.readLock().unlock();
+        return null;
+    }
+
+    /**
+     * Inserts or updates a key-value pair in the tree.
+     * On the way down, a node with two red children is flipped and a resulting red-red pair is rotated away,
+     * so the new red leaf can be attached without any fixup afterwards. The window held is the current node,
+     * its parent, grandparent and great-grandparent, the last one because a rotation relinks it.
+     * @param key   The key to insert or update.
+     * @param value The value to associate with the key.
+     */
+    @Override
+    public void put(byte[] key, byte[] value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("Null values or keys not allowed in the tree.");
+        }
+
+        lock(head);
+        Node q = head.right;
+        if (q == null) {
+            head.right = new Node(key, value, BLACK);
+            unlock(head);
+            return;
+        }
+        lock(q);
+
+        Node t = head;
+        Node g = null;
+        Node p = null;
+        boolean dir = RIGHT;
+        boolean last = RIGHT;
+        try {
+            while (true) {
+                if (q == null) {
+                    q = new Node(key, value, RED);
+                    lock(q);
+                    setChild(p, dir, q);
+                } else {
+                    Node left = q.left;
+                    Node right = q.right;
+                    lock(left);
+                    lock(right);
+                    if (isRed(left) && isRed(right)) {
+                        q.color = RED;
+                        left.color = BLACK;
+                        right.color = BLACK;
+                    }
+                    unlock(right);
+                    unlock(left);
+                    if (p == null) {
+                        // The root, which stays black. A remove may also have left it red.
+                        q.color = BLACK;
+                    }
+                }
+
+                if (isRed(q) && isRed(p)) {
+                    boolean side = (t.right == g);
+                    setChild(t, side, q == child(p, last) ? rotate(g, !last) : rotateTwice(g, !last));
+                }
+
+                int compare = Arrays.compare(key, q.key);
+                if (compare == 0) {
+                    q.value = value;
+                    return;
+                }
+
+                last = dir;
+                dir = (compare > 0);
+                Node next = child(q, dir);
+                lock(next);
+                if (g != null) {
+                    unlock(t);
+                    t = g;
+                }
+                g = p;
+                p = q;
+                q = next;
+            }
+        } finally {
+            unlock(q);
+            unlock(p);
+            unlock(g);
+            unlock(t);
+        }
+    }
+
+    /**
+     * Removes the given key from the tree.
+     * On the way down, a red node is pushed along the path so the node finally unlinked is red,
+     * which keeps the black heights intact without any fixup afterwards. A matching key sends the descent left,
+     * so it ends at the in-order predecessor. The node holding the key stays locked until then,
+     * and the predecessor's key and value are moved into it.
+     * @param key The key to remove.
+     * @return The value that was associated with the key, or null if the key was not found.
+     */
+    @Override
+    public byte[] remove(byte[] key) {
+        if (key == null || get(key) == null) return null;
+
+        Node g = null;
+        Node p = null;
+        Node q = head;
+        Node found = null;
+        boolean dir = RIGHT;
+        lock(head);
+        try {
+            Node next;
+            while ((next = child(q, dir)) != null) {
+                boolean last = dir;
+                lock(next);
+                unlock(g);
+                g = p;
+                p = q;
+                q = next;
+
+                int compare = Arrays.compare(key, q.key);
+                dir = (compare > 0);
+                if (compare == 0 && found == null) {
+                    found = q;
+                    lock(found);
+                }
+                if (p == head) {
+                    q.color = BLACK;
+                }
+
+                Node near = child(q, dir);
+                Node far = child(q, !dir);
+                lock(near);
+                lock(far);
+                try {
+                    if (isRed(q) || isRed(near)) {
+                        continue;
+                    }
+                    if (isRed(far)) {
+                        setChild(p, last, rotate(q, dir));
+                        lock(far);
+                        unlock(p);
+                        p = far;
+                        continue;
+                    }
+                    // The sibling is a child of p, which is held, and its children are only locked once it is.
+                    Node sibling = child(p, !last);
+                    if (sibling == null) {
+                        continue;
+                    }
+                    lock(sibling);
+                    Node outer = child(sibling, !last);
+                    Node inner = child(sibling, last);
+                    lock(outer);
+                    lock(inner);
+                    try {
+                        if (!isRed(outer) && !isRed(inner)) {
+                            p.color = BLACK;
+                            sibling.color = RED;
+                            q.color = RED;
+                        } else {
+                            boolean side = (g.right == p);
+                            Node top = isRed(inner) ? rotateTwice(p, last) : rotate(p, last);
+                            setChild(g, side, top);
+                            q.color = RED;
+                            // A new root stays black, nothing after this step would fix it.
+                            top.color = (g == head ? BLACK : RED);
+                            top.left.color = BLACK;
+                            top.right.color = BLACK;
+                        }
+                    } finally {
+                        unlock(inner);
+                        unlock(outer);
+                        unlock(sibling);
+                    }
+                } finally {
+                    unlock(far);
+                    unlock(near);
+                }
+            }
+
+            if (found == null) {
+                return null;
+            }
+            byte[] removed = found.value;
+            found.key = q.key;
+            found.value = q.value;
+            setChild(p, p.right == q, child(q, q.left == null));
+            return removed;
+        } finally {
+            unlock(found);
+            unlock(q);
+            unlock(p);
+            unlock(g);
+        }
+    }
+
+    /**
+     * Checks the ordering and the red-black properties of the whole tree. Takes no locks,
+     * so it must only be called while no other thread uses the tree, e.g. by tests after a concurrent run.
+     * @return The number of keys in the tree.
+     * @throws IllegalStateException If a property is violated.
+     */
+    int checkInvariants() {
+        Node root = head.right;
+        if (isRed(root)) {
+            throw new IllegalStateException("The root is red.");
+        }
+        int[] count = new int[1];
+        blackHeight(root, null, null, count);
+        return count[0];
+    }
+
+    /**
+     * Checks the subtree at the given node for checkInvariants.
+     * @param node  The root of the subtree.
+     * @param low   All keys in the subtree must be greater than this one, or null for no bound.
+     * @param high  All keys in the subtree must be less than this one, or null for no bound.
+     * @param count Counts the keys visited.
+     * @return The number of black nodes on every path down from the node, counting the null leaves.
+     */
+    private static int blackHeight(Node node, byte[] low, byte[] high, int[] count) {
+        if (node == null) {
+            return 1;
+        }
+        if ((low != null && Arrays.compare(node.key, low) <= 0) || (high != null && Arrays.compare(node.key, high) >= 0)) {
+            throw new IllegalStateException("Keys out of order.");
+        }
+        if (isRed(node) && (isRed(node.left) || isRed(node.right))) {
+            throw new IllegalStateException("Red node with a red child.");
+        }
+        count[0]++;
+        int left = blackHeight(node.left, low, node.key, count);
+        int right = blackHeight(node.right, node.key, high, count);
+        if (left != right) {
+            throw new IllegalStateException("Black heights differ.");
+        }
+        return left + (isRed(node) ? 0 : 1);
+    }
+
+    /**
+     * Rotates the subtree at the given node, setting the colors the way both top-down passes need them.
+     * All nodes involved must be locked.
+     * @param root The root of the subtree.
+     * @param dir  The direction to rotate to, RIGHT for a right rotation.
+     * @return The new root of the subtree, which is black, with the old root as its red child.
+     */
+    private static Node rotate(Node root, boolean dir) {
+        Node save = child(root, !dir);
+        setChild(root, !dir, child(save, dir));
+        setChild(save, dir, root);
+        root.color = RED;
+        save.color = BLACK;
+        return save;
+    }
+
+    /**
+     * Rotates the child on the opposite side first, and then the subtree at the given node.
+     * All nodes involved must be locked.
+     * @param root The root of the subtree.
+     * @param dir  The direction of the second rotation.
+     * @return The new root of the subtree.
+     */
+    private static Node rotateTwice(Node root, boolean dir) {
+        setChild(root, !dir, rotate(child(root, !dir), !dir));
+        return rotate(root, dir);
+    }
+
+    /**
+     * Returns the child on the given side.
+     * @param node The node, which must be locked.
+     * @param dir  RIGHT for the right child, LEFT for the left one.
+     * @return The child.
+     */
+    private static Node child(Node node, boolean dir) {
+        return (dir == RIGHT ? node.right : node.left);
+    }
+
+    /**
+     * Replaces the child on the given side.
+     * @param node  The node, which must be locked.
+     * @param dir   RIGHT for the right child, LEFT for the left one.
+     * @param child The new child.
+     */
+    private static void setChild(Node node, boolean dir, Node child) {
+        if (dir == RIGHT) {
+            node.right = child;
+        } else {
+            node.left = child;
+        }
+    }
+
+    /**
+     * Returns whether the given node is red.
+     * @param node The node to check, which must be locked.
+     * @return True if the node is red, false otherwise.
+     */
+    private static boolean isRed(Node node) {
+        return (node != null && node.color == RED);
+    }
+
+    /**
+     * Takes the write lock of a node. The lock is reentrant, so a node can be held by the window
+     * and by a single step at the same time, as long as every lock is matched by an unlock.
+     * @param node The node to lock, or null to do nothing.
+     */
+    private static void lock(Node node) {
+        if (node != null) {
+            node.lock.writeLock().lock();
+        }
+    }
+
+    /**
+     * Releases one hold of the write lock of a node.
+     * @param node The node to unlock, or null to do nothing.
+     */
+    private static void unlock(Node node) {
+        if (node != null) {
+            node.lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,512 @@
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Sibling of ThreadSafeTree for fixed-width keys, such as 8-byte IDs.
+ * The keys are stored inline in the nodes as primitive longs and ordered by Long.compareUnsigned,
+ * so there is no key array to allocate and every comparison is a couple of instructions.
+ * That is the same order ThreadSafeTree.UNSIGNED gives the keys encoded as 8-byte big-endian arrays,
+ * so negative longs sort after all the positive ones rather than before them.
+ * Balancing and locking work exactly like in ThreadSafeTree, optimistic read mode included.
+ * To store keys that arrive as 8-byte big-endian arrays, convert them with ByteBuffer.wrap(key).getLong().
+ */
+public class LongKeyTree {
+
+    private static final boolean RED = true;
+    private static final boolean BLACK = false;
+
+    private final ReentrantReadWriteLock lock;
+    private final StampedLock stampedLock;
+    private final Lock writeLock;
+    private final Lock readLock;
+    private Node root;
+
+    private class Node {
+        long key;
+        byte[] value;
+        Node left;
+        Node right;
+        Node parent;
+        boolean color;
+
+        Node(long key, byte[] value, Node parent, boolean color) {
+            this.key = key;
+            this.value = value;
+            this.parent = parent;
+            this.color = color;
+        }
+    }
+
+    /**
+     * Default constructor. Creates a new tree and its own internal lock.
+     */
+    public LongKeyTree() {
+        this(new ReentrantReadWriteLock());
+    }
+
+    /**
+     * Constructor for when an external lock is provided.
+     * This allows for coordinating operations on this tree with other data structures.
+     * @param lock The external lock to use.
+     */
+    public LongKeyTree(ReentrantReadWriteLock lock) {
+        if (lock == null) {
+            throw new IllegalArgumentException("Provide a non-null lock for the tree.");
+        }
+        this.lock = lock;
+        this.stampedLock = null;
+        this.readLock = lock.readLock();
+        this.writeLock = lock.writeLock();
+    }
+
+    /**
+     * Constructor for the optimistic read mode, see ThreadSafeTree(StampedLock).
+     * @param lock The stamped lock to use, can be shared with other data structures.
+     */
+    public LongKeyTree(StampedLock lock) {
+        if (lock == null) {
+            throw new IllegalArgumentException("Provide a non-null lock for the tree.");
+        }
+        this.lock = null;
+        this.stampedLock = lock;
+        this.readLock = lock.asReadLock();
+        this.writeLock = lock.asWriteLock();
+    }
+
+    /**
+     * Creates a tree with its own stamped lock, so that reads are optimistic.
+     * @return A new, empty tree in optimistic read mode.
+     */
+    public static LongKeyTree withOptimisticReads() {
+        return new LongKeyTree(new StampedLock());
+    }
+
+    /**
+     * Retrieves the value associated with the given key.
+     * @param key The key to search for.
+     * @return The value associated with the key, or null if the key is not found.
+     */
+    public byte[] get(long key) {
+        if (stampedLock != null) {
+            long stamp = stampedLock.tryOptimisticRead();
+            if (stamp != 0) {
+                byte[] value = getOptimistic(key, stamp);
+                if (stampedLock.validate(stamp)) {
+                    return value;
+                }
+            }
+        }
+
+        readLock.lock();
+        try {
+            Node node = findNode(key);
+            return node == null ? null : node.value;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Descends the tree without holding any lock, validating the stamp at every level.
+     * The result is only meaningful if the caller validates the stamp once more afterwards.
+     * @param key   The key to search for.
+     * @param stamp The optimistic stamp obtained before the descent.
+     * @return The value seen for the key, or null if it was not found (or the stamp got invalidated).
+     */
+    private byte[] getOptimistic(long key, long stamp) {
+        Node helper = root;
+        while (helper != null) {
+            int compare = Long.compareUnsigned(key, helper.key);
+            if (compare < 0) {
+                helper = helper.left;
+            } else if (compare > 0) {
+                helper = helper.right;
+            } else {
+                return helper.value;
+            }
+            if (!stampedLock.validate(stamp)) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the node holding the given key. Must be called while holding a lock.
+     * @param key The key to search for.
+     * @return The node with the key, or null if the key is not found.
+     */
+    private Node findNode(long key) {
+        Node helper = root;
+        while (helper != null) {
+            int compare = Long.compareUnsigned(key, helper.key);
+            if (compare < 0) {
+                helper = helper.left;
+            } else if (compare > 0) {
+                helper = helper.right;
+            } else {
+                return helper;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Inserts or updates a key-value pair in the tree.
+     * @param key   The key to insert or update.
+     * @param value The value to associate with the key.
+     */
+    public void put(long key, byte[] value) {
+        if (value == null) {
+            throw new NullPointerException("Null values or keys not allowed in the tree.");
+        }
+
+        writeLock.lock();
+        try {
+            insert(key, value);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the given key from the tree.
+     * In optimistic read mode a key that isn't there is detected without taking the write lock at all.
+     * @param key The key to remove.
+     * @return The value that was associated with the key, or null if the key was not found.
+     */
+    public byte[] remove(long key) {
+        if (stampedLock != null) {
+            long stamp = stampedLock.tryOptimisticRead();
+            if (stamp != 0 && getOptimistic(key, stamp) == null && stampedLock.validate(stamp)) {
+                return null;
+            }
+        }
+
+        writeLock.lock();
+        try {
+            Node node = findNode(key);
+            if (node == null) {
+                return null;
+            }
+            byte[] oldValue = node.value;
+            deleteNode(node);
+            return oldValue;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Inserts or updates a key-value pair. Must be called while holding the write lock.
+     * @param key   The key to insert or update.
+     * @param value The value to associate with the key.
+     */
+    private void insert(long key, byte[] value) {
+        if (root == null) {
+            root = new Node(key, value, null, BLACK);
+            return;
+        }
+
+        Node helper = root;
+        Node parent = null;
+        while (helper != null) {
+            parent = helper;
+            int compare = Long.compareUnsigned(key, helper.key);
+            if (compare < 0) {
+                helper = helper.left;
+            } else if (compare > 0) {
+                helper = helper.right;
+            } else {
+                helper.value = value;
+                return;
+            }
+        }
+
+        Node newNode = new Node(key, value, parent, RED);
+        if (Long.compareUnsigned(key, parent.key) < 0) {
+            parent.left = newNode;
+        } else {
+            parent.right = newNode;
+        }
+
+        fixTree(newNode);
+    }
+
+    /**
+     * Fixes the tree after an insertion or update.
+     * It does so by rotating the tree and making color changes to restore RB properties.
+     * @param currentNode The node to start at.
+     */
+    private void fixTree(Node currentNode) {
+        while (currentNode != root && isRed(parentOf(currentNode))) {
+            if (parentOf(currentNode) == parentOf(parentOf(currentNode)).left) {
+                Node uncleNode = parentOf(parentOf(currentNode)).right;
+                if (isRed(uncleNode)) {
+                    setColor(parentOf(currentNode), BLACK);
+                    setColor(uncleNode, BLACK);
+                    setColor(parentOf(parentOf(currentNode)), RED);
+                    currentNode = parentOf(parentOf(currentNode));
+                } else {
+                    if (currentNode == parentOf(currentNode).right) {
+                        currentNode = parentOf(currentNode);
+                        rotateLeft(currentNode);
+                    }
+                    setColor(parentOf(currentNode), BLACK);
+                    setColor(parentOf(parentOf(currentNode)), RED);
+                    rotateRight(parentOf(parentOf(currentNode)));
+                }
+            } else {
+                Node uncleNode = parentOf(parentOf(currentNode)).left;
+                if (isRed(uncleNode)) {
+                    setColor(parentOf(currentNode), BLACK);
+                    setColor(uncleNode, BLACK);
+                    setColor(parentOf(parentOf(currentNode)), RED);
+                    currentNode = parentOf(parentOf(currentNode));
+                } else {
+                    if (currentNode == parentOf(currentNode).left) {
+                        currentNode = parentOf(currentNode);
+                        rotateRight(currentNode);
+                    }
+                    setColor(parentOf(currentNode), BLACK);
+                    setColor(parentOf(parentOf(currentNode)), RED);
+                    rotateLeft(parentOf(parentOf(currentNode)));
+                }
+            }
+        }
+        root.color = BLACK;
+    }
+
+    /**
+     * Unlinks the given node from the tree and restores the RB properties.
+     * A node with two children takes over the key and value of its successor, which is then unlinked instead.
+     * @param node The node to delete.
+     */
+    private void deleteNode(Node node) {
+        if (node.left != null && node.right != null) {
+            Node next = successor(node);
+            node.key = next.key;
+            node.value = next.value;
+            node = next;
+        }
+
+        Node replacement = (node.left != null ? node.left : node.right);
+        if (replacement != null) {
+            replacement.parent = node.parent;
+            if (node.parent == null) {
+                root = replacement;
+            } else if (node == node.parent.left) {
+                node.parent.left = replacement;
+            } else {
+                node.parent.right = replacement;
+            }
+            node.left = null;
+            node.right = null;
+            node.parent = null;
+            if (node.color == BLACK) {
+                fixTreeAfterDelete(replacement);
+            }
+        } else if (node.parent == null) {
+            root = null;
+        } else {
+            // No children, so the node itself acts as the phantom replacement during the fix-up.
+            if (node.color == BLACK) {
+                fixTreeAfterDelete(node);
+            }
+            if (node.parent != null) {
+                if (node == node.parent.left) {
+                    node.parent.left = null;
+                } else if (node == node.parent.right) {
+                    node.parent.right = null;
+                }
+                node.parent = null;
+            }
+        }
+    }
+
+    /**
+     * Fixes the tree after a black node got removed.
+     * It does so by rotating the tree and making color changes until the missing black is absorbed.
+     * @param currentNode The node that took the place of the removed one.
+     */
+    private void fixTreeAfterDelete(Node currentNode) {
+        while (currentNode != root && !isRed(currentNode)) {
+            if (currentNode == leftOf(parentOf(currentNode))) {
+                Node siblingNode = rightOf(parentOf(currentNode));
+                if (isRed(siblingNode)) {
+                    setColor(siblingNode, BLACK);
+                    setColor(parentOf(currentNode), RED);
+                    rotateLeft(parentOf(currentNode));
+                    siblingNode = rightOf(parentOf(currentNode));
+                }
+                if (!isRed(leftOf(siblingNode)) && !isRed(rightOf(siblingNode))) {
+                    setColor(siblingNode, RED);
+                    currentNode = parentOf(currentNode);
+                } else {
+                    if (!isRed(rightOf(siblingNode))) {
+                        setColor(leftOf(siblingNode), BLACK);
+                        setColor(siblingNode, RED);
+                        rotateRight(siblingNode);
+                        siblingNode = rightOf(parentOf(currentNode));
+                    }
+                    setColor(siblingNode, colorOf(parentOf(currentNode)));
+                    setColor(parentOf(currentNode), BLACK);
+                    setColor(rightOf(siblingNode), BLACK);
+                    rotateLeft(parentOf(currentNode));
+                    currentNode = root;
+                }
+            } else {
+                Node siblingNode = leftOf(parentOf(currentNode));
+                if (isRed(siblingNode)) {
+                    setColor(siblingNode, BLACK);
+                    setColor(parentOf(currentNode), RED);
+                    rotateRight(parentOf(currentNode));
+                    siblingNode = leftOf(parentOf(currentNode));
+                }
+                if (!isRed(rightOf(siblingNode)) && !isRed(leftOf(siblingNode))) {
+                    setColor(siblingNode, RED);
+                    currentNode = parentOf(currentNode);
+                } else {
+                    if (!isRed(leftOf(siblingNode))) {
+                        setColor(rightOf(siblingNode), BLACK);
+                        setColor(siblingNode, RED);
+                        rotateLeft(siblingNode);
+                        siblingNode = leftOf(parentOf(currentNode));
+                    }
+                    setColor(siblingNode, colorOf(parentOf(currentNode)));
+                    setColor(parentOf(currentNode), BLACK);
+                    setColor(leftOf(siblingNode), BLACK);
+                    rotateRight(parentOf(currentNode));
+                    currentNode = root;
+                }
+            }
+        }
+        setColor(currentNode, BLACK);
+    }
+
+    /**
+     * Rotates the tree left.
+     * @param pivotNode The node to rotate.
+     */
+    private void rotateLeft(Node pivotNode) {
+        if (pivotNode != null) {
+            Node rightChild = pivotNode.right;
+            pivotNode.right = rightChild.left;
+            if (rightChild.left != null) {
+                rightChild.left.parent = pivotNode;
+            }
+            rightChild.parent = pivotNode.parent;
+            if (pivotNode.parent == null) {
+                root = rightChild;
+            } else if (pivotNode == pivotNode.parent.left) {
+                pivotNode.parent.left = rightChild;
+            } else {
+                pivotNode.parent.right = rightChild;
+            }
+            rightChild.left = pivotNode;
+            pivotNode.parent = rightChild;
+        }
+    }
+
+    /**
+     * Rotates the tree right.
+     * @param pivotNode The node to rotate.
+     */
+    private void rotateRight(Node pivotNode) {
+        if (pivotNode != null) {
+            Node leftChild = pivotNode.left;
+            pivotNode.left = leftChild.right;
+            if (leftChild.right != null) {
+                leftChild.right.parent = pivotNode;
+            }
+            leftChild.parent = pivotNode.parent;
+            if (pivotNode.parent == null) {
+                root = leftChild;
+            } else if (pivotNode == pivotNode.parent.right) {
+                pivotNode.parent.right = leftChild;
+            } else {
+                pivotNode.parent.left = leftChild;
+            }
+            leftChild.right = pivotNode;
+            pivotNode.parent = leftChild;
+        }
+    }
+
+    /**
+     * Returns the in-order successor of the given node.
+     * @param node The node to start from.
+     * @return The node with the next larger key, or null if there is none.
+     */
+    private Node successor(Node node) {
+        if (node.right != null) {
+            Node helper = node.right;
+            while (helper.left != null) {
+                helper = helper.left;
+            }
+            return helper;
+        }
+        Node helper = node.parent;
+        while (helper != null && node == helper.right) {
+            node = helper;
+            helper = helper.parent;
+        }
+        return helper;
+    }
+
+    /**
+     * Returns the parent of the given node.
+     * @param node The node to get the parent of.
+     * @return The parent of the given node, or null if the node is the root.
+     */
+    private Node parentOf(Node node) {
+        return (node == null ? null : node.parent);
+    }
+
+    /**
+     * Returns the left child of the given node.
+     * @param node The node to get the left child of.
+     * @return The left child, or null if the node is null.
+     */
+    private Node leftOf(Node node) {
+        return (node == null ? null : node.left);
+    }
+
+    /**
+     * Returns the right child of the given node.
+     * @param node The node to get the right child of.
+     * @return The right child, or null if the node is null.
+     */
+    private Node rightOf(Node node) {
+        return (node == null ? null : node.right);
+    }
+
+    /**
+     * Returns the color of the given node, where null nodes count as black.
+     * @param node The node to get the color of.
+     * @return The color of the node.
+     */
+    private boolean colorOf(Node node) {
+        return (node == null ? BLACK : node.color);
+    }
+
+    /**
+     * Returns whether the given node is red.
+     * @param node The node to check.
+     * @return True if the node is red, false otherwise.
+     */
+    private boolean isRed(Node node) {
+        return (node != null && node.color == RED);
+    }
+
+    /**
+     * Sets the color of the given node.
+     * @param node The node to set the color of.
+     * @param color The color to set.
+     */
+    private void setColor(Node node, boolean color) {
+        if (node != null) {
+            node.color = color;
+        }
+    }
+}
@@ -0,0 +1,660 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class OffHeapThreadSafeTree implements SortedByteMap {
+
+    private static final boolean RED = true;
+    private static final boolean BLACK = false;
+
+    /** Address used for missing nodes, the off-heap counterpart of null. */
+    private static final long NIL = -1L;
+
+    // Layout of a node record. Nodes point to each other and to their key and value by address.
+    private static final int LEFT = 0;
+    private static final int RIGHT = 8;
+    private static final int PARENT = 16;
+    private static final int KEY = 24;
+    private static final int VALUE = 32;
+    private static final int COLOR = 40;
+    private static final int NODE_SIZE = 48;
+
+    // Layout of a key or value record: its capacity, its current length and then the bytes themselves.
+    // A free record keeps the address of the next free record of its size class in its first bytes.
+    private static final int CAPACITY = 0;
+    private static final int LENGTH = 4;
+    private static final int BYTES = 8;
+    private static final int NEXT_FREE = BYTES;
+
+    // Record capacities are powers of two from MIN_CAPACITY up to MAX_POOLED_CAPACITY, one free list each.
+    // Bigger records get their exact size and are never reused.
+    private static final int MIN_CAPACITY = 8;
+    private static final int MAX_POOLED_CAPACITY = 1 << 30;
+
+    private static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    private final ReentrantReadWriteLock lock;
+    private final ReentrantReadWriteLock.WriteLock writeLock;
+    private final ReentrantReadWriteLock.ReadLock readLock;
+    private final Arena nodes;
+    private final Arena data;
+    private long root = NIL;
+    private long freeNodes = NIL;
+    private final long[] freeRecords = new long[32];
+
+    /**
+     * Default constructor. Creates a new tree and its own internal lock.
+     */
+    public OffHeapThreadSafeTree() {
+        this(new ReentrantReadWriteLock());
+    }
+
+    /**
+     * Constructor for when an external lock is provided.
+     * This allows for coordinating operations on this tree with other data structures.
+     * @param lock The external lock to use.
+     */
+    public OffHeapThreadSafeTree(ReentrantReadWriteLock lock) {
+        this(lock, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Constructor that also sets the size of the direct memory chunks the arenas grow by.
+     * @param lock      The external lock to use.
+     * @param chunkSize The size of every chunk in bytes.
+     */
+    public OffHeapThreadSafeTree(ReentrantReadWriteLock lock, int chunkSize) {
+        if (lock == null) {
+            throw new IllegalArgumentException("Provide a non-null lock for the tree.");
+        }
+        if (chunkSize < NODE_SIZE) {
+            throw new IllegalArgumentException("Chunks need to hold at least one node.");
+        }
+        this.lock = lock;
+        this.readLock = lock.readLock();
+        this.writeLock = lock.writeLock();
+        this.nodes = new Arena(chunkSize - chunkSize % NODE_SIZE);
+        this.data = new Arena(chunkSize);
+        Arrays.fill(freeRecords, NIL);
+    }
+
+    /**
+     * Retrieves the value associated with the given key.
+     * @param key The key to search for.
+     * @return A copy of the value associated with the key, or null if the key is not found.
+     */
+    @Override
+    public byte[] get(byte[] key) {
+        if (key == null) return null;
+
+        readLock.lock();
+        try {
+            long node = findNode(key);
+            return node == NIL ? null : readRecord(getLong(node, VALUE));
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Inserts or updates a key-value pair in the tree.
+     * Both arrays are copied into direct memory, the tree keeps no reference to them.
+     * @param key   The key to insert or update.
+     * @param value The value to associate with the key.
+     */
+    @Override
+    public void put(byte[] key, byte[] value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("Null values or keys not allowed in the tree.");
+        }
+
+        writeLock.lock();
+        try {
+            if (root == NIL) {
+                root = newNode(key, value, NIL, BLACK);
+                return;
+            }
+
+            long helper = root;
+            long parent = NIL;
+            int compare = 0;
+
+            while (helper != NIL) {
+                parent = helper;
+                compare = compareKey(key, helper);
+                if (compare < 0) {
+                    helper = getLong(helper, LEFT);
+                } else if (compare > 0) {
+                    helper = getLong(helper, RIGHT);
+                } else {
+                    setLong(helper, VALUE, updateRecord(getLong(helper, VALUE), value));
+                    return;
+                }
+            }
+
+            long newNode = newNode(key, value, parent, RED);
+            if (compare < 0) {
+                setLong(parent, LEFT, newNode);
+            } else {
+                setLong(parent, RIGHT, newNode);
+            }
+
+            fixTree(newNode);
+
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the given key from the tree.
+     * The node record and the key and value records are all recycled by later puts,
+     * so a workload that keeps replacing entries doesn't keep reserving direct memory.
+     * @param key The key to remove.
+     * @return A copy of the value that was associated with the key, or null if the key was not found.
+     */
+    @Override
+    public byte[] remove(byte[] key) {
+        if (key == null) return null;
+
+        writeLock.lock();
+        try {
+            long node = findNode(key);
+            if (node == NIL) {
+                return null;
+            }
+            byte[] oldValue = readRecord(getLong(node, VALUE));
+            deleteNode(node);
+            return oldValue;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the amount of direct memory reserved by the tree so far.
+     * @return The reserved direct memory in bytes.
+     */
+    public long offHeapBytes() {
+        readLock.lock();
+        try {
+            return nodes.reservedBytes() + data.reservedBytes();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Finds the node holding the given key. Must be called while holding a lock.
+     * @param key The key to search for.
+     * @return The address of the node with the key, or NIL if the key is not found.
+     */
+    private long findNode(byte[] key) {
+        long helper = root;
+        while (helper != NIL) {
+            int compare = compareKey(key, helper);
+            if (compare < 0) {
+                helper = getLong(helper, LEFT);
+            } else if (compare > 0) {
+                helper = getLong(helper, RIGHT);
+            } else {
+                return helper;
+            }
+        }
+        return NIL;
+    }
+
+    /**
+     * Compares the given key with the key of a node in place, with the same ordering as Arrays.compare.
+     * @param key  The key to compare.
+     * @param node The address of the node.
+     * @return A negative number, zero or a positive number if the key is smaller, equal or larger.
+     */
+    private int compareKey(byte[] key, long node) {
+        long record = getLong(node, KEY);
+        ByteBuffer chunk = data.chunk(record);
+        int offset = Arena.offset(record);
+        int length = chunk.getInt(offset + LENGTH);
+        int common = Math.min(key.length, length);
+        for (int i = 0; i < common; i++) {
+            int compare = Byte.compare(key[i], chunk.get(offset + BYTES + i));
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return key.length - length;
+    }
+
+    /**
+     * Allocates a node, reusing a recycled record if there is one, and copies the key and value into the data arena.
+     * @param key    The key of the node.
+     * @param value  The value of the node.
+     * @param parent The address of the parent.
+     * @param color  The color of the node.
+     * @return The address of the new node.
+     */
+    private long newNode(byte[] key, byte[] value, long parent, boolean color) {
+        long node;
+        if (freeNodes != NIL) {
+            node = freeNodes;
+            freeNodes = getLong(node, LEFT);
+        } else {
+            node = nodes.allocate(NODE_SIZE);
+        }
+        setLong(node, LEFT, NIL);
+        setLong(node, RIGHT, NIL);
+        setLong(node, PARENT, parent);
+        setLong(node, KEY, writeRecord(key));
+        setLong(node, VALUE, writeRecord(value));
+        setColor(node, color);
+        return node;
+    }
+
+    /**
+     * Copies the given bytes into a new record in the data arena, reusing a free record of the right size class
+     * if there is one. Capacities are rounded up to a power of two, which wastes up to half of a record,
+     * but lets freed records be reused by any later record of the same class, and leaves values room to grow in place.
+     * @param bytes The bytes to copy.
+     * @return The address of the record.
+     */
+    private long writeRecord(byte[] bytes) {
+        int capacity = capacityFor(bytes.length);
+        long record = NIL;
+        if (capacity <= MAX_POOLED_CAPACITY) {
+            int sizeClass = Integer.numberOfTrailingZeros(capacity);
+            record = freeRecords[sizeClass];
+            if (record != NIL) {
+                freeRecords[sizeClass] = data.chunk(record).getLong(Arena.offset(record) + NEXT_FREE);
+            }
+        }
+        if (record == NIL) {
+            record = data.allocate(BYTES + capacity);
+        }
+        ByteBuffer chunk = data.chunk(record);
+        int offset = Arena.offset(record);
+        chunk.putInt(offset + CAPACITY, capacity);
+        chunk.putInt(offset + LENGTH, bytes.length);
+        chunk.put(offset + BYTES, bytes);
+        return record;
+    }
+
+    /**
+     * Overwrites a record in place if the new bytes fit into it, otherwise writes a new record.
+     * @param record The address of the current record.
+     * @param bytes  The new bytes.
+     * @return The address of the record now holding the bytes.
+     */
+    private long updateRecord(long record, byte[] bytes) {
+        ByteBuffer chunk = data.chunk(record);
+        int offset = Arena.offset(record);
+        if (chunk.getInt(offset + CAPACITY) < bytes.length) {
+            freeRecord(record);
+            return writeRecord(bytes);
+        }
+        chunk.putInt(offset + LENGTH, bytes.length);
+        chunk.put(offset + BYTES, bytes);
+        return record;
+    }
+
+    /**
+     * Puts a record that is no longer used on the free list of its size class.
+     * @param record The address of the record.
+     */
+    private void freeRecord(long record) {
+        ByteBuffer chunk = data.chunk(record);
+        int offset = Arena.offset(record);
+        int capacity = chunk.getInt(offset + CAPACITY);
+        if (capacity <= MAX_POOLED_CAPACITY) {
+            int sizeClass = Integer.numberOfTrailingZeros(capacity);
+            chunk.putLong(offset + NEXT_FREE, freeRecords[sizeClass]);
+            freeRecords[sizeClass] = record;
+        }
+    }
+
+    /**
+     * Returns the capacity of the record for the given number of bytes.
+     * @param length The number of bytes.
+     * @return The next power of two of at least MIN_CAPACITY, or the length itself if that is over MAX_POOLED_CAPACITY.
+     */
+    private static int capacityFor(int length) {
+        if (length <= MIN_CAPACITY) {
+            return MIN_CAPACITY;
+        }
+        if (length > MAX_POOLED_CAPACITY) {
+            return length;
+        }
+        return Integer.highestOneBit(length - 1) << 1;
+    }
+
+    /**
+     * Copies a record out of the data arena.
+     * @param record The address of the record.
+     * @return The bytes of the record.
+     */
+    private byte[] readRecord(long record) {
+        ByteBuffer chunk = data.chunk(record);
+        int offset = Arena.offset(record);
+        byte[] bytes = new byte[chunk.getInt(offset + LENGTH)];
+        chunk.get(offset + BYTES, bytes);
+        return bytes;
+    }
+
+    /**
+     * Fixes the tree after an insertion or update.
+     * It does so by rotating the tree and making color changes to restore RB properties.
+     * @param currentNode The node to start at.
+     */
+    private void fixTree(long currentNode) {
+        while (currentNode != root && isRed(parentOf(currentNode))) {
+            if (parentOf(currentNode) == leftOf(parentOf(parentOf(currentNode)))) {
+                long uncleNode = rightOf(parentOf(parentOf(currentNode)));
+                if (isRed(uncleNode)) {
+                    setColor(parentOf(currentNode), BLACK);
+                    setColor(uncleNode, BLACK);
+                    setColor(parentOf(parentOf(currentNode)), RED);
+                    currentNode = parentOf(parentOf(currentNode));
+                } else {
+                    if (currentNode == rightOf(parentOf(currentNode))) {
+                        currentNode = parentOf(currentNode);
+                        rotateLeft(currentNode);
+                    }
+                    setColor(parentOf(currentNode), BLACK);
+                    setColor(parentOf(parentOf(currentNode)), RED);
+                    rotateRight(parentOf(parentOf(currentNode)));
+                }
+            } else {
+                long uncleNode = leftOf(parentOf(parentOf(currentNode)));
+                if (isRed(uncleNode)) {
+                    setColor(parentOf(currentNode), BLACK);
+                    setColor(uncleNode, BLACK);
+                    setColor(parentOf(parentOf(currentNode)), RED);
+                    currentNode = parentOf(parentOf(currentNode));
+                } else {
+                    if (currentNode == leftOf(parentOf(currentNode))) {
+                        currentNode = parentOf(currentNode);
+                        rotateRight(currentNode);
+                    }
+                    setColor(parentOf(currentNode), BLACK);
+                    setColor(parentOf(parentOf(currentNode)), RED);
+                    rotateLeft(parentOf(parentOf(currentNode)));
+                }
+            }
+        }
+        setColor(root, BLACK);
+    }
+
+    /**
+     * Unlinks the given node from the tree, restores the RB properties and recycles the node record
+     * along with its key and value records.
+     * A node with two children takes over the key and value of its successor, which is then unlinked instead.
+     * @param node The address of the node to delete.
+     */
+    private void deleteNode(long node) {
+        // The records of the deleted pair, even if the node itself stays and takes over the successor's records.
+        freeRecord(getLong(node, KEY));
+        freeRecord(getLong(node, VALUE));
+        if (leftOf(node) != NIL && rightOf(node) != NIL) {
+            long next = rightOf(node);
+            while (leftOf(next) != NIL) {
+                next = leftOf(next);
+            }
+            setLong(node, KEY, getLong(next, KEY));
+            setLong(node, VALUE, getLong(next, VALUE));
+            node = next;
+        }
+
+        long replacement = (leftOf(node) != NIL ? leftOf(node) : rightOf(node));
+        if (replacement != NIL) {
+            setLong(replacement, PARENT, parentOf(node));
+            if (parentOf(node) == NIL) {
+                root = replacement;
+            } else if (node == leftOf(parentOf(node))) {
+                setLong(parentOf(node), LEFT, replacement);
+            } else {
+                setLong(parentOf(node), RIGHT, replacement);
+            }
+            if (!isRed(node)) {
+                fixTreeAfterDelete(replacement);
+            }
+        } else if (parentOf(node) == NIL) {
+            root = NIL;
+        } else {
+            // No children, so the node itself acts as the phantom replacement during the fix-up.
+            if (!isRed(node)) {
+                fixTreeAfterDelete(node);
+            }
+            long parent = parentOf(node);
+            if (parent != NIL) {
+                if (node == leftOf(parent)) {
+                    setLong(parent, LEFT, NIL);
+                } else if (node == rightOf(parent)) {
+                    setLong(parent, RIGHT, NIL);
+                }
+            }
+        }
+
+        setLong(node, LEFT, freeNodes);
+        freeNodes = node;
+    }
+
+    /**
+     * Fixes the tree after a black node got removed.
+     * It does so by rotating the tree and making color changes until the missing black is absorbed.
+     * @param currentNode The node that took the place of the removed one.
+     */
+    private void fixTreeAfterDelete(long currentNode) {
+        while (currentNode != root && !isRed(currentNode)) {
+            if (currentNode == leftOf(parentOf(currentNode))) {
+                long siblingNode = rightOf(parentOf(currentNode));
+                if (isRed(siblingNode)) {
+                    setColor(siblingNode, BLACK);
+                    setColor(parentOf(currentNode), RED);
+                    rotateLeft(parentOf(currentNode));
+                    siblingNode = rightOf(parentOf(currentNode));
+                }
+                if (!isRed(leftOf(siblingNode)) && !isRed(rightOf(siblingNode))) {
+                    setColor(siblingNode, RED);
+                    currentNode = parentOf(currentNode);
+                } else {
+                    if (!isRed(rightOf(siblingNode))) {
+                        setColor(leftOf(siblingNode), BLACK);
+                        setColor(siblingNode, RED);
+                        rotateRight(siblingNode);
+                        siblingNode = rightOf(parentOf(currentNode));
+                    }
+                    setColor(siblingNode, isRed(parentOf(currentNode)));
+                    setColor(parentOf(currentNode), BLACK);
+                    setColor(rightOf(siblingNode), BLACK);
+                    rotateLeft(parentOf(currentNode));
+                    currentNode = root;
+                }
+            } else {
+                long siblingNode = leftOf(parentOf(currentNode));
+                if (isRed(siblingNode)) {
+                    setColor(siblingNode, BLACK);
+                    setColor(parentOf(currentNode), RED);
+                    rotateRight(parentOf(currentNode));
+                    siblingNode = leftOf(parentOf(currentNode));
+                }
+                if (!isRed(rightOf(siblingNode)) && !isRed(leftOf(siblingNode))) {
+                    setColor(siblingNode, RED);
+                    currentNode = parentOf(currentNode);
+                } else {
+                    if (!isRed(leftOf(siblingNode))) {
+                        setColor(rightOf(siblingNode), BLACK);
+                        setColor(siblingNode, RED);
+                        rotateLeft(siblingNode);
+                        siblingNode = leftOf(parentOf(currentNode));
+                    }
+                    setColor(siblingNode, isRed(parentOf(currentNode)));
+                    setColor(parentOf(currentNode), BLACK);
+                    setColor(leftOf(siblingNode), BLACK);
+                    rotateRight(parentOf(currentNode));
+                    currentNode = root;
+                }
+            }
+        }
+        setColor(currentNode, BLACK);
+    }
+
+    /**
+     * Rotates the tree left.
+     * @param pivotNode The address of the node to rotate.
+     */
+    private void rotateLeft(long pivotNode) {
+        if (pivotNode != NIL) {
+            long rightChild = rightOf(pivotNode);
+            setLong(pivotNode, RIGHT, leftOf(rightChild));
+            if (leftOf(rightChild) != NIL) {
+                setLong(leftOf(rightChild), PARENT, pivotNode);
+            }
+            setLong(rightChild, PARENT, parentOf(pivotNode));
+            if (parentOf(pivotNode) == NIL) {
+                root = rightChild;
+            } else if (pivotNode == leftOf(parentOf(pivotNode))) {
+                setLong(parentOf(pivotNode), LEFT, rightChild);
+            } else {
+                setLong(parentOf(pivotNode), RIGHT, rightChild);
+            }
+            setLong(rightChild, LEFT, pivotNode);
+            setLong(pivotNode, PARENT, rightChild);
+        }
+    }
+
+    /**
+     * Rotates the tree right.
+     * @param pivotNode The address of the node to rotate.
+     */
+    private void rotateRight(long pivotNode) {
+        if (pivotNode != NIL) {
+            long leftChild = leftOf(pivotNode);
+            setLong(pivotNode, LEFT, rightOf(leftChild));
+            if (rightOf(leftChild) != NIL) {
+                setLong(rightOf(leftChild), PARENT, pivotNode);
+            }
+            setLong(leftChild, PARENT, parentOf(pivotNode));
+            if (parentOf(pivotNode) == NIL) {
+                root = leftChild;
+            } else if (pivotNode == rightOf(parentOf(pivotNode))) {
+                setLong(parentOf(pivotNode), RIGHT, leftChild);
+            } else {
+                setLong(parentOf(pivotNode), LEFT, leftChild);
+            }
+            setLong(leftChild, RIGHT, pivotNode);
+            setLong(pivotNode, PARENT, leftChild);
+        }
+    }
+
+    /**
+     * Returns the parent of the given node.
+     * @param node The address of the node.
+     * @return The address of the parent, or NIL if the node is the root.
+     */
+    private long parentOf(long node) {
+        return (node == NIL ? NIL : getLong(node, PARENT));
+    }
+
+    /**
+     * Returns the left child of the given node.
+     * @param node The address of the node.
+     * @return The address of the left child, or NIL if there is none.
+     */
+    private long leftOf(long node) {
+        return (node == NIL ? NIL : getLong(node, LEFT));
+    }
+
+    /**
+     * Returns the right child of the given node.
+     * @param node The address of the node.
+     * @return The address of the right child, or NIL if there is none.
+     */
+    private long rightOf(long node) {
+        return (node == NIL ? NIL : getLong(node, RIGHT));
+    }
+
+    /**
+     * Returns whether the given node is red.
+     * @param node The address of the node.
+     * @return True if the node is red, false otherwise.
+     */
+    private boolean isRed(long node) {
+        return (node != NIL && nodes.chunk(node).get(Arena.offset(node) + COLOR) != 0);
+    }
+
+    /**
+     * Sets the color of the given node.
+     * @param node  The address of the node.
+     * @param color The color to set.
+     */
+    private void setColor(long node, boolean color) {
+        if (node != NIL) {
+            nodes.chunk(node).put(Arena.offset(node) + COLOR, (byte) (color ? 1 : 0));
+        }
+    }
+
+    /**
+     * Reads an address field of the given node.
+     * @param node  The address of the node.
+     * @param field The offset of the field in the node record.
+     * @return The value of the field.
+     */
+    private long getLong(long node, int field) {
+        return nodes.chunk(node).getLong(Arena.offset(node) + field);
+    }
+
+    /**
+     * Writes an address field of the given node.
+     * @param node  The address of the node.
+     * @param field The offset of the field in the node record.
+     * @param value The value to write.
+     */
+    private void setLong(long node, int field, long value) {
+        nodes.chunk(node).putLong(Arena.offset(node) + field, value);
+    }
+
+    /**
+     * Bump allocator over a growing list of direct memory chunks.
+     * An address holds the chunk index in its upper 32 bits and the offset inside the chunk in its lower 32 bits,
+     * so the total size is not limited by the 2 GB a single buffer can hold.
+     */
+    private static final class Arena {
+        private final int chunkSize;
+        private ByteBuffer[] chunks = new ByteBuffer[0];
+        private ByteBuffer current;
+        private long reserved;
+
+        Arena(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        /**
+         * Reserves the given number of bytes. Records never span chunks; a record bigger than
+         * the chunk size gets a chunk of its own.
+         * @param size The number of bytes needed.
+         * @return The address of the reserved bytes.
+         */
+        long allocate(int size) {
+            if (current == null || current.remaining() < size) {
+                current = ByteBuffer.allocateDirect(Math.max(chunkSize, size));
+                chunks = Arrays.copyOf(chunks, chunks.length + 1);
+                chunks[chunks.length - 1] = current;
+                reserved += current.capacity();
+            }
+            int offset = current.position();
+            current.position(offset + size);
+            return ((long) (chunks.length - 1) << 32) | offset;
+        }
+
+        ByteBuffer chunk(long address) {
+            return chunks[(int) (address >>> 32)];
+        }
+
+        static int offset(long address) {
+            return (int) address;
+        }
+
+        long reservedBytes() {
+            return reserved;
+        }
+    }
+}
@@ -0,0 +1,558 @@
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Red-black tree whose nodes live in parallel arrays instead of one object per node.
+ * A node is an int index into the key, value, left, right and parent arrays, and its color is a bit in a bitset.
+ * That makes a node three ints, two array slots and a bit, about 20 bytes, instead of an object with a header,
+ * five references and a flag, and neighbouring nodes share cache lines. Removed nodes go on a free list
+ * and are reused by later puts, so steady put and remove traffic allocates nothing but the keys and values.
+ * The arrays double when they are full and never shrink.
+ */
+public class PooledThreadSafeTree implements SortedByteMap {
+
+    private static final boolean RED = true;
+    private static final boolean BLACK = false;
+
+    /** Index used for missing nodes, the pooled counterpart of null. */
+    private static final int NIL = -1;
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private final ReentrantReadWriteLock lock;
+    private final ReentrantReadWriteLock.WriteLock writeLock;
+    private final ReentrantReadWriteLock.ReadLock readLock;
+    private byte[][] keys;
+    private byte[][] values;
+    private int[] left;
+    private int[] right;
+    private int[] parent;
+    private long[] colors;
+    private int root = NIL;
+    private int freeNodes = NIL;
+    private int allocated;
+    private int size;
+
+    /**
+     * Default constructor. Creates a new tree and its own internal lock.
+     */
+    public PooledThreadSafeTree() {
+        this(new ReentrantReadWriteLock());
+    }
+
+    /**
+     * Constructor for when an external lock is provided.
+     * This allows for coordinating operations on this tree with other data structures.
+     * @param lock The external lock to use.
+     */
+    public PooledThreadSafeTree(ReentrantReadWriteLock lock) {
+        this(lock, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor that also sets how many nodes the arrays hold before they first grow.
+     * @param lock            The external lock to use.
+     * @param initialCapacity The initial number of node slots.
+     */
+    public PooledThreadSafeTree(ReentrantReadWriteLock lock, int initialCapacity) {
+        if (lock == null) {
+            throw new IllegalArgumentException("Provide a non-null lock for the tree.");
+        }
+        if (initialCapacity < 1) {
+            throw new IllegalArgumentException("The initial capacity has to be positive.");
+        }
+        this.lock = lock;
+        this.readLock = lock.readLock();
+        this.writeLock = lock.writeLock();
+        this.keys = new byte[initialCapacity][];
+        this.values = new byte[initialCapacity][];
+        this.left = new int[initialCapacity];
+        this.right = new int[initialCapacity];
+        this.parent = new int[initialCapacity];
+        this.colors = new long[(initialCapacity + 63) >>> 6];
+    }
+
+    /**
+     * Retrieves the value associated with the given key.
+     * @param key The key to search for.
+     * @return The value associated with the key, or null if the key is not found.
+     */
+    @Override
+    public byte[] get(byte[] key) {
+        if (key == null) return null;
+
+        readLock.lock();
+        try {
+            int node = findNode(key);
+            return node == NIL ? null : values[node];
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Inserts or updates a key-value pair in the tree.
+     * @param key   The key to insert or update.
+     * @param value The value to associate with the key.
+     */
+    @Override
+    public void put(byte[] key, byte[] value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("Null values or keys not allowed in the tree.");
+        }
+
+        writeLock.lock();
+        try {
+            if (root == NIL) {
+                root = newNode(key, value, NIL, BLACK);
+                return;
+            }
+
+            int helper = root;
+            int parentNode = NIL;
+            int compare = 0;
+
+            while (helper != NIL) {
+                parentNode = helper;
+                compare = Arrays.compare(key, keys[helper]);
+                if (compare < 0) {
+                    helper = left[helper];
+                } else if (compare > 0) {
+                    helper = right[helper];
+                } else {
+                    values[helper] = value;
+                    return;
+                }
+            }
+
+            int newNode = newNode(key, value, parentNode, RED);
+            if (compare < 0) {
+                left[parentNode] = newNode;
+            } else {
+                right[parentNode] = newNode;
+            }
+
+            fixTree(newNode);
+
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the given key from the tree. The node's slot is recycled by later puts.
+     * @param key The key to remove.
+     * @return The value that was associated with the key, or null if the key was not found.
+     */
+    @Override
+    public byte[] remove(byte[] key) {
+        if (key == null) return null;
+
+        writeLock.lock();
+        try {
+            int node = findNode(key);
+            if (node == NIL) {
+                return null;
+            }
+            byte[] oldValue = values[node];
+            deleteNode(node);
+            return oldValue;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Visits every key-value pair in ascending key order.
+     * The whole walk happens under the read lock, so the action must not write to this tree.
+     * @param action The action to run for every pair.
+     */
+    public void forEach(BiConsumer<byte[], byte[]> action) {
+        if (action == null) {
+            throw new NullPointerException("Provide a non-null action.");
+        }
+
+        readLock.lock();
+        try {
+            int node = root;
+            if (node != NIL) {
+                while (left[node] != NIL) {
+                    node = left[node];
+                }
+            }
+            for (; node != NIL; node = successor(node)) {
+                action.accept(keys[node], values[node]);
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of key-value pairs in the tree.
+     * @return The number of pairs.
+     */
+    public int size() {
+        readLock.lock();
+        try {
+            return size;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of node slots the arrays currently have room for.
+     * @return The capacity in nodes.
+     */
+    public int capacity() {
+        readLock.lock();
+        try {
+            return keys.length;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Finds the node holding the given key. Must be called while holding a lock.
+     * @param key The key to search for.
+     * @return The index of the node with the key, or NIL if the key is not found.
+     */
+    private int findNode(byte[] key) {
+        int helper = root;
+        while (helper != NIL) {
+            int compare = Arrays.compare(key, keys[helper]);
+            if (compare < 0) {
+                helper = left[helper];
+            } else if (compare > 0) {
+                helper = right[helper];
+            } else {
+                return helper;
+            }
+        }
+        return NIL;
+    }
+
+    /**
+     * Takes a slot for a new node, from the free list if it has one, otherwise the next unused one,
+     * growing the arrays when they are full.
+     * @param key        The key of the node.
+     * @param value      The value of the node.
+     * @param parentNode The index of the parent.
+     * @param color      The color of the node.
+     * @return The index of the new node.
+     */
+    private int newNode(byte[] key, byte[] value, int parentNode, boolean color) {
+        int node;
+        if (freeNodes != NIL) {
+            node = freeNodes;
+            freeNodes = left[node];
+        } else {
+            if (allocated == keys.length) {
+                grow();
+            }
+            node = allocated++;
+        }
+        keys[node] = key;
+        values[node] = value;
+        left[node] = NIL;
+        right[node] = NIL;
+        parent[node] = parentNode;
+        setColor(node, color);
+        size++;
+        return node;
+    }
+
+    /**
+     * Doubles the size of all node arrays.
+     */
+    private void grow() {
+        int capacity = keys.length * 2;
+        if (capacity < 0) {
+            throw new IllegalStateException("The tree can't hold more nodes.");
+        }
+        keys = Arrays.copyOf(keys, capacity);
+        values = Arrays.copyOf(values, capacity);
+        left = Arrays.copyOf(left, capacity);
+        right = Arrays.copyOf(right, capacity);
+        parent = Arrays.copyOf(parent, capacity);
+        colors = Arrays.copyOf(colors, (capacity + 63) >>> 6);
+    }
+
+    /**
+     * Fixes the tree after an insertion or update.
+     * It does so by rotating the tree and making color changes to restore RB properties.
+     * @param currentNode The node to start at.
+     */
+    private void fixTree(int currentNode) {
+        while (currentNode != root && isRed(parentOf(currentNode))) {
+            if (parentOf(currentNode) == leftOf(parentOf(parentOf(currentNode)))) {
+                int uncleNode = rightOf(parentOf(parentOf(currentNode)));
+                if (isRed(uncleNode)) {
+                    setColor(parentOf(currentNode), BLACK);
+                    setColor(uncleNode, BLACK);
+                    setColor(parentOf(parentOf(currentNode)), RED);
+                    currentNode = parentOf(parentOf(currentNode));
+                } else {
+                    if (currentNode == rightOf(parentOf(currentNode))) {
+                        currentNode = parentOf(currentNode);
+                        rotateLeft(currentNode);
+                    }
+                    setColor(parentOf(currentNode), BLACK);
+                    setColor(parentOf(parentOf(currentNode)), RED);
+                    rotateRight(parentOf(parentOf(currentNode)));
+                }
+            } else {
+                int uncleNode = leftOf(parentOf(parentOf(currentNode)));
+                if (isRed(uncleNode)) {
+                    setColor(parentOf(currentNode), BLACK);
+                    setColor(uncleNode, BLACK);
+                    setColor(parentOf(parentOf(currentNode)), RED);
+                    currentNode = parentOf(parentOf(currentNode));
+                } else {
+                    if (currentNode == leftOf(parentOf(currentNode))) {
+                        currentNode = parentOf(currentNode);
+                        rotateRight(currentNode);
+                    }
+                    setColor(parentOf(currentNode), BLACK);
+                    setColor(parentOf(parentOf(currentNode)), RED);
+                    rotateLeft(parentOf(parentOf(currentNode)));
+                }
+            }
+        }
+        setColor(root, BLACK);
+    }
+
+    /**
+     * Unlinks the given node from the tree, restores the RB properties and puts the slot on the free list.
+     * A node with two children takes over the key and value of its successor, which is then unlinked instead.
+     * @param node The index of the node to delete.
+     */
+    private void deleteNode(int node) {
+        if (left[node] != NIL && right[node] != NIL) {
+            int next = successor(node);
+            keys[node] = keys[next];
+            values[node] = values[next];
+            node = next;
+        }
+
+        int replacement = (left[node] != NIL ? left[node] : right[node]);
+        if (replacement != NIL) {
+            parent[replacement] = parent[node];
+            if (parent[node] == NIL) {
+                root = replacement;
+            } else if (node == left[parent[node]]) {
+                left[parent[node]] = replacement;
+            } else {
+                right[parent[node]] = replacement;
+            }
+            if (!isRed(node)) {
+                fixTreeAfterDelete(replacement);
+            }
+        } else if (parent[node] == NIL) {
+            root = NIL;
+        } else {
+            // No children, so the node itself acts as the phantom replacement during the fix-up.
+            if (!isRed(node)) {
+                fixTreeAfterDelete(node);
+            }
+            int parentNode = parent[node];
+            if (parentNode != NIL) {
+                if (node == left[parentNode]) {
+                    left[parentNode] = NIL;
+                } else if (node == right[parentNode]) {
+                    right[parentNode] = NIL;
+                }
+            }
+        }
+
+        // Drop the references, so a recycled slot doesn't keep the removed key and value alive.
+        keys[node] = null;
+        values[node] = null;
+        left[node] = freeNodes;
+        freeNodes = node;
+        size--;
+    }
+
+    /**
+     * Fixes the tree after a black node got removed.
+     * It does so by rotating the tree and making color changes until the missing black is absorbed.
+     * @param currentNode The node that took the place of the removed one.
+     */
+    private void fixTreeAfterDelete(int currentNode) {
+        while (currentNode != root && !isRed(currentNode)) {
+            if (currentNode == leftOf(parentOf(currentNode))) {
+                int siblingNode = rightOf(parentOf(currentNode));
+                if (isRed(siblingNode)) {
+                    setColor(siblingNode, BLACK);
+                    setColor(parentOf(currentNode), RED);
+                    rotateLeft(parentOf(currentNode));
+                    siblingNode = rightOf(parentOf(currentNode));
+                }
+                if (!isRed(leftOf(siblingNode)) && !isRed(rightOf(siblingNode))) {
+                    setColor(siblingNode, RED);
+                    currentNode = parentOf(currentNode);
+                } else {
+                    if (!isRed(rightOf(siblingNode))) {
+                        setColor(leftOf(siblingNode), BLACK);
+                        setColor(siblingNode, RED);
+                        rotateRight(siblingNode);
+                        siblingNode = rightOf(parentOf(currentNode));
+                    }
+                    setColor(siblingNode, isRed(parentOf(currentNode)));
+                    setColor(parentOf(currentNode), BLACK);
+                    setColor(rightOf(siblingNode), BLACK);
+                    rotateLeft(parentOf(currentNode));
+                    currentNode = root;
+                }
+            } else {
+                int siblingNode = leftOf(parentOf(currentNode));
+                if (isRed(siblingNode)) {
+                    setColor(siblingNode, BLACK);
+                    setColor(parentOf(currentNode), RED);
+                    rotateRight(parentOf(currentNode));
+                    siblingNode = leftOf(parentOf(currentNode));
+                }
+                if (!isRed(rightOf(siblingNode)) && !isRed(leftOf(siblingNode))) {
+                    setColor(siblingNode, RED);
+                    currentNode = parentOf(currentNode);
+                } else {
+                    if (!isRed(leftOf(siblingNode))) {
+                        setColor(rightOf(siblingNode), BLACK);
+                        setColor(siblingNode, RED);
+                        rotateLeft(siblingNode);
+                        siblingNode = leftOf(parentOf(currentNode));
+                    }
+                    setColor(siblingNode, isRed(parentOf(currentNode)));
+                    setColor(parentOf(currentNode), BLACK);
+                    setColor(leftOf(siblingNode), BLACK);
+                    rotateRight(parentOf(currentNode));
+                    currentNode = root;
+                }
+            }
+        }
+        setColor(currentNode, BLACK);
+    }
+
+    /**
+     * Rotates the tree left.
+     * @param pivotNode The index of the node to rotate.
+     */
+    private void rotateLeft(int pivotNode) {
+        if (pivotNode != NIL) {
+            int rightChild = right[pivotNode];
+            right[pivotNode] = left[rightChild];
+            if (left[rightChild] != NIL) {
+                parent[left[rightChild]] = pivotNode;
+            }
+            parent[rightChild] = parent[pivotNode];
+            if (parent[pivotNode] == NIL) {
+                root = rightChild;
+            } else if (pivotNode == left[parent[pivotNode]]) {
+                left[parent[pivotNode]] = rightChild;
+            } else {
+                right[parent[pivotNode]] = rightChild;
+            }
+            left[rightChild] = pivotNode;
+            parent[pivotNode] = rightChild;
+        }
+    }
+
+    /**
+     * Rotates the tree right.
+     * @param pivotNode The index of the node to rotate.
+     */
+    private void rotateRight(int pivotNode) {
+        if (pivotNode != NIL) {
+            int leftChild = left[pivotNode];
+            left[pivotNode] = right[leftChild];
+            if (right[leftChild] != NIL) {
+                parent[right[leftChild]] = pivotNode;
+            }
+            parent[leftChild] = parent[pivotNode];
+            if (parent[pivotNode] == NIL) {
+                root = leftChild;
+            } else if (pivotNode == right[parent[pivotNode]]) {
+                right[parent[pivotNode]] = leftChild;
+            } else {
+                left[parent[pivotNode]] = leftChild;
+            }
+            right[leftChild] = pivotNode;
+            parent[pivotNode] = leftChild;
+        }
+    }
+
+    /**
+     * Returns the in-order successor of the given node, following parent links.
+     * @param node The index of the node to start from.
+     * @return The index of the node with the next larger key, or NIL if there is none.
+     */
+    private int successor(int node) {
+        if (right[node] != NIL) {
+            int helper = right[node];
+            while (left[helper] != NIL) {
+                helper = left[helper];
+            }
+            return helper;
+        }
+        int helper = parent[node];
+        while (helper != NIL && node == right[helper]) {
+            node = helper;
+            helper = parent[helper];
+        }
+        return helper;
+    }
+
+    /**
+     * Returns the parent of the given node.
+     * @param node The index of the node.
+     * @return The index of the parent, or NIL if the node is the root.
+     */
+    private int parentOf(int node) {
+        return (node == NIL ? NIL : parent[node]);
+    }
+
+    /**
+     * Returns the left child of the given node.
+     * @param node The index of the node.
+     * @return The index of the left child, or NIL if there is none.
+     */
+    private int leftOf(int node) {
+        return (node == NIL ? NIL : left[node]);
+    }
+
+    /**
+     * Returns the right child of the given node.
+     * @param node The index of the node.
+     * @return The index of the right child, or NIL if there is none.
+     */
+    private int rightOf(int node) {
+        return (node == NIL ? NIL : right[node]);
+    }
+
+    /**
+     * Returns whether the given node is red.
+     * @param node The index of the node.
+     * @return True if the node is red, false otherwise.
+     */
+    private boolean isRed(int node) {
+        return (node != NIL && (colors[node >>> 6] & (1L << node)) != 0);
+    }
+
+    /**
+     * Sets the color of the given node.
+     * @param node  The index of the node.
+     * @param color The color to set.
+     */
+    private void setColor(int node, boolean color) {
+        if (node != NIL) {
+            if (color == RED) {
+                colors[node >>> 6] |= 1L << node;
+            } else {
+                colors[node >>> 6] &= ~(1L << node);
+            }
+        }
+    }
+}
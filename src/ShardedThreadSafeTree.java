@@ -0,0 +1,152 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+public class ShardedThreadSafeTree implements SortedByteMap {
+
+    private final byte[][] splitPoints;
+    private final ThreadSafeTree[] shards;
+
+    /**
+     * Creates a tree whose key space is range-partitioned into independently locked shards.
+     * Shard i holds the keys from splitPoints[i - 1] (inclusive) up to splitPoints[i] (exclusive),
+     * so n split points give n + 1 shards. Writers hitting different shards don't block each other.
+     * @param splitPoints The boundaries between the shards, in strictly ascending order.
+     */
+    public ShardedThreadSafeTree(byte[]... splitPoints) {
+        if (splitPoints == null) {
+            throw new IllegalArgumentException("Provide non-null split points for the tree.");
+        }
+        this.splitPoints = new byte[splitPoints.length][];
+        for (int i = 0; i < splitPoints.length; i++) {
+            if (splitPoints[i] == null) {
+                throw new IllegalArgumentException("Split points must not be null.");
+            }
+            if (i > 0 && Arrays.compare(splitPoints[i - 1], splitPoints[i]) >= 0) {
+                throw new IllegalArgumentException("Split points must be in strictly ascending order.");
+            }
+            this.splitPoints[i] = splitPoints[i].clone();
+        }
+
+        this.shards = new ThreadSafeTree[splitPoints.length + 1];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new ThreadSafeTree();
+        }
+    }
+
+    /**
+     * Creates a sharded tree with split points picked from a sample of the expected keys.
+     * The sample is sorted and cut at evenly spaced quantiles, so every shard gets about the same share of it.
+     * Duplicate quantiles are dropped, which means a skewed sample can produce fewer shards than requested.
+     * @param sampleKeys The sample of keys to pick split points from.
+     * @param shardCount The number of shards wanted.
+     * @return A new, empty sharded tree.
+     */
+    public static ShardedThreadSafeTree fromSample(Collection<byte[]> sampleKeys, int shardCount) {
+        if (sampleKeys == null) {
+            throw new IllegalArgumentException("Provide a non-null sample of keys.");
+        }
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("The tree needs at least one shard.");
+        }
+
+        List<byte[]> sorted = new ArrayList<>(sampleKeys.size());
+        for (byte[] key : sampleKeys) {
+            if (key != null) {
+                sorted.add(key);
+            }
+        }
+        sorted.sort(Arrays::compare);
+
+        // The smallest sampled key is never used as a split point, the first shard would stay empty.
+        List<byte[]> splitPoints = new ArrayList<>();
+        byte[] previous = sorted.isEmpty() ? null : sorted.get(0);
+        for (int i = 1; i < shardCount && previous != null; i++) {
+            byte[] candidate = sorted.get((int) ((long) i * sorted.size() / shardCount));
+            if (Arrays.compare(previous, candidate) < 0) {
+                splitPoints.add(candidate);
+                previous = candidate;
+            }
+        }
+        return new ShardedThreadSafeTree(splitPoints.toArray(new byte[0][]));
+    }
+
+    /**
+     * Retrieves the value associated with the given key.
+     * @param key The key to search for.
+     * @return The value associated with the key, or null if the key is not found.
+     */
+    @Override
+    public byte[] get(byte[] key) {
+        if (key == null) return null;
+        return shardFor(key).get(key);
+    }
+
+    /**
+     * Inserts or updates a key-value pair. Only the shard owning the key gets locked.
+     * @param key   The key to insert or update.
+     * @param value The value to associate with the key.
+     */
+    @Override
+    public void put(byte[] key, byte[] value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("Null values or keys not allowed in the tree.");
+        }
+        shardFor(key).put(key, value);
+    }
+
+    /**
+     * Removes the given key. Only the shard owning the key gets locked.
+     * @param key The key to remove.
+     * @return The value that was associated with the key, or null if the key was not found.
+     */
+    @Override
+    public byte[] remove(byte[] key) {
+        if (key == null) return null;
+        return shardFor(key).remove(key);
+    }
+
+    /**
+     * Visits every key-value pair in ascending key order by walking the shards one after another.
+     * Each shard is read-locked only while it is being walked, so the result is ordered,
+     * but not a point-in-time view across shards.
+     * @param action The action to run for every pair.
+     */
+    public void forEach(BiConsumer<byte[], byte[]> action) {
+        if (action == null) {
+            throw new NullPointerException("Provide a non-null action.");
+        }
+        for (ThreadSafeTree shard : shards) {
+            shard.forEach(action);
+        }
+    }
+
+    /**
+     * Returns the number of shards.
+     * @return The number of shards, which is the number of split points plus one.
+     */
+    public int shardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Finds the shard owning the given key by binary searching the split points.
+     * @param key The key to look up.
+     * @return The shard responsible for the key.
+     */
+    private ThreadSafeTree shardFor(byte[] key) {
+        int low = 0;
+        int high = splitPoints.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (Arrays.compare(key, splitPoints[middle]) >= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return shards[low];
+    }
+}
@@ -0,0 +1,82 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.BiConsumer;
+
+public class SkipListTree implements SortedByteMap {
+
+    private final ConcurrentSkipListMap<byte[], byte[]> map = new ConcurrentSkipListMap<>(Arrays::compare);
+
+    /**
+     * Retrieves the value associated with the given key, without taking any lock.
+     * @param key The key to search for.
+     * @return The value associated with the key, or null if the key is not found.
+     */
+    @Override
+    public byte[] get(byte[] key) {
+        if (key == null) return null;
+        return map.get(key);
+    }
+
+    /**
+     * Inserts or updates a key-value pair. The new node is linked into each level of its tower with a CAS,
+     * so writers never block each other.
+     * @param key   The key to insert or update.
+     * @param value The value to associate with the key.
+     */
+    @Override
+    public void put(byte[] key, byte[] value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("Null values or keys not allowed in the tree.");
+        }
+        map.put(key, value);
+    }
+
+    /**
+     * Removes the given key. The node is marked first and unlinked with CAS afterwards.
+     * @param key The key to remove.
+     * @return The value that was associated with the key, or null if the key was not found.
+     */
+    @Override
+    public byte[] remove(byte[] key) {
+        if (key == null) return null;
+        return map.remove(key);
+    }
+
+    /**
+     * Returns an ordered iterator over the key-value pairs in the given range.
+     * Unlike ThreadSafeTree.scan, which returns a point-in-time view, this view is weakly consistent: it reflects
+     * the writes that happen while it is being consumed for keys it hasn't passed yet, but never fails or blocks
+     * because of them.
+     * @param fromKey The lowest key to include, or null to start at the first key.
+     * @param toKey   The key to stop before (exclusive), or null to run until the last key.
+     * @return An iterator over the pairs in ascending key order.
+     */
+    public Iterator<Map.Entry<byte[], byte[]>> scan(byte[] fromKey, byte[] toKey) {
+        Map<byte[], byte[]> range;
+        if (fromKey == null && toKey == null) {
+            range = map;
+        } else if (fromKey == null) {
+            range = map.headMap(toKey);
+        } else if (toKey == null) {
+            range = map.tailMap(fromKey);
+        } else if (Arrays.compare(fromKey, toKey) >= 0) {
+            range = Map.of();
+        } else {
+            range = map.subMap(fromKey, toKey);
+        }
+        return range.entrySet().iterator();
+    }
+
+    /**
+     * Visits every key-value pair in ascending key order, weakly consistent like scan.
+     * @param action The action to run for every pair.
+     */
+    public void forEach(BiConsumer<byte[], byte[]> action) {
+        if (action == null) {
+            throw new NullPointerException("Provide a non-null action.");
+        }
+        map.forEach(action);
+    }
+}
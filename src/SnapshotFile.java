@@ -0,0 +1,411 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * A point-in-time snapshot of a tree on disk, memory-mapped for reading.
+ * The file holds all pairs in ascending key order, followed by a sparse index and a footer:
+ * <pre>
+ * [magic][version][key order]
+ * data:   [key length][key][value length][value] for every pair
+ * index:  [data offset][key length][key] for every INDEX_INTERVAL-th pair
+ * footer: [index offset][index entries][pair count][magic]
+ * </pre>
+ * Lookups binary search the index, which is kept on the heap, and then scan at most INDEX_INTERVAL pairs
+ * straight from the mapped file. That makes the snapshot usable for reads right away, while toTree or
+ * loadAsync bulk-build the in-memory tree from it.
+ * The key order is either ThreadSafeTree.SIGNED or ThreadSafeTree.UNSIGNED. Version 1 files have no key order
+ * field and are always signed.
+ */
+public class SnapshotFile {
+
+    private static final int MAGIC = 0x54535453;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 12;
+    private static final int VERSION_1_HEADER_SIZE = 8;
+    private static final int ORDER_SIGNED = 0;
+    private static final int ORDER_UNSIGNED = 1;
+    private static final int FOOTER_SIZE = 24;
+    private static final int INDEX_INTERVAL = 64;
+    private static final long REGION_SIZE = 1L << 30;
+
+    private final MappedByteBuffer[] regions;
+    private final boolean unsigned;
+    private final long dataStart;
+    private final long dataEnd;
+    private final long count;
+    private final long[] indexOffsets;
+    private final byte[][] indexKeys;
+
+    /**
+     * Maps the snapshot at the given path and reads its index.
+     * The file is mapped in regions of 1 GB, so snapshots bigger than a single buffer work as well.
+     * @param path The snapshot file.
+     * @throws IOException If the file can't be read or isn't a valid snapshot.
+     */
+    public SnapshotFile(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < VERSION_1_HEADER_SIZE + FOOTER_SIZE) {
+                throw new IOException("Not a snapshot file, it is too short: " + path);
+            }
+            int regionCount = (int) ((length + REGION_SIZE - 1) / REGION_SIZE);
+            this.regions = new MappedByteBuffer[regionCount];
+            for (int i = 0; i < regionCount; i++) {
+                long start = i * REGION_SIZE;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, length - start));
+            }
+
+            long footer = length - FOOTER_SIZE;
+            if (getInt(0) != MAGIC || getInt(footer + 20) != MAGIC) {
+                throw new IOException("Not a snapshot file, the magic number is missing: " + path);
+            }
+            int version = getInt(4);
+            if (version == 1) {
+                this.unsigned = false;
+                this.dataStart = VERSION_1_HEADER_SIZE;
+            } else if (version == VERSION) {
+                int order = getInt(8);
+                if (order != ORDER_SIGNED && order != ORDER_UNSIGNED) {
+                    throw new IOException("Unknown key order " + order + " in snapshot: " + path);
+                }
+                this.unsigned = (order == ORDER_UNSIGNED);
+                this.dataStart = HEADER_SIZE;
+            } else {
+                throw new IOException("Unsupported snapshot version " + version + ": " + path);
+            }
+            this.dataEnd = getLong(footer);
+            int indexEntries = getInt(footer + 8);
+            this.count = getLong(footer + 12);
+            if (dataEnd < dataStart || dataEnd > footer || indexEntries < 0 || count < 0) {
+                throw new IOException("Corrupted snapshot footer: " + path);
+            }
+
+            // Every index entry takes at least 12 bytes, which also keeps a corrupt count from allocating too much.
+            if (indexEntries > (footer - dataEnd) / 12 || indexEntries != (count + INDEX_INTERVAL - 1) / INDEX_INTERVAL) {
+                throw new IOException("Corrupted snapshot footer: " + path);
+            }
+
+            this.indexOffsets = new long[indexEntries];
+            this.indexKeys = new byte[indexEntries][];
+            long position = dataEnd;
+            for (int i = 0; i < indexEntries; i++) {
+                if (position + 12 > footer) {
+                    throw new IOException("Corrupted snapshot index entry " + i + ": " + path);
+                }
+                long offset = getLong(position);
+                int keyLength = getInt(position + 8);
+                // The offsets have to point into the data in ascending order, the first one at its very start.
+                boolean ordered = (i == 0 ? offset == dataStart : offset > indexOffsets[i - 1]);
+                if (!ordered || offset >= dataEnd || keyLength < 0 || keyLength > footer - position - 12) {
+                    throw new IOException("Corrupted snapshot index entry " + i + ": " + path);
+                }
+                indexOffsets[i] = offset;
+                indexKeys[i] = getBytes(position + 12, keyLength);
+                position += 12 + keyLength;
+            }
+            if (position != footer) {
+                throw new IOException("Corrupted snapshot index: " + path);
+            }
+        }
+    }
+
+    /**
+     * Writes the given pairs as a snapshot file in signed key order.
+     * @param path    The snapshot file to write.
+     * @param entries The pairs in strictly ascending signed key order.
+     * @throws IOException If the file can't be written.
+     */
+    public static void write(Path path, Iterator<Map.Entry<byte[], byte[]>> entries) throws IOException {
+        write(path, entries, ThreadSafeTree.SIGNED);
+    }
+
+    /**
+     * Writes the given pairs as a snapshot file. The file is written to a new temporary file next to the target
+     * and moved in place once it is complete and forced to disk, so a crash never leaves a half-written snapshot
+     * behind, and concurrent writers to the same path each move in a complete file of their own.
+     * @param path    The snapshot file to write.
+     * @param entries The pairs in strictly ascending key order.
+     * @param order   The key order of the pairs, ThreadSafeTree.SIGNED or ThreadSafeTree.UNSIGNED.
+     * @throws IOException If the file can't be written.
+     */
+    public static void write(Path path, Iterator<Map.Entry<byte[], byte[]>> entries, Comparator<byte[]> order)
+            throws IOException {
+        if (order != ThreadSafeTree.SIGNED && order != ThreadSafeTree.UNSIGNED) {
+            throw new IllegalArgumentException("Snapshots can only be written in signed or unsigned key order.");
+        }
+        // Every writer gets a file of its own, so concurrent snapshots to the same path can't mix up their data.
+        Path temporary = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName() + ".", ".tmp");
+        List<Long> indexOffsets = new ArrayList<>();
+        List<byte[]> indexKeys = new ArrayList<>();
+
+        try {
+            try (FileOutputStream file = new FileOutputStream(temporary.toFile());
+                 DataOutputStream output = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeInt(order == ThreadSafeTree.UNSIGNED ? ORDER_UNSIGNED : ORDER_SIGNED);
+
+                long position = HEADER_SIZE;
+                long count = 0;
+                while (entries.hasNext()) {
+                    Map.Entry<byte[], byte[]> entry = entries.next();
+                    byte[] key = entry.getKey();
+                    byte[] value = entry.getValue();
+                    if (count % INDEX_INTERVAL == 0) {
+                        indexOffsets.add(position);
+                        indexKeys.add(key);
+                    }
+                    output.writeInt(key.length);
+                    output.write(key);
+                    output.writeInt(value.length);
+                    output.write(value);
+                    position += 8 + key.length + value.length;
+                    count++;
+                }
+
+                for (int i = 0; i < indexKeys.size(); i++) {
+                    output.writeLong(indexOffsets.get(i));
+                    output.writeInt(indexKeys.get(i).length);
+                    output.write(indexKeys.get(i));
+                }
+
+                output.writeLong(position);
+                output.writeInt(indexKeys.size());
+                output.writeLong(count);
+                output.writeInt(MAGIC);
+                output.flush();
+                file.getFD().sync();
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            // Only left over if writing failed, the move takes it away otherwise.
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Looks up a key straight in the mapped file.
+     * @param key The key to search for.
+     * @return The value associated with the key, or null if the key is not found.
+     * @throws UncheckedIOException If a pair on the way is corrupted.
+     */
+    public byte[] get(byte[] key) {
+        if (key == null) return null;
+
+        int low = 0;
+        int high = indexKeys.length - 1;
+        int block = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int compare = (unsigned ? Arrays.compareUnsigned(indexKeys[middle], key) : Arrays.compare(indexKeys[middle], key));
+            if (compare <= 0) {
+                block = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (block < 0) {
+            return null;
+        }
+
+        long position = indexOffsets[block];
+        long end = (block + 1 < indexOffsets.length ? indexOffsets[block + 1] : dataEnd);
+        while (position < end) {
+            long next = pairEnd(position, end);
+            int keyLength = getInt(position);
+            int compare = compareAt(key, position + 4, keyLength);
+            if (compare == 0) {
+                return getBytes(position + 8 + keyLength, (int) (next - position - 8 - keyLength));
+            }
+            if (compare < 0) {
+                return null;
+            }
+            position = next;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the key order of the snapshot.
+     * @return ThreadSafeTree.SIGNED or ThreadSafeTree.UNSIGNED.
+     */
+    public Comparator<byte[]> comparator() {
+        return (unsigned ? ThreadSafeTree.UNSIGNED : ThreadSafeTree.SIGNED);
+    }
+
+    /**
+     * Returns the number of pairs in the snapshot.
+     * @return The number of pairs.
+     */
+    public long size() {
+        return count;
+    }
+
+    /**
+     * Returns an iterator over all pairs of the snapshot in ascending key order.
+     * Its next method throws UncheckedIOException when it runs into a corrupted pair.
+     * @return The iterator.
+     */
+    public Iterator<Map.Entry<byte[], byte[]>> iterator() {
+        return new Iterator<>() {
+            private long position = dataStart;
+
+            @Override
+            public boolean hasNext() {
+                return position < dataEnd;
+            }
+
+            @Override
+            public Map.Entry<byte[], byte[]> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                long next = pairEnd(position, dataEnd);
+                int keyLength = getInt(position);
+                byte[] key = getBytes(position + 4, keyLength);
+                byte[] value = getBytes(position + 8 + keyLength, (int) (next - position - 8 - keyLength));
+                position = next;
+                return new AbstractMap.SimpleImmutableEntry<>(key, value);
+            }
+        };
+    }
+
+    /**
+     * Bulk-builds an in-memory tree from the snapshot in linear time.
+     * @return A new tree holding all pairs of the snapshot.
+     * @throws UncheckedIOException     If a pair in the file is corrupted.
+     * @throws IllegalArgumentException If the pairs aren't sorted or don't match the count in the footer.
+     */
+    public ThreadSafeTree toTree() {
+        if (count > Integer.MAX_VALUE) {
+            throw new IllegalStateException("The snapshot holds too many pairs for a single tree: " + count);
+        }
+        return ThreadSafeTree.fromSorted(iterator(), (int) count, comparator());
+    }
+
+    /**
+     * Bulk-builds the in-memory tree in the background. Until the future completes,
+     * reads can be served by get on this snapshot, and switched over to the tree afterwards.
+     * @param executor The executor to build the tree on.
+     * @return A future completing with the tree.
+     */
+    public CompletableFuture<ThreadSafeTree> loadAsync(Executor executor) {
+        return CompletableFuture.supplyAsync(this::toTree, executor);
+    }
+
+    /**
+     * Checks that the lengths of the pair at the given position keep it within the given end, so a corrupt length
+     * can't make a read run off the data. Lookups and iteration can't throw IOException, so they get it unchecked.
+     * @param position The position of the pair.
+     * @param end      The position the pair must end at or before.
+     * @return The position right after the pair.
+     * @throws UncheckedIOException If the pair doesn't fit.
+     */
+    private long pairEnd(long position, long end) {
+        if (position + 8 <= end) {
+            int keyLength = getInt(position);
+            if (keyLength >= 0 && keyLength <= end - position - 8) {
+                int valueLength = getInt(position + 4 + keyLength);
+                if (valueLength >= 0 && valueLength <= end - position - 8 - keyLength) {
+                    return position + 8 + keyLength + valueLength;
+                }
+            }
+        }
+        throw new UncheckedIOException(new IOException("Corrupted snapshot pair at offset " + position + "."));
+    }
+
+    /**
+     * Compares a key with a key stored in the file, without copying it out.
+     * @param key      The key to compare.
+     * @param position The position of the stored key.
+     * @param length   The length of the stored key.
+     * @return A negative number, zero or a positive number if the key is smaller, equal or larger.
+     */
+    private int compareAt(byte[] key, long position, int length) {
+        int common = Math.min(key.length, length);
+        for (int i = 0; i < common; i++) {
+            byte stored = getByte(position + i);
+            int compare = (unsigned ? Byte.compareUnsigned(key[i], stored) : Byte.compare(key[i], stored));
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return key.length - length;
+    }
+
+    /**
+     * Reads a single byte.
+     * @param position The position in the file.
+     * @return The byte at the position.
+     */
+    private byte getByte(long position) {
+        return regions[(int) (position / REGION_SIZE)].get((int) (position % REGION_SIZE));
+    }
+
+    /**
+     * Reads an int, which may straddle two regions.
+     * @param position The position in the file.
+     * @return The int at the position.
+     */
+    private int getInt(long position) {
+        int offset = (int) (position % REGION_SIZE);
+        MappedByteBuffer region = regions[(int) (position / REGION_SIZE)];
+        if (offset + 4 <= region.limit()) {
+            return region.getInt(offset);
+        }
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (getByte(position + i) & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Reads a long, which may straddle two regions.
+     * @param position The position in the file.
+     * @return The long at the position.
+     */
+    private long getLong(long position) {
+        return ((long) getInt(position) << 32) | (getInt(position + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Copies bytes out of the file, which may straddle two regions.
+     * @param position The position in the file.
+     * @param length   The number of bytes.
+     * @return The bytes.
+     */
+    private byte[] getBytes(long position, int length) {
+        byte[] bytes = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            long current = position + copied;
+            int offset = (int) (current % REGION_SIZE);
+            MappedByteBuffer region = regions[(int) (current / REGION_SIZE)];
+            int chunk = Math.min(length - copied, region.limit() - offset);
+            region.get(offset, bytes, copied, chunk);
+            copied += chunk;
+        }
+        return bytes;
+    }
+}
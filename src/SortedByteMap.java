@@ -0,0 +1,29 @@
+/**
+ * The get/put/remove contract shared by all thread-safe ordered maps over byte[] keys in this project.
+ * The key order is defined by the implementation's comparator: signed like Arrays.compare unless the
+ * implementation lets you pick another one, as ThreadSafeTree does. Null keys and values are not allowed.
+ * Use TreeEngine to pick an implementation at construction time.
+ */
+public interface SortedByteMap {
+
+    /**
+     * Retrieves the value associated with the given key.
+     * @param key The key to search for.
+     * @return The value associated with the key, or null if the key is not found.
+     */
+    byte[] get(byte[] key);
+
+    /**
+     * Inserts or updates a key-value pair.
+     * @param key   The key to insert or update.
+     * @param value The value to associate with the key.
+     */
+    void put(byte[] key, byte[] value);
+
+    /**
+     * Removes the given key.
+     * @param key The key to remove.
+     * @return The value that was associated with the key, or null if the key was not found.
+     */
+    byte[] remove(byte[] key);
+}
@@ -1,128 +1,1397 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.ref.Cleaner;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-public class ThreadSafeTree {
+public class ThreadSafeTree implements SortedByteMap {
+
+    /**
+     * The default key order: lexicographic with bytes compared as signed, like Arrays.compare.
+     */
+    public static final Comparator<byte[]> SIGNED = Arrays::compare;
+
+    /**
+     * Lexicographic order with bytes compared as unsigned, like Arrays.compareUnsigned.
+     * This is the order of big-endian encoded numbers, UTF-8 strings and most LSM and SSTable formats.
+     */
+    public static final Comparator<byte[]> UNSIGNED = Arrays::compareUnsigned;
 
     private static final boolean RED = true;
     private static final boolean BLACK = false;
+    private static final int PREFIX_BYTES = 8;
+    // How many keys a scan steps over per lock acquisition.
+    private static final int SCAN_CHUNK_SIZE = 256;
+    // Deregisters the scans that got dropped before they were exhausted or closed.
+    private static final Cleaner SCAN_CLEANER = Cleaner.create();
+    private static final VarHandle LONG_BIG_ENDIAN = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
 
     private final ReentrantReadWriteLock lock;
-    private final ReentrantReadWriteLock.WriteLock writeLock;
-    private final ReentrantReadWriteLock.ReadLock readLock;
+    private final StampedLock stampedLock;
+    private final Lock writeLock;
+    private final Lock readLock;
+    private final Comparator<byte[]> comparator;
+    private final boolean unsigned;
+    private final Comparator<byte[]> customComparator;
     private Node root;
+    private WriteAheadLog log;
+    // Every change bumps the version, and a scan reads the tree as of the version it was opened at.
+    // While scans are open, a pair one of them may still need is moved into the history when it gets
+    // overwritten or removed. The history is only touched under the lock, the open scans are registered
+    // under the read lock, so concurrently, with how many scans are open at each version.
+    private long version;
+    private final ConcurrentSkipListMap<Long, Integer> openScans = new ConcurrentSkipListMap<>();
+    private final TreeMap<byte[], Retired> history;
+    private final ArrayDeque<Retired> retiredInOrder = new ArrayDeque<>();
 
     private class Node {
-        byte[] key;
+        // A node keeps its key for life, deleteNode relinks nodes instead of moving keys between them.
+        // Being final, the key and its prefix are safely published along with the node, and always match.
+        final byte[] key;
+        final long prefix;
         byte[] value;
         Node left;
         Node right;
         Node parent;
         boolean color;
+        // The number of nodes in the subtree rooted here, this one included.
+        int size = 1;
+        // The version of the change that wrote the current value.
+        long version;
 
         Node(byte[] key, byte[] value, Node parent, boolean color) {
             this.key = key;
+            this.prefix = prefixOf(key);
             this.value = value;
             this.parent = parent;
             this.color = color;
+            this.version = ThreadSafeTree.this.version;
+        }
+    }
+
+    /**
+     * A pair that got overwritten or removed while a scan that may need it was open.
+     * It was the current pair from version from up to, but not including, version until.
+     */
+    private static final class Retired {
+        final byte[] key;
+        final byte[] value;
+        final long from;
+        final long until;
+        // The pair the key had before this one, if it is still kept.
+        Retired older;
+
+        Retired(byte[] key, byte[] value, long from, long until) {
+            this.key = key;
+            this.value = value;
+            this.from = from;
+            this.until = until;
+        }
+    }
+
+    /**
+     * Reusable result of the navigation methods, so repeated lookups don't allocate an entry each time.
+     * Like with get, the arrays are the ones stored in the tree and must not be modified.
+     */
+    public static final class EntryHolder {
+        private byte[] key;
+        private byte[] value;
+
+        /**
+         * Returns the key of the last pair found.
+         * @return The key, or null if the last lookup found nothing.
+         */
+        public byte[] key() {
+            return key;
+        }
+
+        /**
+         * Returns the value of the last pair found.
+         * @return The value, or null if the last lookup found nothing.
+         */
+        public byte[] value() {
+            return value;
+        }
+
+        private boolean set(byte[] key, byte[] value) {
+            this.key = key;
+            this.value = value;
+            return key != null;
         }
     }
 
     /**
      * Default constructor. Creates a new tree and its own internal lock.
      */
-    public ThreadSafeTree() {
-        this.lock = new ReentrantReadWriteLock();
-        this.readLock = lock.readLock();
-        this.writeLock = lock.writeLock();
+    public ThreadSafeTree() {
+        this(new ReentrantReadWriteLock());
+    }
+
+    /**
+     * Constructor for a tree with its own internal lock and the given key order.
+     * @param comparator The key order: SIGNED, UNSIGNED or any other comparator.
+     */
+    public ThreadSafeTree(Comparator<byte[]> comparator) {
+        this(new ReentrantReadWriteLock(), comparator);
+    }
+
+    /**
+     * Constructor for when an external lock is provided.
+     * This allows for coordinating operations on this tree with other data structures.
+     * @param lock The external lock to use.
+     */
+    public ThreadSafeTree(ReentrantReadWriteLock lock) {
+        this(lock, SIGNED);
+    }
+
+    /**
+     * Constructor for when an external lock and a key order are provided.
+     * @param lock       The external lock to use.
+     * @param comparator The key order: SIGNED, UNSIGNED or any other comparator.
+     */
+    public ThreadSafeTree(ReentrantReadWriteLock lock, Comparator<byte[]> comparator) {
+        if (lock == null) {
+            throw new IllegalArgumentException("Provide a non-null lock for the tree.");
+        }
+        if (comparator == null) {
+            throw new IllegalArgumentException("Provide a non-null comparator for the tree.");
+        }
+        this.lock = lock;
+        this.stampedLock = null;
+        this.readLock = lock.readLock();
+        this.writeLock = lock.writeLock();
+        this.comparator = comparator;
+        this.unsigned = (comparator == UNSIGNED);
+        this.customComparator = (comparator == SIGNED || comparator == UNSIGNED ? null : comparator);
+        this.history = new TreeMap<>(comparator);
+    }
+
+    /**
+     * Constructor for the optimistic read mode.
+     * Lookups descend the tree without acquiring the lock and validate the stamp afterwards,
+     * only falling back to the read lock if a write happened in the meantime.
+     * Writes still take the write lock, so the write side behaves exactly as before.
+     * @param lock The stamped lock to use, can be shared with other data structures.
+     */
+    public ThreadSafeTree(StampedLock lock) {
+        this(lock, SIGNED);
+    }
+
+    /**
+     * Constructor for the optimistic read mode with the given key order.
+     * A custom comparator gets called on keys during optimistic descents too, so it must not have side effects.
+     * @param lock       The stamped lock to use, can be shared with other data structures.
+     * @param comparator The key order: SIGNED, UNSIGNED or any other comparator.
+     */
+    public ThreadSafeTree(StampedLock lock, Comparator<byte[]> comparator) {
+        if (lock == null) {
+            throw new IllegalArgumentException("Provide a non-null lock for the tree.");
+        }
+        if (comparator == null) {
+            throw new IllegalArgumentException("Provide a non-null comparator for the tree.");
+        }
+        this.lock = null;
+        this.stampedLock = lock;
+        this.readLock = lock.asReadLock();
+        this.writeLock = lock.asWriteLock();
+        this.comparator = comparator;
+        this.unsigned = (comparator == UNSIGNED);
+        this.customComparator = (comparator == SIGNED || comparator == UNSIGNED ? null : comparator);
+        this.history = new TreeMap<>(comparator);
+    }
+
+    /**
+     * Creates a tree with its own stamped lock, so that reads are optimistic.
+     * This is the mode to pick for read-mostly workloads on many cores.
+     * @return A new, empty tree in optimistic read mode.
+     */
+    public static ThreadSafeTree withOptimisticReads() {
+        return new ThreadSafeTree(new StampedLock());
+    }
+
+    /**
+     * Builds a tree from key-value pairs sorted by strictly ascending key, in linear time.
+     * The tree is built bottom-up and perfectly balanced, all levels are black except for the
+     * deepest one when it isn't full, which is red. No comparisons or rotations are needed beyond
+     * checking that the input is really sorted.
+     * @param entries The pairs in strictly ascending key order.
+     * @param size    The number of pairs the iterator returns.
+     * @return A new tree holding the pairs.
+     */
+    public static ThreadSafeTree fromSorted(Iterator<? extends Map.Entry<byte[], byte[]>> entries, int size) {
+        return fromSorted(entries, size, SIGNED);
+    }
+
+    /**
+     * Builds a tree with the given key order from key-value pairs sorted by strictly ascending key in that order,
+     * in linear time.
+     * @param entries    The pairs in strictly ascending key order.
+     * @param size       The number of pairs the iterator returns.
+     * @param comparator The key order of the tree and of the input.
+     * @return A new tree holding the pairs.
+     */
+    public static ThreadSafeTree fromSorted(Iterator<? extends Map.Entry<byte[], byte[]>> entries, int size,
+                                            Comparator<byte[]> comparator) {
+        if (entries == null) {
+            throw new NullPointerException("Provide a non-null iterator of entries.");
+        }
+        if (size < 0) {
+            throw new IllegalArgumentException("The size can't be negative.");
+        }
+
+        ThreadSafeTree tree = new ThreadSafeTree(comparator);
+        SortedInput input = new SortedInput(entries, comparator);
+        tree.root = tree.buildFromSorted(0, 0, size - 1, redLevel(size), input);
+        if (entries.hasNext()) {
+            throw new IllegalArgumentException("The iterator has more entries than the given size.");
+        }
+        return tree;
+    }
+
+    /**
+     * Builds a tree from a stream of key-value pairs sorted by strictly ascending key, in linear time.
+     * The stream is collected first to learn its size.
+     * @param entries The pairs in strictly ascending key order.
+     * @return A new tree holding the pairs.
+     */
+    public static ThreadSafeTree fromSorted(Stream<? extends Map.Entry<byte[], byte[]>> entries) {
+        return fromSorted(entries, SIGNED);
+    }
+
+    /**
+     * Builds a tree with the given key order from a stream of key-value pairs sorted by strictly ascending key
+     * in that order, in linear time. The stream is collected first to learn its size.
+     * @param entries    The pairs in strictly ascending key order.
+     * @param comparator The key order of the tree and of the input.
+     * @return A new tree holding the pairs.
+     */
+    public static ThreadSafeTree fromSorted(Stream<? extends Map.Entry<byte[], byte[]>> entries,
+                                            Comparator<byte[]> comparator) {
+        if (entries == null) {
+            throw new NullPointerException("Provide a non-null stream of entries.");
+        }
+        List<? extends Map.Entry<byte[], byte[]>> collected = entries.collect(Collectors.toList());
+        return fromSorted(collected.iterator(), collected.size(), comparator);
+    }
+
+    /**
+     * Loads a snapshot written by snapshot(Path) into a new tree, bulk-building it in linear time.
+     * Use SnapshotFile directly to serve reads from the mapped file while the tree is being built.
+     * @param path The snapshot file.
+     * @return A new tree holding the pairs of the snapshot.
+     * @throws IOException If the file can't be read or isn't a valid snapshot.
+     */
+    public static ThreadSafeTree loadSnapshot(Path path) throws IOException {
+        SnapshotFile snapshot = new SnapshotFile(path);
+        try {
+            return snapshot.toTree();
+        } catch (UncheckedIOException | IllegalArgumentException e) {
+            throw new IOException("Corrupted snapshot: " + path, e);
+        }
+    }
+
+    /**
+     * Retrieves the value associated with the given key.
+     * @param key The key to search for.
+     * @return The value associated with the key, or null if the key is not found.
+     */
+    @Override
+    public byte[] get(byte[] key) {
+        if (key == null) return null;
+
+        // Nodes get linked in with plain writes, so an optimistic descent may see a node before its other
+        // fields, or a rotation half done. Only a node's key and prefix are final and always seen right.
+        // Whatever goes wrong because of that fails validation or throws, and like the StampedLock javadoc
+        // advises, an exception counts as a failed validation: the lookup runs again under the read lock,
+        // where a genuine exception is thrown again. The other optimistic reads do the same.
+        if (stampedLock != null) {
+            long stamp = stampedLock.tryOptimisticRead();
+            if (stamp != 0) {
+                try {
+                    byte[] value = getOptimistic(key, stamp);
+                    if (stampedLock.validate(stamp)) {
+                        return value;
+                    }
+                } catch (RuntimeException e) {
+                    // Inconsistent state seen without the lock, retried under the read lock below.
+                }
+            }
+        }
+
+        readLock.lock();
+        try {
+            Node node = findNode(key);
+            return node == null ? null : node.value;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Descends the tree without holding any lock.
+     * The stamp is validated at every level, so a concurrent rotation can't make us loop forever.
+     * The result is only meaningful if the caller validates the stamp once more afterwards,
+     * and the caller has to treat an exception like a failed validation.
+     * @param key   The key to search for.
+     * @param stamp The optimistic stamp obtained before the descent.
+     * @return The value seen for the key, or null if it was not found (or the stamp got invalidated).
+     */
+    private byte[] getOptimistic(byte[] key, long stamp) {
+        long prefix = prefixOf(key);
+        Node helper = root;
+        while (helper != null) {
+            int compare = compareKeys(key, prefix, helper);
+            if (compare < 0) {
+                helper = helper.left;
+            } else if (compare > 0) {
+                helper = helper.right;
+            } else {
+                return helper.value;
+            }
+            if (!stampedLock.validate(stamp)) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the node holding the given key. Must be called while holding a lock.
+     * @param key The key to search for.
+     * @return The node with the key, or null if the key is not found.
+     */
+    private Node findNode(byte[] key) {
+        long prefix = prefixOf(key);
+        Node helper = root;
+        while (helper != null) {
+            int compare = compareKeys(key, prefix, helper);
+            if (compare < 0) {
+                helper = helper.left;
+            } else if (compare > 0) {
+                helper = helper.right;
+            } else {
+                return helper;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Retrieves the value associated with the key between the buffer's position and limit.
+     * For the SIGNED and UNSIGNED orders the key is compared in place, without copying it out of the buffer,
+     * so a lookup with a direct buffer from the network doesn't allocate. The buffer's position isn't changed.
+     * @param key The key to search for.
+     * @return The value associated with the key, or null if the key is not found.
+     */
+    public byte[] get(ByteBuffer key) {
+        if (key == null) return null;
+        if (customComparator != null) {
+            return get(toArray(key));
+        }
+
+        long prefix = prefixOf(key);
+        if (stampedLock != null) {
+            long stamp = stampedLock.tryOptimisticRead();
+            if (stamp != 0) {
+                try {
+                    Node node = findNode(key, prefix, stamp);
+                    byte[] value = (node == null ? null : node.value);
+                    if (stampedLock.validate(stamp)) {
+                        return value;
+                    }
+                } catch (RuntimeException e) {
+                    // Inconsistent state seen without the lock, retried under the read lock below.
+                }
+            }
+        }
+
+        readLock.lock();
+        try {
+            Node node = findNode(key, prefix, 0);
+            return node == null ? null : node.value;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Looks up the key between the buffer's position and limit, and copies its value into the given buffer.
+     * Together with get(ByteBuffer) that keeps the whole lookup free of allocations.
+     * @param key The key to search for.
+     * @param out The buffer to write the value to, at its position, which is advanced past the value.
+     * @return The length of the value, or -1 if the key is not found and nothing was written.
+     * @throws java.nio.BufferOverflowException If the value doesn't fit in the remaining space of out,
+     *                                          in which case nothing was written.
+     */
+    public int get(ByteBuffer key, ByteBuffer out) {
+        if (out == null) {
+            throw new NullPointerException("Provide a non-null buffer for the value.");
+        }
+        byte[] value = get(key);
+        if (value == null) {
+            return -1;
+        }
+        out.put(value);
+        return value.length;
+    }
+
+    /**
+     * Inserts or updates a key-value pair given as the bytes between the buffers' positions and limits.
+     * The tree keeps its keys and values as arrays, so the value is copied. The key is only copied
+     * if it isn't in the tree yet. Either way it takes a single descent comparing in place, which finds the node
+     * to update or ends where the new node is attached.
+     * The buffers' positions aren't changed.
+     * @param key   The key to insert or update.
+     * @param value The value to associate with the key.
+     */
+    public void put(ByteBuffer key, ByteBuffer value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("Null values or keys not allowed in the tree.");
+        }
+        byte[] valueBytes = toArray(value);
+        if (customComparator != null) {
+            put(toArray(key), valueBytes);
+            return;
+        }
+
+        long prefix = prefixOf(key);
+        WriteAheadLog log;
+        long logPosition = 0;
+        writeLock.lock();
+        try {
+            // A single descent: it either finds the node to update, or ends where the new node gets attached.
+            Node helper = root;
+            Node parent = null;
+            int compare = 0;
+            while (helper != null) {
+                compare = compareKeys(key, prefix, helper);
+                if (compare == 0) {
+                    break;
+                }
+                parent = helper;
+                helper = (compare < 0 ? helper.left : helper.right);
+            }
+
+            byte[] keyBytes = (helper == null ? toArray(key) : helper.key);
+            log = this.log;
+            if (log != null) {
+                logPosition = log.appendPut(keyBytes, valueBytes);
+            }
+            beginChange();
+            if (helper == null) {
+                attach(keyBytes, valueBytes, parent, compare);
+            } else {
+                setValue(helper, valueBytes);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        if (log != null) {
+            log.commit(logPosition);
+        }
+    }
+
+    /**
+     * Finds the node holding the key in the given buffer, comparing it in place. Only for the built-in orders.
+     * @param key    The key to search for.
+     * @param prefix The prefix of the key, from prefixOf.
+     * @param stamp  The optimistic stamp to validate at every level, or 0 if a lock is held.
+     * @return The node with the key, or null if the key is not found (or the stamp got invalidated).
+     */
+    private Node findNode(ByteBuffer key, long prefix, long stamp) {
+        Node helper = root;
+        while (helper != null) {
+            int compare = compareKeys(key, prefix, helper);
+            if (compare < 0) {
+                helper = helper.left;
+            } else if (compare > 0) {
+                helper = helper.right;
+            } else {
+                return helper;
+            }
+            if (stamp != 0 && !stampedLock.validate(stamp)) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Inserts or updates a key-value pair in the tree.
+     * @param key   The key to insert or update.
+     * @param value The value to associate with the key.
+     */
+    @Override
+    public void put(byte[] key, byte[] value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("Null values or keys not allowed in the tree.");
+        }
+
+        WriteAheadLog log;
+        long logPosition = 0;
+        writeLock.lock();
+        try {
+            log = this.log;
+            if (log != null) {
+                logPosition = log.appendPut(key, value);
+            }
+            beginChange();
+            insert(key, value, root);
+        } finally {
+            writeLock.unlock();
+        }
+        if (log != null) {
+            log.commit(logPosition);
+        }
+    }
+
+    /**
+     * Inserts or updates a batch of key-value pairs under a single write lock acquisition.
+     * The whole batch is checked for null keys and values first, so a bad entry leaves the tree untouched.
+     * @param entries The pairs to insert or update, in any order.
+     * @throws IllegalArgumentException If a write-ahead log is attached and the batch is too large for a single write.
+     */
+    public void putAll(List<Map.Entry<byte[], byte[]>> entries) {
+        checkEntries(entries);
+
+        WriteAheadLog log;
+        long logPosition = 0;
+        writeLock.lock();
+        try {
+            log = this.log;
+            if (log != null) {
+                logPosition = log.appendPuts(entries);
+            }
+            beginChange();
+            for (Map.Entry<byte[], byte[]> entry : entries) {
+                insert(entry.getKey(), entry.getValue(), root);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        if (log != null) {
+            log.commit(logPosition);
+        }
+    }
+
+    /**
+     * Inserts or updates a batch of key-value pairs sorted by ascending key under a single write lock acquisition.
+     * The node touched by the previous entry is used as a finger: the descent for the next entry starts
+     * from the lowest ancestor of the finger whose range still covers the key, instead of from the root.
+     * An entry that is out of order is still inserted correctly, it just descends from the root.
+     * @param entries The pairs to insert or update, sorted by ascending key.
+     * @throws IllegalArgumentException If a write-ahead log is attached and the batch is too large for a single write.
+     */
+    public void putAllSorted(List<Map.Entry<byte[], byte[]>> entries) {
+        checkEntries(entries);
+
+        WriteAheadLog log;
+        long logPosition = 0;
+        writeLock.lock();
+        try {
+            log = this.log;
+            if (log != null) {
+                logPosition = log.appendPuts(entries);
+            }
+            beginChange();
+            Node finger = null;
+            for (Map.Entry<byte[], byte[]> entry : entries) {
+                byte[] key = entry.getKey();
+                Node start = root;
+                if (finger != null && comparator.compare(finger.key, key) <= 0) {
+                    start = fingerStart(finger, key);
+                }
+                finger = insert(key, entry.getValue(), start);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        if (log != null) {
+            log.commit(logPosition);
+        }
+    }
+
+    /**
+     * Removes the given key from the tree.
+     * In optimistic read mode a key that isn't there is detected without taking the write lock at all.
+     * @param key The key to remove.
+     * @return The value that was associated with the key, or null if the key was not found.
+     */
+    @Override
+    public byte[] remove(byte[] key) {
+        if (key == null) return null;
+
+        if (stampedLock != null) {
+            long stamp = stampedLock.tryOptimisticRead();
+            try {
+                if (stamp != 0 && getOptimistic(key, stamp) == null && stampedLock.validate(stamp)) {
+                    return null;
+                }
+            } catch (RuntimeException e) {
+                // Inconsistent state seen without the lock, the write lock below decides.
+            }
+        }
+
+        WriteAheadLog log;
+        long logPosition = 0;
+        byte[] oldValue;
+        writeLock.lock();
+        try {
+            Node node = findNode(key);
+            if (node == null) {
+                return null;
+            }
+            log = this.log;
+            if (log != null) {
+                logPosition = log.appendRemove(key);
+            }
+            oldValue = node.value;
+            beginChange();
+            deleteNode(node);
+        } finally {
+            writeLock.unlock();
+        }
+        if (log != null) {
+            log.commit(logPosition);
+        }
+        return oldValue;
+    }
+
+    /**
+     * Inserts a pair only if the key isn't in the tree yet, in a single descent under one write lock hold.
+     * @param key   The key to insert.
+     * @param value The value to associate with the key.
+     * @return The value already associated with the key, or null if the pair was inserted.
+     */
+    public byte[] putIfAbsent(byte[] key, byte[] value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("Null values or keys not allowed in the tree.");
+        }
+        return update(key, oldValue -> oldValue != null ? oldValue : value, true);
+    }
+
+    /**
+     * Replaces the value of a key only if it currently has the expected value, compared by content.
+     * @param key      The key to update.
+     * @param expected The value the key must have now.
+     * @param newValue The value to associate with the key instead.
+     * @return True if the value was replaced.
+     */
+    public boolean replace(byte[] key, byte[] expected, byte[] newValue) {
+        if (key == null || expected == null || newValue == null) {
+            throw new NullPointerException("Null values or keys not allowed in the tree.");
+        }
+        byte[] oldValue = update(key, current -> Arrays.equals(current, expected) ? newValue : current, true);
+        return Arrays.equals(oldValue, expected);
+    }
+
+    /**
+     * Computes a new value for a key from its current one, like Map.compute, under one write lock hold.
+     * The function runs while the write lock is held, so it must be quick and must not use this tree.
+     * If it throws, the tree is left unchanged.
+     * @param key      The key to update.
+     * @param function Maps the key and its current value, or null if it has none, to the new value,
+     *                 or to null to remove the key.
+     * @return The new value, or null if the key is not in the tree afterwards.
+     */
+    public byte[] compute(byte[] key, BiFunction<byte[], byte[], byte[]> function) {
+        if (key == null) {
+            throw new NullPointerException("Null values or keys not allowed in the tree.");
+        }
+        if (function == null) {
+            throw new NullPointerException("Provide a non-null function.");
+        }
+        return update(key, oldValue -> function.apply(key, oldValue), false);
+    }
+
+    /**
+     * Computes a value for a key only if it isn't in the tree yet, like Map.computeIfAbsent.
+     * The function runs while the write lock is held, see compute.
+     * @param key      The key to look up or insert.
+     * @param function Maps the key to the value to insert, or to null to insert nothing.
+     * @return The value associated with the key afterwards, or null if there is none.
+     */
+    public byte[] computeIfAbsent(byte[] key, Function<byte[], byte[]> function) {
+        if (key == null) {
+            throw new NullPointerException("Null values or keys not allowed in the tree.");
+        }
+        if (function == null) {
+            throw new NullPointerException("Provide a non-null function.");
+        }
+        return update(key, oldValue -> oldValue != null ? oldValue : function.apply(key), false);
+    }
+
+    /**
+     * Inserts a value for a key, or combines it with the current one, like Map.merge. This is the one for counters.
+     * The function runs while the write lock is held, see compute.
+     * @param key      The key to insert or update.
+     * @param value    The value to insert if the key isn't in the tree yet.
+     * @param function Combines the current value and the given one into the new value, or into null to remove the key.
+     * @return The new value, or null if the key was removed.
+     */
+    public byte[] merge(byte[] key, byte[] value, BiFunction<byte[], byte[], byte[]> function) {
+        if (key == null || value == null) {
+            throw new NullPointerException("Null values or keys not allowed in the tree.");
+        }
+        if (function == null) {
+            throw new NullPointerException("Provide a non-null function.");
+        }
+        return update(key, oldValue -> oldValue == null ? value : function.apply(oldValue, value), false);
+    }
+
+    /**
+     * Attaches a write-ahead log to the tree. From then on every put and remove is appended to the log
+     * before it is applied, and forced to disk according to the log's sync policy before the call returns.
+     * The log only covers changes made after it got attached, so it should be attached to an empty tree,
+     * or to one that was just recovered from the same log.
+     * @param log The log to attach, or null to detach the current one.
+     */
+    public void setWriteAheadLog(WriteAheadLog log) {
+        writeLock.lock();
+        try {
+            this.log = log;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns an ordered iterator over the key-value pairs in the given range, as they were when scan was called.
+     * The iterator doesn't hold the lock while it is consumed. It steps over the range in chunks of SCAN_CHUNK_SIZE
+     * keys, each in one pass over the parent links under the read lock, and lets go of the lock in between,
+     * so writers wait for one chunk at most, however long the range is and however slowly it is consumed.
+     * Still, the whole iteration is a point-in-time view: every change gets a version, and while the iterator is
+     * open, the pairs that get overwritten or removed after it was opened are kept aside for it. So it returns
+     * the value every key had at its version, including keys removed since, and skips keys inserted since.
+     * The price is the memory for those pairs, which the next write frees once no open scan needs them anymore.
+     * An iterator closes itself when it is exhausted. One that isn't run to the end should be closed,
+     * otherwise its pairs are only freed after it got garbage collected.
+     * Chunks are always collected under the read lock, in optimistic read mode too, because of the kept pairs.
+     * The returned arrays are the ones stored in the tree, just like with get, so they must not be modified.
+     * @param fromKey The lowest key to include, or null to start at the first key.
+     * @param toKey   The key to stop before (exclusive), or null to run until the last key.
+     * @return An iterator over the pairs in ascending key order.
+     */
+    public ScanIterator scan(byte[] fromKey, byte[] toKey) {
+        return new ScanIterator(fromKey, toKey);
+    }
+
+    /**
+     * Writes a point-in-time snapshot of the tree to the given file, see SnapshotFile for the format.
+     * The pairs are streamed to the file in order straight from a scan, so the read lock is only held for one chunk
+     * at a time and never while writing to disk, and only a chunk of references is kept on the heap. Still the file
+     * is a consistent view of the whole tree as of the call, because the scan reads a single version. The price is
+     * that the pairs overwritten or removed while the snapshot is being written are kept in memory until it is done.
+     * The key order is recorded in the file, which only works for SIGNED and UNSIGNED.
+     * @param path The file to write the snapshot to.
+     * @throws IOException If the file can't be written.
+     */
+    public void snapshot(Path path) throws IOException {
+        if (path == null) {
+            throw new NullPointerException("Provide a non-null path for the snapshot.");
+        }
+        if (customComparator != null) {
+            throw new IllegalStateException("Snapshots are only supported for the SIGNED and UNSIGNED key orders.");
+        }
+        try (ScanIterator entries = new ScanIterator(null, null)) {
+            SnapshotFile.write(path, entries, comparator);
+        }
+    }
+
+    /**
+     * Visits every key-value pair in ascending key order.
+     * The whole walk happens under the read lock, so the action must not write to this tree.
+     * @param action The action to run for every pair.
+     */
+    public void forEach(BiConsumer<byte[], byte[]> action) {
+        if (action == null) {
+            throw new NullPointerException("Provide a non-null action.");
+        }
+
+        readLock.lock();
+        try {
+            for (Node node = firstNode(); node != null; node = successor(node)) {
+                action.accept(node.key, node.value);
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of key-value pairs in the tree.
+     * @return The number of pairs.
+     */
+    public int size() {
+        readLock.lock();
+        try {
+            return sizeOf(root);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of keys smaller than the given key, which is the position the key has or would have
+     * in ascending order. Every node knows the size of its subtree, so this takes a single descent.
+     * @param key The key to rank, which doesn't have to be in the tree.
+     * @return The number of smaller keys.
+     */
+    public int rank(byte[] key) {
+        if (key == null) {
+            throw new NullPointerException("Provide a non-null key to rank.");
+        }
+
+        readLock.lock();
+        try {
+            return rankOf(key);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the pair at the given position in ascending key order, e.g. for pagination or quantiles.
+     * @param index The position, counting from 0 for the smallest key.
+     * @return The pair at that position, or null if the index is negative or not smaller than the size.
+     */
+    public Map.Entry<byte[], byte[]> select(int index) {
+        readLock.lock();
+        try {
+            Node helper = root;
+            if (index < 0 || index >= sizeOf(helper)) {
+                return null;
+            }
+            while (true) {
+                int leftSize = sizeOf(helper.left);
+                if (index < leftSize) {
+                    helper = helper.left;
+                } else if (index > leftSize) {
+                    index -= leftSize + 1;
+                    helper = helper.right;
+                } else {
+                    return new AbstractMap.SimpleImmutableEntry<>(helper.key, helper.value);
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Counts the keys in the given range with two rank descents, without visiting the pairs in it.
+     * @param fromKey The lowest key to count, or null to start at the first key.
+     * @param toKey   The key to stop before (exclusive), or null to run until the last key.
+     * @return The number of keys in the range, 0 if toKey is not greater than fromKey.
+     */
+    public int countRange(byte[] fromKey, byte[] toKey) {
+        readLock.lock();
+        try {
+            int from = (fromKey == null ? 0 : rankOf(fromKey));
+            int to = (toKey == null ? sizeOf(root) : rankOf(toKey));
+            return Math.max(0, to - from);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the pair with the greatest key less than or equal to the given key,
+     * e.g. the latest entry at or before a point in time.
+     * @param key The key to search from, which doesn't have to be in the tree.
+     * @return The pair, or null if there is none.
+     */
+    public Map.Entry<byte[], byte[]> floorEntry(byte[] key) {
+        if (key == null) return null;
+        return toEntry(navigate(key, true, true, new EntryHolder()));
+    }
+
+    /**
+     * Finds the pair with the greatest key less than or equal to the given key without allocating.
+     * @param key    The key to search from, which doesn't have to be in the tree.
+     * @param holder The holder to put the pair into. It is cleared if there is none.
+     * @return True if a pair was found.
+     */
+    public boolean floorEntry(byte[] key, EntryHolder holder) {
+        if (holder == null) {
+            throw new NullPointerException("Provide a non-null holder.");
+        }
+        if (key == null) return holder.set(null, null);
+        return navigate(key, true, true, holder) != null;
+    }
+
+    /**
+     * Returns the pair with the smallest key greater than or equal to the given key.
+     * @param key The key to search from, which doesn't have to be in the tree.
+     * @return The pair, or null if there is none.
+     */
+    public Map.Entry<byte[], byte[]> ceilingEntry(byte[] key) {
+        if (key == null) return null;
+        return toEntry(navigate(key, false, true, new EntryHolder()));
+    }
+
+    /**
+     * Finds the pair with the smallest key greater than or equal to the given key without allocating.
+     * @param key    The key to search from, which doesn't have to be in the tree.
+     * @param holder The holder to put the pair into. It is cleared if there is none.
+     * @return True if a pair was found.
+     */
+    public boolean ceilingEntry(byte[] key, EntryHolder holder) {
+        if (holder == null) {
+            throw new NullPointerException("Provide a non-null holder.");
+        }
+        if (key == null) return holder.set(null, null);
+        return navigate(key, false, true, holder) != null;
+    }
+
+    /**
+     * Returns the pair with the smallest key strictly greater than the given key.
+     * @param key The key to search from, which doesn't have to be in the tree.
+     * @return The pair, or null if there is none.
+     */
+    public Map.Entry<byte[], byte[]> higherEntry(byte[] key) {
+        if (key == null) return null;
+        return toEntry(navigate(key, false, false, new EntryHolder()));
+    }
+
+    /**
+     * Finds the pair with the smallest key strictly greater than the given key without allocating.
+     * @param key    The key to search from, which doesn't have to be in the tree.
+     * @param holder The holder to put the pair into. It is cleared if there is none.
+     * @return True if a pair was found.
+     */
+    public boolean higherEntry(byte[] key, EntryHolder holder) {
+        if (holder == null) {
+            throw new NullPointerException("Provide a non-null holder.");
+        }
+        if (key == null) return holder.set(null, null);
+        return navigate(key, false, false, holder) != null;
+    }
+
+    /**
+     * Returns the pair with the greatest key strictly less than the given key.
+     * @param key The key to search from, which doesn't have to be in the tree.
+     * @return The pair, or null if there is none.
+     */
+    public Map.Entry<byte[], byte[]> lowerEntry(byte[] key) {
+        if (key == null) return null;
+        return toEntry(navigate(key, true, false, new EntryHolder()));
+    }
+
+    /**
+     * Finds the pair with the greatest key strictly less than the given key without allocating.
+     * @param key    The key to search from, which doesn't have to be in the tree.
+     * @param holder The holder to put the pair into. It is cleared if there is none.
+     * @return True if a pair was found.
+     */
+    public boolean lowerEntry(byte[] key, EntryHolder holder) {
+        if (holder == null) {
+            throw new NullPointerException("Provide a non-null holder.");
+        }
+        if (key == null) return holder.set(null, null);
+        return navigate(key, true, false, holder) != null;
+    }
+
+    /**
+     * Returns the pair with the smallest key.
+     * @return The pair, or null if the tree is empty.
+     */
+    public Map.Entry<byte[], byte[]> firstEntry() {
+        return toEntry(navigate(null, false, true, new EntryHolder()));
+    }
+
+    /**
+     * Finds the pair with the smallest key without allocating.
+     * @param holder The holder to put the pair into. It is cleared if the tree is empty.
+     * @return True if a pair was found.
+     */
+    public boolean firstEntry(EntryHolder holder) {
+        if (holder == null) {
+            throw new NullPointerException("Provide a non-null holder.");
+        }
+        return navigate(null, false, true, holder) != null;
+    }
+
+    /**
+     * Returns the pair with the greatest key.
+     * @return The pair, or null if the tree is empty.
+     */
+    public Map.Entry<byte[], byte[]> lastEntry() {
+        return toEntry(navigate(null, true, true, new EntryHolder()));
+    }
+
+    /**
+     * Finds the pair with the greatest key without allocating.
+     * @param holder The holder to put the pair into. It is cleared if the tree is empty.
+     * @return True if a pair was found.
+     */
+    public boolean lastEntry(EntryHolder holder) {
+        if (holder == null) {
+            throw new NullPointerException("Provide a non-null holder.");
+        }
+        return navigate(null, true, true, holder) != null;
+    }
+
+    /**
+     * Returns the key order of the tree.
+     * @return The comparator, SIGNED unless another one was given on construction.
+     */
+    public Comparator<byte[]> comparator() {
+        return comparator;
+    }
+
+    /**
+     * Finds the nearest pair on one side of a key in a single descent, optimistically first in optimistic read mode.
+     * @param key       The key to search from, or null for the first or last pair.
+     * @param below     True to look for keys below the key, false for keys above it.
+     * @param inclusive True if the key itself qualifies.
+     * @param holder    The holder to put the pair into.
+     * @return The holder, or null if no pair was found, in which case the holder is cleared.
+     */
+    private EntryHolder navigate(byte[] key, boolean below, boolean inclusive, EntryHolder holder) {
+        if (stampedLock != null) {
+            long stamp = stampedLock.tryOptimisticRead();
+            if (stamp != 0) {
+                try {
+                    Node node = nearestNode(key, below, inclusive, stamp);
+                    byte[] foundKey = (node == null ? null : node.key);
+                    byte[] foundValue = (node == null ? null : node.value);
+                    if (stampedLock.validate(stamp)) {
+                        return holder.set(foundKey, foundValue) ? holder : null;
+                    }
+                } catch (RuntimeException e) {
+                    // Inconsistent state seen without the lock, retried under the read lock below.
+                }
+            }
+        }
+
+        readLock.lock();
+        try {
+            Node node = nearestNode(key, below, inclusive, 0);
+            byte[] foundKey = (node == null ? null : node.key);
+            byte[] foundValue = (node == null ? null : node.value);
+            return holder.set(foundKey, foundValue) ? holder : null;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Counts the keys smaller than the given key. Must be called while holding a lock.
+     * @param key The key to rank.
+     * @return The number of smaller keys.
+     */
+    private int rankOf(byte[] key) {
+        long prefix = prefixOf(key);
+        Node helper = root;
+        int rank = 0;
+        while (helper != null) {
+            int compare = compareKeys(key, prefix, helper);
+            if (compare < 0) {
+                helper = helper.left;
+            } else if (compare > 0) {
+                rank += sizeOf(helper.left) + 1;
+                helper = helper.right;
+            } else {
+                return rank + sizeOf(helper.left);
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * Replaces the value of a key with what the function makes of the current one, in a single descent
+     * under one write lock hold. The change is logged like a put, or like a remove if the new value is null.
+     * Returning the current value itself changes and logs nothing.
+     * @param key       The key to update.
+     * @param function  Maps the current value, or null if the key is absent, to the new value, or to null for none.
+     * @param returnOld True to return the value from before the update, false for the one after it.
+     * @return The value before or after the update.
+     */
+    private byte[] update(byte[] key, UnaryOperator<byte[]> function, boolean returnOld) {
+        WriteAheadLog log;
+        long logPosition = 0;
+        byte[] oldValue;
+        byte[] newValue;
+        writeLock.lock();
+        try {
+            long prefix = prefixOf(key);
+            Node helper = root;
+            Node parent = null;
+            int compare = 0;
+            while (helper != null) {
+                compare = compareKeys(key, prefix, helper);
+                if (compare == 0) {
+                    break;
+                }
+                parent = helper;
+                helper = (compare < 0 ? helper.left : helper.right);
+            }
+
+            oldValue = (helper == null ? null : helper.value);
+            newValue = function.apply(oldValue);
+            if (newValue == oldValue) {
+                return oldValue;
+            }
+            log = this.log;
+            if (log != null) {
+                logPosition = (newValue == null ? log.appendRemove(key) : log.appendPut(key, newValue));
+            }
+            beginChange();
+            if (newValue == null) {
+                deleteNode(helper);
+            } else if (helper != null) {
+                setValue(helper, newValue);
+            } else {
+                attach(key, newValue, parent, compare);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        if (log != null) {
+            log.commit(logPosition);
+        }
+        return returnOld ? oldValue : newValue;
+    }
+
+    /**
+     * Starts a new version for the change that is about to be made, and drops the retired pairs that no open scan
+     * needs anymore. A batch is a single change, so scans see all of it or nothing.
+     * Must be called while holding the write lock.
+     */
+    private void beginChange() {
+        version++;
+        if (retiredInOrder.isEmpty()) {
+            return;
+        }
+        Map.Entry<Long, Integer> oldest = openScans.firstEntry();
+        if (oldest == null) {
+            history.clear();
+            retiredInOrder.clear();
+            return;
+        }
+        // Pairs retire in version order, and a pair is of no use to the scans opened at or after its until version.
+        while (!retiredInOrder.isEmpty() && retiredInOrder.peekFirst().until <= oldest.getKey()) {
+            Retired retired = retiredInOrder.pollFirst();
+            // The first pair to drop is always the oldest one still kept for its key, so it is last in the chain.
+            Retired newer = history.get(retired.key);
+            if (newer == retired) {
+                history.remove(retired.key);
+            } else {
+                while (newer.older != retired) {
+                    newer = newer.older;
+                }
+                newer.older = null;
+            }
+        }
+    }
+
+    /**
+     * Overwrites the value of a node as part of the current change. Must be called while holding the write lock.
+     * @param node  The node to update.
+     * @param value The new value.
+     */
+    private void setValue(Node node, byte[] value) {
+        retire(node);
+        node.value = value;
+        node.version = version;
     }
 
     /**
-     * Constructor for when an external lock is provided.
-     * This allows for coordinating operations on this tree with other data structures.
-     * @param lock The external lock to use.
+     * Keeps the current pair of a node in the history if an open scan may still need it, because the pair is about
+     * to be overwritten or removed. A scan needs it if it was opened at or after the version the pair was written at.
+     * Must be called while holding the write lock.
+     * @param node The node whose pair is about to change.
      */
-    public ThreadSafeTree(ReentrantReadWriteLock lock) {
-        if (lock == null) {
-            throw new IllegalArgumentException("Provide a non-null lock for the tree.");
+    private void retire(Node node) {
+        Map.Entry<Long, Integer> newest = openScans.lastEntry();
+        if (newest == null || node.version > newest.getKey()) {
+            return;
         }
-        this.lock = lock;
-        this.readLock = lock.readLock();
-        this.writeLock = lock.writeLock();
+        Retired retired = new Retired(node.key, node.value, node.version, version);
+        retired.older = history.put(node.key, retired);
+        retiredInOrder.addLast(retired);
     }
 
     /**
-     * Retrieves the value associated with the given key.
-     * @param key The key to search for.
-     * @return The value associated with the key, or null if the key is not found.
+     * Returns how many overwritten or removed pairs are kept for open scans, for tests.
+     * @return The number of retired pairs in the history.
      */
-    public byte[] get(byte[] key) {
-        if (key == null) return null;
-
+    int retainedPairs() {
         readLock.lock();
         try {
-            Node helper = root;
-            while (helper != null) {
-                int compare = Arrays.compare(key, helper.key);
-                if (compare < 0) {
-                    helper = helper.left;
-                } else if (compare > 0) {
-                    helper = helper.right;
-                } else {
-                    return helper.value;
-                }
-            }
-            return null;
+            return retiredInOrder.size();
         } finally {
             readLock.unlock();
         }
     }
 
     /**
-     * Inserts or updates a key-value pair in the tree.
+     * Inserts or updates a key-value pair. Must be called while holding the write lock.
      * @param key   The key to insert or update.
      * @param value The value to associate with the key.
+     * @param start The node to start the descent from, which has to be root or an ancestor of the key's position.
+     * @return The node now holding the key.
      */
-    public void put(byte[] key, byte[] value) {
-        if (key == null || value == null) {
-            throw new NullPointerException("Null values or keys not allowed in the tree.");
-        }
+    private Node insert(byte[] key, byte[] value, Node start) {
+        long prefix = prefixOf(key);
+        Node helper = start;
+        Node parent = null;
+        int compare = 0;
 
-        writeLock.lock();
-        try {
-            if (root == null) {
-                root = new Node(key, value, null, BLACK);
-                return;
+        while (helper != null) {
+            parent = helper;
+            compare = compareKeys(key, prefix, helper);
+            if (compare < 0) {
+                helper = helper.left;
+            } else if (compare > 0) {
+                helper = helper.right;
+            } else {
+                setValue(helper, value);
+                return helper;
             }
+        }
+        return attach(key, value, parent, compare);
+    }
 
-            Node helper = root;
-            Node parent = null;
-            int compare = 0;
+    /**
+     * Links a new node in where a descent for its key ended, and restores the RB properties.
+     * Must be called while holding the write lock.
+     * @param key     The key of the new node.
+     * @param value   The value of the new node.
+     * @param parent  The last node of the descent, or null if the tree is empty.
+     * @param compare How the key compared to the parent, which says which side the new node goes on.
+     * @return The new node.
+     */
+    private Node attach(byte[] key, byte[] value, Node parent, int compare) {
+        if (parent == null) {
+            root = new Node(key, value, null, BLACK);
+            return root;
+        }
 
-            while (helper != null) {
-                parent = helper;
-                compare = Arrays.compare(key, helper.key);
-                if (compare < 0) {
-                    helper = helper.left;
-                } else if (compare > 0) {
-                    helper = helper.right;
-                } else {
-                    helper.value = value;
-                    return;
-                }
+        Node newNode = new Node(key, value, parent, RED);
+        if (compare < 0) {
+            parent.left = newNode;
+        } else {
+            parent.right = newNode;
+        }
+        // The descent may have started at a finger, so the sizes are counted up along the parent links.
+        for (Node ancestor = parent; ancestor != null; ancestor = ancestor.parent) {
+            ancestor.size++;
+        }
+
+        fixTree(newNode);
+        return newNode;
+    }
+
+    /**
+     * Climbs up from the finger to the lowest ancestor whose subtree covers the given key.
+     * The key must not be smaller than the finger's key, so only the upper bound of each subtree needs checking.
+     * That bound is the parent's key whenever the climb comes from a left child.
+     * @param finger The node touched by the previous insertion.
+     * @param key    The next key to insert.
+     * @return The node to start the descent from.
+     */
+    private Node fingerStart(Node finger, byte[] key) {
+        long prefix = prefixOf(key);
+        Node helper = finger;
+        while (helper.parent != null) {
+            if (helper == helper.parent.left && compareKeys(key, prefix, helper.parent) < 0) {
+                break;
             }
+            helper = helper.parent;
+        }
+        return helper;
+    }
 
-            Node newNode = new Node(key, value, parent, RED);
-            if (compare < 0) {
-                parent.left = newNode;
-            } else {
-                parent.right = newNode;
+    /**
+     * Checks a batch of entries for nulls before anything gets inserted.
+     * @param entries The batch to check.
+     */
+    private static void checkEntries(List<Map.Entry<byte[], byte[]>> entries) {
+        if (entries == null) {
+            throw new NullPointerException("Provide a non-null list of entries.");
+        }
+        for (Map.Entry<byte[], byte[]> entry : entries) {
+            if (entry == null || entry.getKey() == null || entry.getValue() == null) {
+                throw new NullPointerException("Null values or keys not allowed in the tree.");
             }
+        }
+    }
 
-            fixTree(newNode);
+    /**
+     * Recursively builds the subtree for the pairs with positions low to high, consuming them in order.
+     * @param level    The depth of the subtree's root.
+     * @param low      The position of the first pair in the subtree.
+     * @param high     The position of the last pair in the subtree.
+     * @param redLevel The depth at which nodes are colored red.
+     * @param input    The sorted input.
+     * @return The root of the subtree, or null if it is empty.
+     */
+    private Node buildFromSorted(int level, int low, int high, int redLevel, SortedInput input) {
+        if (high < low) {
+            return null;
+        }
+        int middle = (low + high) >>> 1;
 
-        } finally {
-            writeLock.unlock();
+        Node left = null;
+        if (low < middle) {
+            left = buildFromSorted(level + 1, low, middle - 1, redLevel, input);
+        }
+
+        Map.Entry<byte[], byte[]> entry = input.next();
+        Node node = new Node(entry.getKey(), entry.getValue(), null, level == redLevel ? RED : BLACK);
+        if (left != null) {
+            node.left = left;
+            left.parent = node;
+        }
+
+        if (middle < high) {
+            Node right = buildFromSorted(level + 1, middle + 1, high, redLevel, input);
+            node.right = right;
+            right.parent = node;
+        }
+        node.size = high - low + 1;
+        return node;
+    }
+
+    /**
+     * Returns the depth at which a perfectly balanced tree of the given size gets red nodes.
+     * That is the deepest level, unless all levels are completely full.
+     * @param size The number of nodes.
+     * @return The depth of the red level.
+     */
+    private static int redLevel(int size) {
+        int level = 0;
+        for (int nodes = size - 1; nodes >= 0; nodes = nodes / 2 - 1) {
+            level++;
         }
+        return level;
     }
 
     /**
@@ -169,6 +1438,165 @@ public class ThreadSafeTree {
         root.color = BLACK;
     }
 
+    /**
+     * Unlinks the given node from the tree and restores the RB properties.
+     * A node with two children first trades places with its successor, which has no left child,
+     * so it can be unlinked like a node with at most one child.
+     * @param node The node to delete.
+     */
+    private void deleteNode(Node node) {
+        retire(node);
+        if (node.left != null && node.right != null) {
+            swapWithSuccessor(node, successor(node));
+        }
+
+        // A node without children stays linked in during the fix-up, so it counts as empty from here on.
+        node.size--;
+        for (Node ancestor = node.parent; ancestor != null; ancestor = ancestor.parent) {
+            ancestor.size--;
+        }
+
+        Node replacement = (node.left != null ? node.left : node.right);
+        if (replacement != null) {
+            replacement.parent = node.parent;
+            if (node.parent == null) {
+                root = replacement;
+            } else if (node == node.parent.left) {
+                node.parent.left = replacement;
+            } else {
+                node.parent.right = replacement;
+            }
+            node.left = null;
+            node.right = null;
+            node.parent = null;
+            if (node.color == BLACK) {
+                fixTreeAfterDelete(replacement);
+            }
+        } else if (node.parent == null) {
+            root = null;
+        } else {
+            // No children, so the node itself acts as the phantom replacement during the fix-up.
+            if (node.color == BLACK) {
+                fixTreeAfterDelete(node);
+            }
+            if (node.parent != null) {
+                if (node == node.parent.left) {
+                    node.parent.left = null;
+                } else if (node == node.parent.right) {
+                    node.parent.right = null;
+                }
+                node.parent = null;
+            }
+        }
+    }
+
+    /**
+     * Makes a node and its successor trade places in the tree, along with their colors and subtree sizes,
+     * which belong to the positions. The keys stay in their nodes, so the order is only broken until
+     * the node is unlinked from the successor's old position.
+     * @param node The node to move down, which has two children.
+     * @param next Its successor, the leftmost node of its right subtree.
+     */
+    private void swapWithSuccessor(Node node, Node next) {
+        Node parent = node.parent;
+        Node left = node.left;
+        Node right = node.right;
+        Node nextParent = next.parent;
+        Node nextRight = next.right;
+
+        next.parent = parent;
+        if (parent == null) {
+            root = next;
+        } else if (node == parent.left) {
+            parent.left = next;
+        } else {
+            parent.right = next;
+        }
+        next.left = left;
+        left.parent = next;
+        if (right == next) {
+            next.right = node;
+            node.parent = next;
+        } else {
+            next.right = right;
+            right.parent = next;
+            nextParent.left = node;
+            node.parent = nextParent;
+        }
+        node.left = null;
+        node.right = nextRight;
+        if (nextRight != null) {
+            nextRight.parent = node;
+        }
+
+        boolean color = node.color;
+        node.color = next.color;
+        next.color = color;
+        int size = node.size;
+        node.size = next.size;
+        next.size = size;
+    }
+
+    /**
+     * Fixes the tree after a black node got removed.
+     * It does so by rotating the tree and making color changes until the missing black is absorbed.
+     * @param currentNode The node that took the place of the removed one.
+     */
+    private void fixTreeAfterDelete(Node currentNode) {
+        while (currentNode != root && !isRed(currentNode)) {
+            if (currentNode == leftOf(parentOf(currentNode))) {
+                Node siblingNode = rightOf(parentOf(currentNode));
+                if (isRed(siblingNode)) {
+                    setColor(siblingNode, BLACK);
+                    setColor(parentOf(currentNode), RED);
+                    rotateLeft(parentOf(currentNode));
+                    siblingNode = rightOf(parentOf(currentNode));
+                }
+                if (!isRed(leftOf(siblingNode)) && !isRed(rightOf(siblingNode))) {
+                    setColor(siblingNode, RED);
+                    currentNode = parentOf(currentNode);
+                } else {
+                    if (!isRed(rightOf(siblingNode))) {
+                        setColor(leftOf(siblingNode), BLACK);
+                        setColor(siblingNode, RED);
+                        rotateRight(siblingNode);
+                        siblingNode = rightOf(parentOf(currentNode));
+                    }
+                    setColor(siblingNode, colorOf(parentOf(currentNode)));
+                    setColor(parentOf(currentNode), BLACK);
+                    setColor(rightOf(siblingNode), BLACK);
+                    rotateLeft(parentOf(currentNode));
+                    currentNode = root;
+                }
+            } else {
+                Node siblingNode = leftOf(parentOf(currentNode));
+                if (isRed(siblingNode)) {
+                    setColor(siblingNode, BLACK);
+                    setColor(parentOf(currentNode), RED);
+                    rotateRight(parentOf(currentNode));
+                    siblingNode = leftOf(parentOf(currentNode));
+                }
+                if (!isRed(rightOf(siblingNode)) && !isRed(leftOf(siblingNode))) {
+                    setColor(siblingNode, RED);
+                    currentNode = parentOf(currentNode);
+                } else {
+                    if (!isRed(leftOf(siblingNode))) {
+                        setColor(rightOf(siblingNode), BLACK);
+                        setColor(siblingNode, RED);
+                        rotateLeft(siblingNode);
+                        siblingNode = leftOf(parentOf(currentNode));
+                    }
+                    setColor(siblingNode, colorOf(parentOf(currentNode)));
+                    setColor(parentOf(currentNode), BLACK);
+                    setColor(leftOf(siblingNode), BLACK);
+                    rotateRight(parentOf(currentNode));
+                    currentNode = root;
+                }
+            }
+        }
+        setColor(currentNode, BLACK);
+    }
+
     /**
      * Rotates the tree left.
      * @param pivotNode The node to rotate.
@@ -190,6 +1618,8 @@ public class ThreadSafeTree {
             }
             rightChild.left = pivotNode;
             pivotNode.parent = rightChild;
+            rightChild.size = pivotNode.size;
+            pivotNode.size = sizeOf(pivotNode.left) + sizeOf(pivotNode.right) + 1;
         }
     }
 
@@ -214,7 +1644,211 @@ public class ThreadSafeTree {
             }
             leftChild.right = pivotNode;
             pivotNode.parent = leftChild;
+            leftChild.size = pivotNode.size;
+            pivotNode.size = sizeOf(pivotNode.left) + sizeOf(pivotNode.right) + 1;
+        }
+    }
+
+    /**
+     * Returns the node with the smallest key.
+     * @return The leftmost node, or null if the tree is empty.
+     */
+    private Node firstNode() {
+        Node node = root;
+        if (node != null) {
+            while (node.left != null) {
+                node = node.left;
+            }
         }
+        return node;
+    }
+
+    /**
+     * Returns the node with the nearest key on one side of the given key. Every node passed on the way down
+     * that lies on the wanted side is a candidate, and the last one is the nearest.
+     * @param key       The key to search from, or null for the first or last node.
+     * @param below     True for the greatest key below the given key, false for the smallest key above it.
+     * @param inclusive True if a node with the key itself qualifies.
+     * @param stamp     The optimistic stamp to validate at every level, or 0 if a lock is held.
+     * @return The matching node, or null if there is none (or the stamp got invalidated).
+     */
+    private Node nearestNode(byte[] key, boolean below, boolean inclusive, long stamp) {
+        long prefix = (key == null ? 0 : prefixOf(key));
+        Node helper = root;
+        Node candidate = null;
+        while (helper != null) {
+            // Without a key, every node is on the wanted side, so the descent runs down to the first or last node.
+            int compare = (key == null ? (below ? 1 : -1) : compareKeys(key, prefix, helper));
+            if (compare == 0 && inclusive) {
+                return helper;
+            }
+            if (below ? compare > 0 : compare < 0) {
+                candidate = helper;
+                helper = (below ? helper.right : helper.left);
+            } else {
+                helper = (below ? helper.left : helper.right);
+            }
+            if (stamp != 0 && !stampedLock.validate(stamp)) {
+                return null;
+            }
+        }
+        return candidate;
+    }
+
+    /**
+     * Returns the in-order successor of the given node, following parent links instead of a stack.
+     * @param node The node to start from.
+     * @return The node with the next larger key, or null if there is none.
+     */
+    private Node successor(Node node) {
+        if (node.right != null) {
+            Node helper = node.right;
+            while (helper.left != null) {
+                helper = helper.left;
+            }
+            return helper;
+        }
+        Node helper = node.parent;
+        while (helper != null && node == helper.right) {
+            node = helper;
+            helper = helper.parent;
+        }
+        return helper;
+    }
+
+    /**
+     * Compares a key with the key of a node in the tree's key order.
+     * For the built-in orders the cached prefixes are compared first, so the node's key array is only read
+     * when they tie. A custom comparator always gets the full keys. The order is fixed per tree in final fields,
+     * so the JIT sees a single path here.
+     * @param key    The key to compare.
+     * @param prefix The prefix of the key, from prefixOf.
+     * @param node   The node to compare with.
+     * @return A negative number, zero or a positive number if the key is smaller, equal or larger.
+     */
+    private int compareKeys(byte[] key, long prefix, Node node) {
+        // The key and prefix are final, so even an optimistic read without a lock sees a matching pair.
+        byte[] nodeKey = node.key;
+        if (customComparator != null) {
+            return customComparator.compare(key, nodeKey);
+        }
+        long nodePrefix = node.prefix;
+        if (prefix != nodePrefix) {
+            return Long.compareUnsigned(prefix, nodePrefix);
+        }
+        // Equal prefixes mean the first bytes, up to the shorter key or PREFIX_BYTES, are equal too.
+        int from = Math.min(PREFIX_BYTES, Math.min(key.length, nodeKey.length));
+        return unsigned
+                ? Arrays.compareUnsigned(key, from, key.length, nodeKey, from, nodeKey.length)
+                : Arrays.compare(key, from, key.length, nodeKey, from, nodeKey.length);
+    }
+
+    /**
+     * Packs the first PREFIX_BYTES bytes of a key into a long that orders like the keys do when compared unsigned.
+     * In signed order every byte gets its sign bit flipped first. Shorter keys are padded with zeros, which sort
+     * at or below every byte, so a key never sorts above the longer keys it is a prefix of, and ties are resolved
+     * on the full keys. Custom comparators don't use prefixes.
+     * @param key The key.
+     * @return The prefix of the key.
+     */
+    private long prefixOf(byte[] key) {
+        if (customComparator != null) {
+            return 0;
+        }
+        if (key.length >= PREFIX_BYTES) {
+            return (long) LONG_BIG_ENDIAN.get(key, 0) ^ (unsigned ? 0 : 0x8080808080808080L);
+        }
+        int flip = (unsigned ? 0 : 0x80);
+        long prefix = 0;
+        for (int i = 0; i < PREFIX_BYTES; i++) {
+            prefix <<= 8;
+            if (i < key.length) {
+                prefix |= (key[i] ^ flip) & 0xFF;
+            }
+        }
+        return prefix;
+    }
+
+    /**
+     * Compares the key between a buffer's position and limit with the key of a node, like compareKeys does
+     * for arrays. Only for the built-in orders.
+     * @param key    The key to compare.
+     * @param prefix The prefix of the key, from prefixOf.
+     * @param node   The node to compare with.
+     * @return A negative number, zero or a positive number if the key is smaller, equal or larger.
+     */
+    private int compareKeys(ByteBuffer key, long prefix, Node node) {
+        byte[] nodeKey = node.key;
+        long nodePrefix = node.prefix;
+        if (prefix != nodePrefix) {
+            return Long.compareUnsigned(prefix, nodePrefix);
+        }
+        int position = key.position();
+        int length = key.remaining();
+        int common = Math.min(length, nodeKey.length);
+        for (int i = Math.min(PREFIX_BYTES, common); i < common; i++) {
+            byte stored = nodeKey[i];
+            byte searched = key.get(position + i);
+            if (searched != stored) {
+                return (unsigned ? Byte.compareUnsigned(searched, stored) : Byte.compare(searched, stored));
+            }
+        }
+        return length - nodeKey.length;
+    }
+
+    /**
+     * Computes the prefix of the key between a buffer's position and limit, like prefixOf does for arrays.
+     * @param key The key.
+     * @return The prefix of the key.
+     */
+    private long prefixOf(ByteBuffer key) {
+        int position = key.position();
+        int length = key.remaining();
+        if (length >= PREFIX_BYTES) {
+            long raw = key.getLong(position);
+            if (key.order() != ByteOrder.BIG_ENDIAN) {
+                raw = Long.reverseBytes(raw);
+            }
+            return raw ^ (unsigned ? 0 : 0x8080808080808080L);
+        }
+        int flip = (unsigned ? 0 : 0x80);
+        long prefix = 0;
+        for (int i = 0; i < PREFIX_BYTES; i++) {
+            prefix <<= 8;
+            if (i < length) {
+                prefix |= (key.get(position + i) ^ flip) & 0xFF;
+            }
+        }
+        return prefix;
+    }
+
+    /**
+     * Copies the bytes between a buffer's position and limit into a new array, leaving the position as it is.
+     * @param buffer The buffer.
+     * @return The bytes.
+     */
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(buffer.position(), bytes);
+        return bytes;
+    }
+
+    /**
+     * Turns the result of a navigation into an entry.
+     * @param holder The filled holder, or null if nothing was found.
+     * @return The entry, or null if nothing was found.
+     */
+    private static Map.Entry<byte[], byte[]> toEntry(EntryHolder holder) {
+        return holder == null ? null : new AbstractMap.SimpleImmutableEntry<>(holder.key, holder.value);
+    }
+
+    /**
+     * Returns the size of the subtree rooted at the given node.
+     * @param node The node.
+     * @return The number of nodes in its subtree, or 0 for null.
+     */
+    private static int sizeOf(Node node) {
+        return (node == null ? 0 : node.size);
     }
 
     /**
@@ -226,6 +1860,33 @@ public class ThreadSafeTree {
         return (node == null ? null : node.parent);
     }
 
+    /**
+     * Returns the left child of the given node.
+     * @param node The node to get the left child of.
+     * @return The left child, or null if the node is null.
+     */
+    private Node leftOf(Node node) {
+        return (node == null ? null : node.left);
+    }
+
+    /**
+     * Returns the right child of the given node.
+     * @param node The node to get the right child of.
+     * @return The right child, or null if the node is null.
+     */
+    private Node rightOf(Node node) {
+        return (node == null ? null : node.right);
+    }
+
+    /**
+     * Returns the color of the given node, where null nodes count as black.
+     * @param node The node to get the color of.
+     * @return The color of the node.
+     */
+    private boolean colorOf(Node node) {
+        return (node == null ? BLACK : node.color);
+    }
+
     /**
      * Returns whether the given node is red.
      * @param node The node to check.
@@ -245,4 +1906,217 @@ public class ThreadSafeTree {
             node.color = color;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Input of a bulk load. It checks every pair for nulls and for being in strictly ascending order.
+     */
+    private static class SortedInput {
+        private final Iterator<? extends Map.Entry<byte[], byte[]>> entries;
+        private final Comparator<byte[]> comparator;
+        private byte[] previousKey;
+
+        SortedInput(Iterator<? extends Map.Entry<byte[], byte[]>> entries, Comparator<byte[]> comparator) {
+            this.entries = entries;
+            this.comparator = comparator;
+        }
+
+        Map.Entry<byte[], byte[]> next() {
+            if (!entries.hasNext()) {
+                throw new IllegalArgumentException("The iterator has fewer entries than the given size.");
+            }
+            Map.Entry<byte[], byte[]> entry = entries.next();
+            if (entry == null || entry.getKey() == null || entry.getValue() == null) {
+                throw new NullPointerException("Null values or keys not allowed in the tree.");
+            }
+            if (previousKey != null && comparator.compare(previousKey, entry.getKey()) >= 0) {
+                throw new IllegalArgumentException("Entries must be sorted by strictly ascending key.");
+            }
+            previousKey = entry.getKey();
+            return entry;
+        }
+    }
+
+    /**
+     * Iterator over a scan, see scan. Only fetching a chunk takes the lock,
+     * iterating over the current one works purely on its own lists.
+     */
+    public final class ScanIterator implements Iterator<Map.Entry<byte[], byte[]>>, AutoCloseable {
+        private final byte[] toKey;
+        private final long toPrefix;
+        private final long readVersion;
+        private final Cleaner.Cleanable registration;
+        private final List<byte[]> keys = new ArrayList<>();
+        private final List<byte[]> values = new ArrayList<>();
+        private int position;
+        // The last key the previous chunk stepped over, visible or not. The next chunk starts after it.
+        private byte[] lastKey;
+        private boolean lastChunk;
+
+        private ScanIterator(byte[] fromKey, byte[] toKey) {
+            this.toKey = toKey;
+            this.toPrefix = (toKey == null ? 0 : prefixOf(toKey));
+            long current;
+            readLock.lock();
+            try {
+                current = version;
+                openScans.merge(current, 1, Integer::sum);
+            } finally {
+                readLock.unlock();
+            }
+            this.readVersion = current;
+            this.registration = SCAN_CLEANER.register(this, new ScanRegistration(openScans, current));
+            fetch(fromKey, true);
+        }
+
+        @Override
+        public boolean hasNext() {
+            // A chunk can come out empty if every key it stepped over was inserted after the scan was opened.
+            while (position == keys.size() && !lastChunk) {
+                fetch(lastKey, false);
+            }
+            return position < keys.size();
+        }
+
+        @Override
+        public Map.Entry<byte[], byte[]> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<byte[], byte[]> entry = new AbstractMap.SimpleImmutableEntry<>(keys.get(position), values.get(position));
+            position++;
+            return entry;
+        }
+
+        /**
+         * Ends the scan early, so the pairs kept aside for it can be freed. Closing it again does nothing.
+         */
+        @Override
+        public void close() {
+            lastChunk = true;
+            keys.clear();
+            values.clear();
+            position = 0;
+            registration.clean();
+        }
+
+        /**
+         * Replaces the current chunk with the next one, and closes the scan after the last one.
+         * @param fromKey   The key to start at, or null to start at the first key.
+         * @param inclusive True if fromKey itself is part of the chunk.
+         */
+        private void fetch(byte[] fromKey, boolean inclusive) {
+            readLock.lock();
+            try {
+                collect(fromKey, inclusive);
+            } finally {
+                readLock.unlock();
+            }
+            if (lastChunk) {
+                registration.clean();
+            }
+        }
+
+        /**
+         * Steps over up to SCAN_CHUNK_SIZE keys, merging the nodes in the range with the retired pairs in it,
+         * and keeps the pairs that were current at the scan's version. Must be called while holding the read lock.
+         * @param fromKey   The key to start at, or null to start at the first key.
+         * @param inclusive True if fromKey itself is part of the chunk.
+         */
+        private void collect(byte[] fromKey, boolean inclusive) {
+            keys.clear();
+            values.clear();
+            position = 0;
+            Node node = inRange(nearestNode(fromKey, false, inclusive, 0));
+            Iterator<Retired> retiredPairs = retiredBetween(fromKey, inclusive);
+            Retired retired = (retiredPairs.hasNext() ? retiredPairs.next() : null);
+            for (int steps = 0; steps < SCAN_CHUNK_SIZE && (node != null || retired != null); steps++) {
+                int compare = (node == null ? 1 : retired == null ? -1 : comparator.compare(node.key, retired.key));
+                byte[] value = null;
+                if (compare <= 0) {
+                    lastKey = node.key;
+                    if (node.version <= readVersion) {
+                        value = node.value;
+                    }
+                    node = inRange(successor(node));
+                }
+                if (compare >= 0) {
+                    lastKey = retired.key;
+                    if (value == null) {
+                        value = valueAsOf(retired);
+                    }
+                    retired = (retiredPairs.hasNext() ? retiredPairs.next() : null);
+                }
+                if (value != null) {
+                    keys.add(lastKey);
+                    values.add(value);
+                }
+            }
+            lastChunk = (node == null && retired == null);
+        }
+
+        /**
+         * Cuts off the nodes at or above toKey.
+         * @param node The node to check, or null.
+         * @return The node, or null if it is null or not below toKey.
+         */
+        private Node inRange(Node node) {
+            return (node == null || toKey == null || compareKeys(toKey, toPrefix, node) > 0 ? node : null);
+        }
+
+        /**
+         * Returns the newest retired pair of every key in the range that has some.
+         * @param fromKey   The key to start at, or null to start at the first key.
+         * @param inclusive True if fromKey itself is part of the range.
+         * @return The pairs in ascending key order.
+         */
+        private Iterator<Retired> retiredBetween(byte[] fromKey, boolean inclusive) {
+            if (history.isEmpty()) {
+                return Collections.emptyIterator();
+            }
+            NavigableMap<byte[], Retired> range = history;
+            if (fromKey != null) {
+                if (toKey != null && comparator.compare(fromKey, toKey) >= 0) {
+                    return Collections.emptyIterator();
+                }
+                range = range.tailMap(fromKey, inclusive);
+            }
+            if (toKey != null) {
+                range = range.headMap(toKey, false);
+            }
+            return range.values().iterator();
+        }
+
+        /**
+         * Finds the value a key had at the scan's version among its retired pairs.
+         * @param newest The newest retired pair of the key.
+         * @return The value, or null if the key wasn't in the tree at that version.
+         */
+        private byte[] valueAsOf(Retired newest) {
+            for (Retired retired = newest; retired != null; retired = retired.older) {
+                if (retired.from <= readVersion) {
+                    return (retired.until > readVersion ? retired.value : null);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Takes a scan off the open ones. It must not refer to the scan itself, or the scan could never get garbage
+     * collected, so it gets the map and the version instead.
+     */
+    private static final class ScanRegistration implements Runnable {
+        private final ConcurrentSkipListMap<Long, Integer> openScans;
+        private final long version;
+
+        ScanRegistration(ConcurrentSkipListMap<Long, Integer> openScans, long version) {
+            this.openScans = openScans;
+            this.version = version;
+        }
+
+        @Override
+        public void run() {
+            openScans.computeIfPresent(version, (scanVersion, count) -> count == 1 ? null : count - 1);
+        }
+    }
+}
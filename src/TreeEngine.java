@@ -0,0 +1,122 @@
+/**
+ * The engines that can sit behind the SortedByteMap API, to be picked per workload.
+ * Run bench/TreeBenchmark with --engine to compare them.
+ */
+public enum TreeEngine {
+
+    /**
+     * Red-black tree guarded by a ReentrantReadWriteLock.
+     */
+    RED_BLACK {
+        @Override
+        public SortedByteMap create() {
+            return new ThreadSafeTree();
+        }
+    },
+
+    /**
+     * Red-black tree guarded by a StampedLock, with optimistic reads.
+     */
+    RED_BLACK_OPTIMISTIC {
+        @Override
+        public SortedByteMap create() {
+            return ThreadSafeTree.withOptimisticReads();
+        }
+    },
+
+    /**
+     * Red-black tree with its nodes, keys and values in direct memory.
+     */
+    OFF_HEAP {
+        @Override
+        public SortedByteMap create() {
+            return new OffHeapThreadSafeTree();
+        }
+    },
+
+    /**
+     * Lock-free skip list, for write-heavy workloads.
+     */
+    SKIP_LIST {
+        @Override
+        public SortedByteMap create() {
+            return new SkipListTree();
+        }
+    },
+
+    /**
+     * Persistent red-black tree with path copying, for read-heavy workloads: readers never block.
+     */
+    COPY_ON_WRITE {
+        @Override
+        public SortedByteMap create() {
+            return new CopyOnWriteTree();
+        }
+    },
+
+    /**
+     * Red-black tree with a lock per node and lock-coupled descents, so disjoint keys don't contend.
+     */
+    LOCK_COUPLING {
+        @Override
+        public SortedByteMap create() {
+            return new LockCouplingTree();
+        }
+    },
+
+    /**
+     * Red-black tree whose puts are batched by a flat combiner, for heavily contended writes.
+     */
+    FLAT_COMBINING {
+        @Override
+        public SortedByteMap create() {
+            return new FlatCombiningTree();
+        }
+    },
+
+    /**
+     * Red-black tree with its nodes in pooled parallel arrays, for less garbage and better locality.
+     */
+    POOLED {
+        @Override
+        public SortedByteMap create() {
+            return new PooledThreadSafeTree();
+        }
+    },
+
+    /**
+     * B+-tree with wide nodes and linked leaves, for large data sets and scans.
+     */
+    B_PLUS_TREE {
+        @Override
+        public SortedByteMap create() {
+            return new BPlusTree();
+        }
+    },
+
+    /**
+     * B+-tree that stores the prefix shared within a node once, for long keys with shared prefixes.
+     */
+    B_PLUS_TREE_COMPRESSED {
+        @Override
+        public SortedByteMap create() {
+            return BPlusTree.withPrefixCompression();
+        }
+    },
+
+    /**
+     * Adaptive radix tree, with lookups in key length instead of tree height, for long keys with shared prefixes.
+     */
+    ADAPTIVE_RADIX {
+        @Override
+        public SortedByteMap create() {
+            return new AdaptiveRadixTree();
+        }
+    };
+
+    /**
+     * Creates a new, empty map backed by this engine.
+     * @return The new map.
+     */
+    public abstract SortedByteMap create();
+}
@@ -0,0 +1,389 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log for a ThreadSafeTree. Once attached with ThreadSafeTree.setWriteAheadLog, every put and
+ * remove is appended to the log before it is applied to the tree, and is durable according to the sync policy
+ * by the time the call returns.
+ * Every record is laid out as [payload length][CRC32 of payload][payload], where the payload is
+ * [type][key length][key] for a remove and additionally [value length][value] for a put.
+ * A torn or corrupted record at the tail of the file marks the end of the log.
+ */
+public class WriteAheadLog implements Closeable {
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final int HEADER_SIZE = 8;
+    // The most bytes a single write can take, records of a batch included, since they are encoded into one array.
+    private static final int MAX_WRITE_SIZE = Integer.MAX_VALUE - 8;
+
+    /**
+     * When appended records are forced to disk.
+     */
+    public enum SyncPolicy {
+        /**
+         * Every write waits for an fsync covering its record. Writers that queued up behind the tree's
+         * write lock while an fsync was running share the next one (group commit).
+         */
+        EVERY_OP,
+        /**
+         * A background thread forces the log every interval, so a crash loses at most that much.
+         */
+        INTERVAL,
+        /**
+         * The log is never forced explicitly, the operating system writes it back whenever it likes.
+         */
+        NONE
+    }
+
+    private final FileChannel channel;
+    private final SyncPolicy policy;
+    private final ScheduledExecutorService syncer;
+    private final Object appendLock = new Object();
+    private final Object syncLock = new Object();
+    private volatile long writtenPosition;
+    private long syncedPosition;
+    private boolean broken;
+
+    /**
+     * Opens the log at the given path for appending, creating it if needed.
+     * A torn record at the tail, left behind by a crash, is cut off first.
+     * @param path   The log file.
+     * @param policy When to force appended records to disk. Use the other constructor for INTERVAL.
+     * @throws IOException If the file can't be opened.
+     */
+    public WriteAheadLog(Path path, SyncPolicy policy) throws IOException {
+        this(path, policy, 0);
+    }
+
+    /**
+     * Opens the log at the given path for appending, creating it if needed.
+     * A torn record at the tail, left behind by a crash, is cut off first.
+     * @param path           The log file.
+     * @param policy         When to force appended records to disk.
+     * @param intervalMillis The sync interval in milliseconds, only used by INTERVAL.
+     * @throws IOException If the file can't be opened.
+     */
+    public WriteAheadLog(Path path, SyncPolicy policy, long intervalMillis) throws IOException {
+        if (path == null || policy == null) {
+            throw new IllegalArgumentException("Provide a non-null path and sync policy for the log.");
+        }
+        if (policy == SyncPolicy.INTERVAL && intervalMillis <= 0) {
+            throw new IllegalArgumentException("The INTERVAL policy needs a positive interval.");
+        }
+
+        long validLength = Files.exists(path) ? replay(path, null) : 0;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.truncate(validLength);
+        channel.position(validLength);
+        this.policy = policy;
+        this.writtenPosition = validLength;
+        this.syncedPosition = validLength;
+
+        if (policy == SyncPolicy.INTERVAL) {
+            this.syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "wal-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleWithFixedDelay(this::syncQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.syncer = null;
+        }
+    }
+
+    /**
+     * Rebuilds a tree in the default SIGNED key order from the log at the given path.
+     * @param path The log file.
+     * @return A new tree holding the state recorded in the log.
+     * @throws IOException If the file can't be read.
+     */
+    public static ThreadSafeTree recover(Path path) throws IOException {
+        return recover(path, ThreadSafeTree.SIGNED);
+    }
+
+    /**
+     * Rebuilds a tree with the given key order from the log at the given path.
+     * The log doesn't record the key order, so it has to be the one of the tree that wrote the log,
+     * or range operations, navigation and snapshots on the recovered tree go wrong.
+     * @param path       The log file.
+     * @param comparator The key order of the tree that wrote the log.
+     * @return A new tree holding the state recorded in the log.
+     * @throws IOException If the file can't be read.
+     */
+    public static ThreadSafeTree recover(Path path, Comparator<byte[]> comparator) throws IOException {
+        ThreadSafeTree tree = new ThreadSafeTree(comparator);
+        replay(path, tree);
+        return tree;
+    }
+
+    /**
+     * Applies every valid record of the log at the given path to a tree, in order.
+     * The tree must not have a log attached, or the records would be logged a second time.
+     * @param path The log file.
+     * @param tree The tree to apply the records to, or null to only validate the log.
+     * @return The length of the valid part of the log in bytes.
+     * @throws IOException If the file can't be read.
+     */
+    public static long replay(Path path, ThreadSafeTree tree) throws IOException {
+        long fileLength = Files.size(path);
+        long position = 0;
+        try (InputStream file = Files.newInputStream(path);
+             DataInputStream input = new DataInputStream(new BufferedInputStream(file, 1 << 16))) {
+            CRC32 crc = new CRC32();
+            while (position + HEADER_SIZE <= fileLength) {
+                int length = input.readInt();
+                int checksum = input.readInt();
+                if (length < 5 || length > fileLength - position - HEADER_SIZE) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                input.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum || !apply(payload, tree)) {
+                    break;
+                }
+                position += HEADER_SIZE + length;
+            }
+        } catch (EOFException e) {
+            // A torn tail, everything up to the current position is valid.
+        }
+        return position;
+    }
+
+    /**
+     * Applies a single payload to the tree.
+     * @param payload The payload of a record whose checksum matched.
+     * @param tree    The tree to apply it to, or null to only validate it.
+     * @return False if the payload is malformed.
+     */
+    private static boolean apply(byte[] payload, ThreadSafeTree tree) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        byte type = buffer.get();
+        int keyLength = buffer.getInt();
+        if (keyLength < 0 || keyLength > buffer.remaining()) {
+            return false;
+        }
+        byte[] key = new byte[keyLength];
+        buffer.get(key);
+
+        if (type == REMOVE && !buffer.hasRemaining()) {
+            if (tree != null) {
+                tree.remove(key);
+            }
+            return true;
+        }
+        if (type != PUT || buffer.remaining() < 4) {
+            return false;
+        }
+        int valueLength = buffer.getInt();
+        if (valueLength != buffer.remaining()) {
+            return false;
+        }
+        byte[] value = new byte[valueLength];
+        buffer.get(value);
+        if (tree != null) {
+            tree.put(key, value);
+        }
+        return true;
+    }
+
+    /**
+     * Appends a put record. Called by the tree while it holds its write lock.
+     * @param key   The key that is put.
+     * @param value The value that is put.
+     * @return The log position right after the record, to be passed to commit.
+     */
+    long appendPut(byte[] key, byte[] value) {
+        ByteBuffer buffer = ByteBuffer.allocate(checkWriteSize(recordSize(key, value)));
+        writeRecord(buffer, PUT, key, value);
+        return write(buffer);
+    }
+
+    /**
+     * Appends a put record for every entry of a batch with a single write. Called by the tree while it holds its write lock.
+     * @param entries The entries that are put.
+     * @return The log position right after the last record, to be passed to commit.
+     * @throws IllegalArgumentException If the records of the batch take more than MAX_WRITE_SIZE bytes together.
+     */
+    long appendPuts(List<Map.Entry<byte[], byte[]>> entries) {
+        long size = 0;
+        for (Map.Entry<byte[], byte[]> entry : entries) {
+            size += recordSize(entry.getKey(), entry.getValue());
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(checkWriteSize(size));
+        for (Map.Entry<byte[], byte[]> entry : entries) {
+            writeRecord(buffer, PUT, entry.getKey(), entry.getValue());
+        }
+        return write(buffer);
+    }
+
+    /**
+     * Appends a remove record. Called by the tree while it holds its write lock.
+     * @param key The key that is removed.
+     * @return The log position right after the record, to be passed to commit.
+     */
+    long appendRemove(byte[] key) {
+        ByteBuffer buffer = ByteBuffer.allocate(checkWriteSize(recordSize(key, null)));
+        writeRecord(buffer, REMOVE, key, null);
+        return write(buffer);
+    }
+
+    /**
+     * Makes sure everything up to the given position is durable, as far as the sync policy asks for.
+     * Called by the tree after it released its write lock, so that the writers queued behind it can append
+     * their records meanwhile and all get covered by the next fsync.
+     * @param position The position returned by the append.
+     */
+    void commit(long position) {
+        if (policy != SyncPolicy.EVERY_OP) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (syncedPosition >= position) {
+                return;
+            }
+            sync();
+        }
+    }
+
+    /**
+     * Stops the background syncing, forces everything to disk and closes the file.
+     * @throws IOException If the final force or the close fails.
+     */
+    @Override
+    public void close() throws IOException {
+        if (syncer != null) {
+            syncer.shutdown();
+        }
+        synchronized (syncLock) {
+            if (policy != SyncPolicy.NONE) {
+                channel.force(false);
+            }
+            channel.close();
+        }
+    }
+
+    /**
+     * Forces the log to disk. Must be called while holding the sync lock.
+     */
+    private void sync() {
+        long target = writtenPosition;
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not sync the write-ahead log.", e);
+        }
+        syncedPosition = target;
+    }
+
+    /**
+     * Periodic sync for the INTERVAL policy.
+     */
+    private void syncQuietly() {
+        synchronized (syncLock) {
+            if (syncedPosition < writtenPosition && channel.isOpen()) {
+                try {
+                    sync();
+                } catch (UncheckedIOException e) {
+                    // Retried on the next tick, and close reports a persistent failure.
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes encoded records at the end of the log.
+     * After a failed write the tail may hold a partial record, so the log refuses any further appends
+     * instead of putting valid records behind it that recovery would never reach.
+     * @param buffer The encoded records.
+     * @return The log position right after the records.
+     */
+    private long write(ByteBuffer buffer) {
+        buffer.flip();
+        synchronized (appendLock) {
+            if (broken) {
+                throw new IllegalStateException("The write-ahead log failed earlier and has to be reopened.");
+            }
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                broken = true;
+                throw new UncheckedIOException("Could not append to the write-ahead log.", e);
+            }
+            writtenPosition += buffer.limit();
+            return writtenPosition;
+        }
+    }
+
+    /**
+     * Returns the encoded size of a record. It is a long, because a key and a value of almost 2 GB each don't fit
+     * into an int together.
+     * @param key   The key of the record.
+     * @param value The value of the record, or null for a remove.
+     * @return The size in bytes, header included.
+     */
+    private static long recordSize(byte[] key, byte[] value) {
+        return HEADER_SIZE + 1 + 4 + (long) key.length + (value == null ? 0 : 4 + (long) value.length);
+    }
+
+    /**
+     * Checks that a write fits into a single array. It is checked before anything is appended,
+     * so a write that is too large leaves the log and the tree untouched.
+     * @param size The size of the write in bytes.
+     * @return The size as an int.
+     * @throws IllegalArgumentException If the write takes more than MAX_WRITE_SIZE bytes.
+     */
+    private static int checkWriteSize(long size) {
+        if (size > MAX_WRITE_SIZE) {
+            throw new IllegalArgumentException("A single log write can take at most " + MAX_WRITE_SIZE
+                    + " bytes, this one takes " + size + ", split the batch.");
+        }
+        return (int) size;
+    }
+
+    /**
+     * Encodes a record into the buffer and fills in its checksum.
+     * @param buffer The heap buffer to encode into.
+     * @param type   The record type.
+     * @param key    The key of the record.
+     * @param value  The value of the record, or null for a remove.
+     */
+    private static void writeRecord(ByteBuffer buffer, byte type, byte[] key, byte[] value) {
+        int start = buffer.position();
+        int payloadLength = (int) recordSize(key, value) - HEADER_SIZE;
+        buffer.putInt(payloadLength);
+        buffer.putInt(0);
+        buffer.put(type);
+        buffer.putInt(key.length);
+        buffer.put(key);
+        if (value != null) {
+            buffer.putInt(value.length);
+            buffer.put(value);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), start + HEADER_SIZE, payloadLength);
+        buffer.putInt(start + 4, (int) crc.getValue());
+    }
+}
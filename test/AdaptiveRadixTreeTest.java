@@ -0,0 +1,181 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+class AdaptiveRadixTreeTest {
+
+    // Short keys over a few byte values, negative ones included, so keys are often prefixes of each other
+    // and nodes keep splitting their compressed paths and merging them back.
+    @Test
+    void testRandomOperationsMatchTreeMap() {
+        AdaptiveRadixTree tree = new AdaptiveRadixTree();
+        TreeMap<byte[], byte[]> expected = new TreeMap<>(Arrays::compare);
+        Random random = new Random(42);
+        byte[] alphabet = {-128, -1, 0, 1, 'a', 127};
+        for (int i = 0; i < 50000; i++) {
+            byte[] key = new byte[random.nextInt(6)];
+            for (int j = 0; j < key.length; j++) {
+                key[j] = alphabet[random.nextInt(alphabet.length)];
+            }
+            if (random.nextInt(3) == 0) {
+                assertArrayEquals(expected.remove(key), tree.remove(key));
+            } else {
+                byte[] value = ("value " + i).getBytes();
+                tree.put(key, value);
+                expected.put(key, value);
+            }
+        }
+
+        List<byte[]> visited = new ArrayList<>();
+        tree.forEach((key, value) -> {
+            visited.add(key);
+            assertArrayEquals(expected.get(key), value);
+        });
+        assertEquals(expected.size(), visited.size());
+        assertEquals(expected.size(), tree.size());
+        Iterator<byte[]> wanted = expected.keySet().iterator();
+        for (byte[] key : visited) {
+            assertArrayEquals(wanted.next(), key);
+        }
+
+        for (int i = 0; i < 500; i++) {
+            byte[] from = new byte[random.nextInt(4)];
+            byte[] to = new byte[random.nextInt(4)];
+            for (int j = 0; j < from.length; j++) {
+                from[j] = alphabet[random.nextInt(alphabet.length)];
+            }
+            for (int j = 0; j < to.length; j++) {
+                to[j] = alphabet[random.nextInt(alphabet.length)];
+            }
+            if (Arrays.compare(from, to) > 0) {
+                continue;
+            }
+            Iterator<Map.Entry<byte[], byte[]>> iterator = tree.scan(from, to);
+            for (byte[] key : expected.subMap(from, to).keySet()) {
+                assertArrayEquals(key, iterator.next().getKey());
+            }
+            assertFalse(iterator.hasNext());
+        }
+    }
+
+    // Every first byte value in one node makes it grow through all sizes up to Node256, and removing
+    // them again makes it shrink back.
+    @Test
+    void testGrowAndShrink() {
+        AdaptiveRadixTree tree = new AdaptiveRadixTree();
+        for (int b = -128; b < 128; b++) {
+            tree.put(new byte[] {'t', (byte) b, 'x'}, new byte[] {(byte) b});
+        }
+        assertEquals(256, tree.size());
+        for (int b = -128; b < 128; b++) {
+            assertArrayEquals(new byte[] {(byte) b}, tree.get(new byte[] {'t', (byte) b, 'x'}));
+            assertNull(tree.get(new byte[] {'t', (byte) b}));
+        }
+
+        for (int b = -128; b < 127; b++) {
+            assertArrayEquals(new byte[] {(byte) b}, tree.remove(new byte[] {'t', (byte) b, 'x'}));
+            assertNull(tree.get(new byte[] {'t', (byte) b, 'x'}));
+            assertArrayEquals(new byte[] {127}, tree.get(new byte[] {'t', 127, 'x'}));
+        }
+        assertEquals(1, tree.size());
+        assertArrayEquals(new byte[] {127}, tree.remove(new byte[] {'t', 127, 'x'}));
+        assertEquals(0, tree.size());
+        assertEquals(0, count(tree.scan(null, null)));
+    }
+
+    @Test
+    void testPrefixKeys() {
+        AdaptiveRadixTree tree = new AdaptiveRadixTree();
+        tree.put("tenant/table/row".getBytes(), "row".getBytes());
+        tree.put("tenant/table".getBytes(), "table".getBytes());
+        tree.put("tenant".getBytes(), "tenant".getBytes());
+        tree.put(new byte[0], "empty".getBytes());
+
+        assertEquals("tenant", new String(tree.get("tenant".getBytes())));
+        assertEquals("table", new String(tree.get("tenant/table".getBytes())));
+        assertEquals("row", new String(tree.get("tenant/table/row".getBytes())));
+        assertEquals("empty", new String(tree.get(new byte[0])));
+        assertNull(tree.get("tenant/".getBytes()));
+        assertNull(tree.get("tenant/table/row/".getBytes()));
+
+        List<String> keys = new ArrayList<>();
+        tree.forEach((key, value) -> keys.add(new String(key)));
+        assertEquals(List.of("", "tenant", "tenant/table", "tenant/table/row"), keys);
+
+        assertEquals("table", new String(tree.remove("tenant/table".getBytes())));
+        assertNull(tree.remove("tenant/table".getBytes()));
+        assertEquals("row", new String(tree.get("tenant/table/row".getBytes())));
+        assertEquals(3, tree.size());
+    }
+
+    @Test
+    void testScan() {
+        AdaptiveRadixTree tree = new AdaptiveRadixTree();
+        for (int i = 0; i < 50; i++) {
+            tree.put(String.format("key %02d", i).getBytes(), ("value " + i).getBytes());
+        }
+
+        Iterator<Map.Entry<byte[], byte[]>> iterator = tree.scan("key 10".getBytes(), "key 20".getBytes());
+        for (int i = 10; i < 20; i++) {
+            Map.Entry<byte[], byte[]> entry = iterator.next();
+            assertEquals(String.format("key %02d", i), new String(entry.getKey()));
+            assertEquals("value " + i, new String(entry.getValue()));
+        }
+        assertFalse(iterator.hasNext());
+
+        assertEquals(50, count(tree.scan(null, null)));
+        assertEquals(5, count(tree.scan("key 45".getBytes(), null)));
+        assertEquals(3, count(tree.scan(null, "key 03".getBytes())));
+        assertEquals(0, count(tree.scan("key 30".getBytes(), "key 20".getBytes())));
+        assertEquals(9, count(tree.scan("key 10a".getBytes(), "key 20".getBytes())));
+        assertEquals(50, count(tree.scan("key".getBytes(), "kez".getBytes())));
+        assertEquals(0, count(tree.scan("kez".getBytes(), null)));
+    }
+
+    @Test
+    void testConcurrentPuts() throws InterruptedException {
+        AdaptiveRadixTree tree = new AdaptiveRadixTree();
+        int threadCount = 10;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch latch = new CountDownLatch(threadCount);
+
+        for (int t = 0; t < threadCount; t++) {
+            final int thread = t;
+            executor.submit(() -> {
+                try {
+                    for (int i = 0; i < 2000; i++) {
+                        tree.put((thread + "-" + i).getBytes(), ("value " + i).getBytes());
+                        tree.get((thread + "-" + (i / 2)).getBytes());
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        executor.shutdown();
+
+        assertEquals(threadCount * 2000, tree.size());
+        for (int t = 0; t < threadCount; t++) {
+            assertEquals("value 1999", new String(tree.get((t + "-1999").getBytes())));
+        }
+    }
+
+    private static int count(Iterator<Map.Entry<byte[], byte[]>> iterator) {
+        int count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,167 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+class BPlusTreeTest {
+
+    // A small order makes the tree several levels deep, so splits of inner nodes get exercised too.
+    @Test
+    void testRandomOperationsMatchTreeMap() {
+        BPlusTree tree = new BPlusTree(new ReentrantReadWriteLock(), 3);
+        TreeMap<String, String> expected = new TreeMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            String key = "key " + random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                byte[] removed = tree.remove(key.getBytes());
+                assertEquals(expected.remove(key), removed == null ? null : new String(removed));
+            } else {
+                tree.put(key.getBytes(), ("value " + i).getBytes());
+                expected.put(key, "value " + i);
+            }
+        }
+
+        List<String> visited = new ArrayList<>();
+        tree.forEach((key, value) -> visited.add(new String(key) + "=" + new String(value)));
+        List<String> wanted = new ArrayList<>();
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            wanted.add(entry.getKey() + "=" + entry.getValue());
+        }
+        assertEquals(wanted, visited);
+        assertEquals(expected.size(), tree.size());
+    }
+
+    @Test
+    void testScan() {
+        BPlusTree tree = new BPlusTree(new ReentrantReadWriteLock(), 4);
+        for (int i = 0; i < 50; i++) {
+            tree.put(String.format("key %02d", i).getBytes(), ("value " + i).getBytes());
+        }
+
+        Iterator<Map.Entry<byte[], byte[]>> iterator = tree.scan("key 10".getBytes(), "key 20".getBytes());
+        for (int i = 10; i < 20; i++) {
+            Map.Entry<byte[], byte[]> entry = iterator.next();
+            assertEquals(String.format("key %02d", i), new String(entry.getKey()));
+            assertEquals("value " + i, new String(entry.getValue()));
+        }
+        assertFalse(iterator.hasNext());
+
+        assertEquals(50, count(tree.scan(null, null)));
+        assertEquals(5, count(tree.scan("key 45".getBytes(), null)));
+        assertEquals(3, count(tree.scan(null, "key 03".getBytes())));
+        assertEquals(0, count(tree.scan("key 30".getBytes(), "key 20".getBytes())));
+        assertEquals(9, count(tree.scan("key 10a".getBytes(), "key 20".getBytes())));
+    }
+
+    // Leaves that got emptied by removes stay linked in, and scans and puts have to step over them.
+    @Test
+    void testEmptiedLeaves() {
+        BPlusTree tree = new BPlusTree(new ReentrantReadWriteLock(), 4);
+        for (int i = 0; i < 100; i++) {
+            tree.put(String.format("key %03d", i).getBytes(), "value".getBytes());
+        }
+        for (int i = 10; i < 90; i++) {
+            assertNotNull(tree.remove(String.format("key %03d", i).getBytes()));
+        }
+
+        assertEquals(20, tree.size());
+        assertEquals(10, count(tree.scan("key 005".getBytes(), "key 095".getBytes())));
+        assertEquals(10, count(tree.scan("key 050".getBytes(), null)));
+        tree.put("key 050".getBytes(), "back".getBytes());
+        assertEquals("back", new String(tree.get("key 050".getBytes())));
+        assertEquals(11, count(tree.scan("key 040".getBytes(), null)));
+    }
+
+    // URL-like keys with long shared prefixes and keys that are prefixes of others, in a small order,
+    // so nodes get prefixes at several levels and the descent has to route keys by their suffixes alone.
+    @Test
+    void testPrefixCompression() {
+        BPlusTree tree = new BPlusTree(new ReentrantReadWriteLock(), 4, true);
+        TreeMap<String, String> expected = new TreeMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder key = new StringBuilder("https://example.com/tenant/");
+            int depth = random.nextInt(4);
+            for (int j = 0; j < depth; j++) {
+                key.append(random.nextInt(6)).append('/');
+            }
+            if (random.nextInt(3) == 0) {
+                byte[] removed = tree.remove(key.toString().getBytes());
+                assertEquals(expected.remove(key.toString()), removed == null ? null : new String(removed));
+            } else {
+                tree.put(key.toString().getBytes(), ("value " + i).getBytes());
+                expected.put(key.toString(), "value " + i);
+            }
+            assertEquals(expected.get(key.toString()), string(tree.get(key.toString().getBytes())));
+        }
+
+        List<String> visited = new ArrayList<>();
+        tree.forEach((key, value) -> visited.add(new String(key) + "=" + new String(value)));
+        List<String> wanted = new ArrayList<>();
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            wanted.add(entry.getKey() + "=" + entry.getValue());
+        }
+        assertEquals(wanted, visited);
+
+        String from = "https://example.com/tenant/2/";
+        String to = "https://example.com/tenant/4/1/";
+        Iterator<Map.Entry<byte[], byte[]>> iterator = tree.scan(from.getBytes(), to.getBytes());
+        for (String key : expected.subMap(from, to).keySet()) {
+            assertEquals(key, new String(iterator.next().getKey()));
+        }
+        assertFalse(iterator.hasNext());
+        assertNull(tree.get("https://example.com/other".getBytes()));
+        assertNull(tree.get("https://example.com/tenant/2".getBytes()));
+    }
+
+    @Test
+    void testConcurrentPuts() throws InterruptedException {
+        BPlusTree tree = new BPlusTree();
+        int threadCount = 10;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch latch = new CountDownLatch(threadCount);
+
+        for (int t = 0; t < threadCount; t++) {
+            final int thread = t;
+            executor.submit(() -> {
+                try {
+                    for (int i = 0; i < 2000; i++) {
+                        tree.put((thread + "-" + i).getBytes(), ("value " + i).getBytes());
+                        tree.get((thread + "-" + (i / 2)).getBytes());
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        executor.shutdown();
+
+        assertEquals(threadCount * 2000, tree.size());
+        for (int t = 0; t < threadCount; t++) {
+            assertEquals("value 1999", new String(tree.get((t + "-1999").getBytes())));
+        }
+    }
+
+    private static String string(byte[] value) {
+        return value == null ? null : new String(value);
+    }
+
+    private static int count(Iterator<Map.Entry<byte[], byte[]>> iterator) {
+        int count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,165 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+class CopyOnWriteTreeTest {
+
+    // Readers must get through even while a writer holds the lock.
+    @Test
+    void testReadersDoNotBlock() throws Exception {
+        ReentrantLock lock = new ReentrantLock();
+        CopyOnWriteTree tree = new CopyOnWriteTree(lock);
+        tree.put("key".getBytes(), "value".getBytes());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        lock.lock();
+        try {
+            Future<byte[]> read = executor.submit(() -> tree.get("key".getBytes()));
+            assertEquals("value", new String(read.get(5, TimeUnit.SECONDS)));
+            Future<Integer> scan = executor.submit(() -> count(tree.scan(null, null)));
+            assertEquals(1, scan.get(5, TimeUnit.SECONDS).intValue());
+        } finally {
+            lock.unlock();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testSnapshotIsImmutable() {
+        CopyOnWriteTree tree = new CopyOnWriteTree();
+        for (int i = 0; i < 100; i++) {
+            tree.put(String.format("key %03d", i).getBytes(), ("value " + i).getBytes());
+        }
+
+        CopyOnWriteTree.Snapshot snapshot = tree.snapshot();
+        for (int i = 0; i < 100; i += 2) {
+            tree.remove(String.format("key %03d", i).getBytes());
+        }
+        tree.put("key 001".getBytes(), "changed".getBytes());
+        tree.put("key 500".getBytes(), "added".getBytes());
+
+        assertEquals(100, count(snapshot.scan(null, null)));
+        assertEquals("value 0", new String(snapshot.get("key 000".getBytes())));
+        assertEquals("value 1", new String(snapshot.get("key 001".getBytes())));
+        assertNull(snapshot.get("key 500".getBytes()));
+
+        assertEquals(51, count(tree.scan(null, null)));
+        assertEquals("changed", new String(tree.get("key 001".getBytes())));
+        assertNull(tree.get("key 000".getBytes()));
+    }
+
+    @Test
+    void testScan() {
+        CopyOnWriteTree tree = new CopyOnWriteTree();
+        for (int i = 0; i < 50; i++) {
+            tree.put(String.format("key %02d", i).getBytes(), ("value " + i).getBytes());
+        }
+
+        Iterator<Map.Entry<byte[], byte[]>> iterator = tree.scan("key 10".getBytes(), "key 20".getBytes());
+        for (int i = 10; i < 20; i++) {
+            assertEquals(String.format("key %02d", i), new String(iterator.next().getKey()));
+        }
+        assertFalse(iterator.hasNext());
+
+        assertEquals(5, count(tree.scan("key 45".getBytes(), null)));
+        assertEquals(3, count(tree.scan(null, "key 03".getBytes())));
+        assertEquals(0, count(tree.scan("key 30".getBytes(), "key 20".getBytes())));
+    }
+
+    // Every reader scans a snapshot while writers keep changing the tree, and must see a sorted, complete version.
+    @Test
+    void testConcurrentSnapshots() throws InterruptedException {
+        CopyOnWriteTree tree = new CopyOnWriteTree();
+        int keyCount = 1000;
+        for (int i = 0; i < keyCount; i++) {
+            tree.put(String.format("key %04d", i).getBytes(), "value".getBytes());
+        }
+
+        int threadCount = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch latch = new CountDownLatch(threadCount);
+        int[] failures = new int[1];
+        for (int t = 0; t < threadCount; t++) {
+            final int thread = t;
+            executor.submit(() -> {
+                try {
+                    Random random = new Random(thread);
+                    for (int i = 0; i < 200; i++) {
+                        byte[] key = String.format("key %04d", random.nextInt(keyCount)).getBytes();
+                        if (thread % 2 == 0) {
+                            tree.put(key, ("value " + thread).getBytes());
+                        } else {
+                            CopyOnWriteTree.Snapshot snapshot = tree.snapshot();
+                            int[] seen = new int[1];
+                            byte[][] previous = new byte[1][];
+                            snapshot.forEach((k, v) -> {
+                                if (previous[0] != null && new String(previous[0]).compareTo(new String(k)) >= 0) {
+                                    synchronized (failures) {
+                                        failures[0]++;
+                                    }
+                                }
+                                previous[0] = k;
+                                seen[0]++;
+                            });
+                            if (seen[0] != keyCount) {
+                                synchronized (failures) {
+                                    failures[0]++;
+                                }
+                            }
+                        }
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        executor.shutdown();
+
+        assertEquals(0, failures[0]);
+    }
+
+    @Test
+    void testRandomOperationsMatchTreeMap() {
+        CopyOnWriteTree tree = new CopyOnWriteTree();
+        TreeMap<String, String> expected = new TreeMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            String key = "key " + random.nextInt(500);
+            if (random.nextInt(3) == 0) {
+                byte[] removed = tree.remove(key.getBytes());
+                assertEquals(expected.remove(key), removed == null ? null : new String(removed));
+            } else {
+                String value = "value " + i;
+                tree.put(key.getBytes(), value.getBytes());
+                expected.put(key, value);
+            }
+        }
+
+        Iterator<Map.Entry<byte[], byte[]>> iterator = tree.scan(null, null);
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            Map.Entry<byte[], byte[]> actual = iterator.next();
+            assertEquals(entry.getKey(), new String(actual.getKey()));
+            assertEquals(entry.getValue(), new String(actual.getValue()));
+        }
+        assertFalse(iterator.hasNext());
+    }
+
+    private static int count(Iterator<Map.Entry<byte[], byte[]>> iterator) {
+        int count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,135 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+class FlatCombiningTreeTest {
+
+    @Test
+    void testConcurrentPuts() throws InterruptedException {
+        FlatCombiningTree tree = new FlatCombiningTree();
+        int threadCount = 16;
+        int putsPerThread = 2000;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch latch = new CountDownLatch(threadCount);
+
+        for (int t = 0; t < threadCount; t++) {
+            final int thread = t;
+            executor.submit(() -> {
+                try {
+                    for (int i = 0; i < putsPerThread; i++) {
+                        tree.put(String.format("%02d-%05d", thread, i).getBytes(), ("value " + i).getBytes());
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        executor.shutdown();
+
+        int[] count = new int[1];
+        tree.tree().forEach((key, value) -> count[0]++);
+        assertEquals(threadCount * putsPerThread, count[0]);
+        for (int t = 0; t < threadCount; t++) {
+            assertEquals("value 1999", new String(tree.get(String.format("%02d-%05d", t, 1999).getBytes())));
+        }
+    }
+
+    // Batches are sorted in the tree's own key order, here unsigned, where 0x80 and up sort after 0x7f.
+    @Test
+    void testConcurrentPutsIntoUnsignedTree() throws InterruptedException {
+        FlatCombiningTree tree = new FlatCombiningTree(new ThreadSafeTree(ThreadSafeTree.UNSIGNED));
+        int threadCount = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch latch = new CountDownLatch(threadCount);
+
+        for (int t = 0; t < threadCount; t++) {
+            final int thread = t;
+            executor.submit(() -> {
+                try {
+                    for (int i = 0; i < 256; i++) {
+                        tree.put(new byte[] {(byte) i, (byte) thread}, new byte[] {(byte) thread});
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        executor.shutdown();
+
+        int[] count = new int[1];
+        tree.tree().forEach((key, value) -> {
+            assertEquals(count[0] / threadCount, key[0] & 0xFF);
+            assertEquals(count[0] % threadCount, key[1]);
+            assertEquals(key[1], value[0]);
+            count[0]++;
+        });
+        assertEquals(threadCount * 256, count[0]);
+    }
+
+    // A put is applied by the time it returns, even if another thread combined it.
+    @Test
+    void testPutIsVisibleOnReturn() throws InterruptedException {
+        FlatCombiningTree tree = new FlatCombiningTree();
+        int threadCount = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch latch = new CountDownLatch(threadCount);
+        int[] failures = new int[1];
+
+        for (int t = 0; t < threadCount; t++) {
+            final int thread = t;
+            executor.submit(() -> {
+                try {
+                    for (int i = 0; i < 2000; i++) {
+                        byte[] key = ("key " + thread).getBytes();
+                        tree.put(key, ("value " + i).getBytes());
+                        if (!new String(tree.get(key)).equals("value " + i)) {
+                            synchronized (failures) {
+                                failures[0]++;
+                            }
+                        }
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        executor.shutdown();
+
+        assertEquals(0, failures[0]);
+    }
+
+    // When the batch fails, the writers in it get the exception instead of returning as if their put was applied.
+    @Test
+    void testFailureReachesWriter() throws IOException {
+        Path path = Files.createTempFile("tree", ".wal");
+        try {
+            ThreadSafeTree tree = new ThreadSafeTree();
+            WriteAheadLog log = new WriteAheadLog(path, WriteAheadLog.SyncPolicy.NONE);
+            tree.setWriteAheadLog(log);
+            log.close();
+
+            FlatCombiningTree combining = new FlatCombiningTree(tree);
+            assertThrows(UncheckedIOException.class, () -> combining.put("key".getBytes(), "value".getBytes()));
+            assertNull(combining.get("key".getBytes()));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test
+    void testInvalidArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new FlatCombiningTree(null));
+        FlatCombiningTree tree = new FlatCombiningTree();
+        assertThrows(NullPointerException.class, () -> tree.put(null, "value".getBytes()));
+        assertThrows(NullPointerException.class, () -> tree.put("key".getBytes(), null));
+    }
+}
@@ -0,0 +1,165 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+class LockCouplingTreeTest {
+
+    // Every thread owns a key range, so each one can check its own keys while all of them rebalance the same tree.
+    @Test
+    void testConcurrentDisjointRanges() throws InterruptedException {
+        LockCouplingTree tree = new LockCouplingTree();
+        int threadCount = 8;
+        int keysPerThread = 2000;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch latch = new CountDownLatch(threadCount);
+        int[] failures = new int[1];
+
+        for (int t = 0; t < threadCount; t++) {
+            final int thread = t;
+            executor.submit(() -> {
+                try {
+                    for (int i = 0; i < keysPerThread; i++) {
+                        tree.put(String.format("%d-%05d", thread, i).getBytes(), ("value " + i).getBytes());
+                    }
+                    for (int i = 0; i < keysPerThread; i += 2) {
+                        byte[] removed = tree.remove(String.format("%d-%05d", thread, i).getBytes());
+                        if (removed == null || !new String(removed).equals("value " + i)) {
+                            synchronized (failures) {
+                                failures[0]++;
+                            }
+                        }
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        executor.shutdown();
+
+        assertEquals(0, failures[0]);
+        for (int t = 0; t < threadCount; t++) {
+            for (int i = 0; i < keysPerThread; i++) {
+                byte[] value = tree.get(String.format("%d-%05d", t, i).getBytes());
+                if (i % 2 == 0) {
+                    assertNull(value);
+                } else {
+                    assertEquals("value " + i, new String(value));
+                }
+            }
+        }
+    }
+
+    // Random puts and removes on disjoint key sets, checked against each thread's own record of its keys,
+    // and then the structure itself, since a broken rebalance can leave all lookups working for a while.
+    @Test
+    void testConcurrentPutsAndRemovesKeepInvariants() throws InterruptedException {
+        int threadCount = 8;
+        for (int round = 0; round < 30; round++) {
+            LockCouplingTree tree = new LockCouplingTree();
+            ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+            CountDownLatch latch = new CountDownLatch(threadCount);
+            int[] failures = new int[1];
+            int[] live = new int[threadCount];
+
+            for (int t = 0; t < threadCount; t++) {
+                final int thread = t;
+                final long seed = round * 100L + t;
+                executor.submit(() -> {
+                    try {
+                        Random random = new Random(seed);
+                        String[] values = new String[40];
+                        for (int i = 0; i < 10000; i++) {
+                            int k = random.nextInt(values.length);
+                            byte[] key = String.format("%02d-%d", k, thread).getBytes();
+                            if (random.nextBoolean()) {
+                                byte[] removed = tree.remove(key);
+                                String wanted = values[k];
+                                if (wanted == null ? removed != null : removed == null || !wanted.equals(new String(removed))) {
+                                    synchronized (failures) {
+                                        failures[0]++;
+                                    }
+                                }
+                                values[k] = null;
+                            } else {
+                                values[k] = "value " + i;
+                                tree.put(key, values[k].getBytes());
+                            }
+                        }
+                        for (int k = 0; k < values.length; k++) {
+                            byte[] value = tree.get(String.format("%02d-%d", k, thread).getBytes());
+                            if (values[k] == null ? value != null : value == null || !values[k].equals(new String(value))) {
+                                synchronized (failures) {
+                                    failures[0]++;
+                                }
+                            }
+                            if (values[k] != null) {
+                                live[thread]++;
+                            }
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                });
+            }
+            assertTrue(latch.await(60, TimeUnit.SECONDS), "Threads got stuck");
+            executor.shutdown();
+
+            assertEquals(0, failures[0]);
+            int expected = 0;
+            for (int count : live) {
+                expected += count;
+            }
+            assertEquals(expected, tree.checkInvariants());
+        }
+    }
+
+    // Removing a key with two children moves its predecessor into its node while other threads read.
+    @Test
+    void testReadsDuringRemoves() throws InterruptedException {
+        LockCouplingTree tree = new LockCouplingTree();
+        for (int i = 0; i < 4000; i++) {
+            tree.put(String.format("key %04d", i).getBytes(), ("value " + i).getBytes());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        CountDownLatch latch = new CountDownLatch(4);
+        int[] failures = new int[1];
+        executor.submit(() -> {
+            try {
+                for (int i = 0; i < 4000; i += 2) {
+                    tree.remove(String.format("key %04d", i).getBytes());
+                }
+            } finally {
+                latch.countDown();
+            }
+        });
+        for (int t = 0; t < 3; t++) {
+            final int thread = t;
+            executor.submit(() -> {
+                try {
+                    Random random = new Random(thread);
+                    for (int i = 0; i < 20000; i++) {
+                        int key = random.nextInt(2000) * 2 + 1;
+                        byte[] value = tree.get(String.format("key %04d", key).getBytes());
+                        if (value == null || !new String(value).equals("value " + key)) {
+                            synchronized (failures) {
+                                failures[0]++;
+                            }
+                        }
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        executor.shutdown();
+
+        assertEquals(0, failures[0]);
+    }
+}
@@ -0,0 +1,101 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+class LongKeyTreeTest {
+
+    @Test
+    void testPutGetRemove() {
+        LongKeyTree tree = new LongKeyTree();
+        tree.put(42L, "answer".getBytes());
+        tree.put(Long.MIN_VALUE, "min".getBytes());
+        tree.put(Long.MAX_VALUE, "max".getBytes());
+        tree.put(-1L, "minus one".getBytes());
+
+        assertEquals("answer", new String(tree.get(42L)));
+        assertEquals("min", new String(tree.get(Long.MIN_VALUE)));
+        assertEquals("max", new String(tree.get(Long.MAX_VALUE)));
+        assertEquals("minus one", new String(tree.remove(-1L)));
+        assertNull(tree.get(-1L));
+        assertNull(tree.remove(-1L));
+        assertThrows(NullPointerException.class, () -> tree.put(1L, null));
+    }
+
+    @Test
+    void testConcurrentPuts() throws InterruptedException {
+        LongKeyTree tree = LongKeyTree.withOptimisticReads();
+        int threadCount = 10;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch latch = new CountDownLatch(threadCount);
+
+        for (int t = 0; t < threadCount; t++) {
+            final long thread = t;
+            executor.submit(() -> {
+                try {
+                    for (long i = 0; i < 1000; i++) {
+                        tree.put(thread * 1000 + i, ("value " + i).getBytes());
+                        tree.get(thread * 1000 + i / 2);
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        executor.shutdown();
+
+        for (long key = 0; key < threadCount * 1000; key++) {
+            assertEquals("value " + (key % 1000), new String(tree.get(key)));
+        }
+    }
+
+    @Test
+    void testRandomOperationsMatchTreeMap() {
+        LongKeyTree tree = new LongKeyTree();
+        TreeMap<Long, String> expected = new TreeMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            long key = random.nextInt(1000) - 500;
+            if (random.nextInt(3) == 0) {
+                byte[] removed = tree.remove(key);
+                assertEquals(expected.remove(key), removed == null ? null : new String(removed));
+            } else {
+                tree.put(key, ("value " + i).getBytes());
+                expected.put(key, "value " + i);
+            }
+        }
+        for (long key = -500; key < 500; key++) {
+            byte[] value = tree.get(key);
+            assertEquals(expected.get(key), value == null ? null : new String(value));
+        }
+    }
+
+    @Test
+    void testKeysAcrossTheSignBoundary() {
+        LongKeyTree tree = LongKeyTree.withOptimisticReads();
+        TreeMap<Long, String> expected = new TreeMap<>(Long::compareUnsigned);
+        Random random = new Random(7);
+        long[] edges = {0L, 1L, -1L, Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE - 1, Long.MIN_VALUE + 1};
+        for (int i = 0; i < 20000; i++) {
+            long key = i < edges.length ? edges[i] : random.nextInt(4) == 0 ? edges[random.nextInt(edges.length)] : random.nextLong();
+            if (random.nextInt(4) == 0) {
+                byte[] removed = tree.remove(key);
+                assertEquals(expected.remove(key), removed == null ? null : new String(removed));
+            } else {
+                tree.put(key, ("value " + i).getBytes());
+                expected.put(key, "value " + i);
+            }
+        }
+        for (long key : edges) {
+            byte[] value = tree.get(key);
+            assertEquals(expected.get(key), value == null ? null : new String(value));
+        }
+        for (long key : expected.keySet()) {
+            assertEquals(expected.get(key), new String(tree.get(key)));
+        }
+    }
+}
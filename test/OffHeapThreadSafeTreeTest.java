@@ -0,0 +1,156 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+class OffHeapThreadSafeTreeTest {
+
+    @Test
+    void testConcurrentPuts() throws InterruptedException {
+        OffHeapThreadSafeTree tree = new OffHeapThreadSafeTree();
+        int numThreads = 16;
+        int putsPerThread = 500;
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        CountDownLatch startLatch = new CountDownLatch(1);
+        CountDownLatch doneLatch = new CountDownLatch(numThreads);
+
+        for (int i = 0; i < numThreads; i++) {
+            int threadId = i;
+            executor.submit(() -> {
+                try {
+                    startLatch.await();
+                    for (int j = 0; j < putsPerThread; j++) {
+                        String key = "thread: " + threadId + " key: " + j;
+                        tree.put(key.getBytes(), "test".getBytes());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    doneLatch.countDown();
+                }
+            });
+        }
+
+        startLatch.countDown();
+        doneLatch.await();
+        executor.shutdown();
+
+        int foundKeys = 0;
+        for (int i = 0; i < numThreads; i++) {
+            for (int j = 0; j < putsPerThread; j++) {
+                String key = "thread: " + i + " key: " + j;
+                if (tree.get(key.getBytes()) != null) {
+                    foundKeys++;
+                }
+            }
+        }
+        assertEquals(numThreads * putsPerThread, foundKeys);
+    }
+
+    @Test
+    void testGetPutAndRemove() {
+        OffHeapThreadSafeTree tree = new OffHeapThreadSafeTree();
+        assertNull(tree.get("random".getBytes()));
+
+        // The tree copies the bytes, so changing the caller's array afterwards must not matter.
+        byte[] value = "first".getBytes();
+        tree.put("test".getBytes(), value);
+        value[0] = 'X';
+        assertEquals("first", new String(tree.get("test".getBytes())));
+
+        tree.put("test".getBytes(), "1st".getBytes());
+        assertEquals("1st", new String(tree.get("test".getBytes())));
+        tree.put("test".getBytes(), "a longer value than before".getBytes());
+        assertEquals("a longer value than before", new String(tree.get("test".getBytes())));
+        tree.put("empty".getBytes(), new byte[0]);
+        assertEquals(0, tree.get("empty".getBytes()).length);
+
+        assertEquals("a longer value than before", new String(tree.remove("test".getBytes())));
+        assertNull(tree.get("test".getBytes()));
+        assertNull(tree.remove("test".getBytes()));
+
+        assertThrows(NullPointerException.class, () -> tree.put(null, "test".getBytes()));
+        assertThrows(NullPointerException.class, () -> tree.put("test".getBytes(), null));
+        assertThrows(IllegalArgumentException.class, () -> new OffHeapThreadSafeTree(null));
+    }
+
+    // Tiny chunks force many chunks and records that don't fit a chunk, all checked against a TreeMap.
+    @Test
+    void testRandomOperationsAgainstTreeMap() {
+        OffHeapThreadSafeTree tree = new OffHeapThreadSafeTree(new ReentrantReadWriteLock(), 256);
+        TreeMap<String, String> expected = new TreeMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            String key = "key " + random.nextInt(500);
+            if (random.nextInt(3) == 0) {
+                String old = expected.remove(key);
+                byte[] removed = tree.remove(key.getBytes());
+                assertEquals(old, removed == null ? null : new String(removed));
+            } else {
+                String value = "value " + i + " ".repeat(random.nextInt(300));
+                expected.put(key, value);
+                tree.put(key.getBytes(), value.getBytes());
+            }
+        }
+
+        for (int i = 0; i < 500; i++) {
+            byte[] value = tree.get(("key " + i).getBytes());
+            assertEquals(expected.get("key " + i), value == null ? null : new String(value));
+        }
+    }
+
+    // Key and value records get recycled too: removes, two-child deletes and values outgrowing their record
+    // all hand their records back, so after a warm-up, churning over the same entries reserves nothing more.
+    @Test
+    void testRecordRecycling() {
+        OffHeapThreadSafeTree tree = new OffHeapThreadSafeTree(new ReentrantReadWriteLock(), 16 * 1024);
+        long before = 0;
+        for (int round = 0; round < 204; round++) {
+            if (round == 4) {
+                before = tree.offHeapBytes();
+            }
+            for (int i = 0; i < 1000; i++) {
+                tree.remove(("key " + i).getBytes());
+            }
+            for (int i = 0; i < 1000; i++) {
+                tree.put(("key " + i).getBytes(), new byte[10]);
+            }
+            for (int i = 0; i < 1000; i++) {
+                tree.put(("key " + i).getBytes(), new byte[round % 2 == 0 ? 100 : 30]);
+            }
+        }
+        assertEquals(before, tree.offHeapBytes());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(30, tree.get(("key " + i).getBytes()).length);
+        }
+    }
+
+    // Removed nodes get recycled, so churning over the same keys must not keep growing the node arena.
+    @Test
+    void testNodeRecycling() {
+        OffHeapThreadSafeTree tree = new OffHeapThreadSafeTree(new ReentrantReadWriteLock(), 48 * 1024);
+        for (int i = 0; i < 100; i++) {
+            tree.put(("key " + i).getBytes(), "test".getBytes());
+        }
+        long before = tree.offHeapBytes();
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 100; i++) {
+                tree.remove(("key " + i).getBytes());
+            }
+            for (int i = 0; i < 100; i++) {
+                tree.put(("key " + i).getBytes(), "test".getBytes());
+            }
+        }
+        // Only the data arena may have grown, by the key and value bytes of the churned entries.
+        assertTrue(tree.offHeapBytes() - before <= 10 * 100 * 64);
+        for (int i = 0; i < 100; i++) {
+            assertNotNull(tree.get(("key " + i).getBytes()));
+        }
+    }
+}
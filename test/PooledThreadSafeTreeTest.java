@@ -0,0 +1,90 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+class PooledThreadSafeTreeTest {
+
+    // Removed slots are reused, so a steady mix of puts and removes doesn't grow the arrays.
+    @Test
+    void testSlotsAreRecycled() {
+        PooledThreadSafeTree tree = new PooledThreadSafeTree(new ReentrantReadWriteLock(), 16);
+        for (int i = 0; i < 16; i++) {
+            tree.put(("key " + i).getBytes(), "value".getBytes());
+        }
+        for (int round = 0; round < 1000; round++) {
+            assertNotNull(tree.remove(("key " + (round % 16)).getBytes()));
+            tree.put(("key " + (round % 16)).getBytes(), ("value " + round).getBytes());
+        }
+        assertEquals(16, tree.size());
+        assertEquals(16, tree.capacity());
+
+        tree.put("one more".getBytes(), "value".getBytes());
+        assertEquals(32, tree.capacity());
+    }
+
+    @Test
+    void testRandomOperationsMatchTreeMap() {
+        PooledThreadSafeTree tree = new PooledThreadSafeTree(new ReentrantReadWriteLock(), 1);
+        TreeMap<String, String> expected = new TreeMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            String key = "key " + random.nextInt(500);
+            if (random.nextInt(3) == 0) {
+                byte[] removed = tree.remove(key.getBytes());
+                assertEquals(expected.remove(key), removed == null ? null : new String(removed));
+            } else {
+                tree.put(key.getBytes(), ("value " + i).getBytes());
+                expected.put(key, "value " + i);
+            }
+        }
+
+        List<String> visited = new ArrayList<>();
+        tree.forEach((key, value) -> visited.add(new String(key) + "=" + new String(value)));
+        List<String> wanted = new ArrayList<>();
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            wanted.add(entry.getKey() + "=" + entry.getValue());
+        }
+        assertEquals(wanted, visited);
+        assertEquals(expected.size(), tree.size());
+    }
+
+    @Test
+    void testConcurrentPutsAndRemoves() throws InterruptedException {
+        PooledThreadSafeTree tree = new PooledThreadSafeTree();
+        int threadCount = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch latch = new CountDownLatch(threadCount);
+
+        for (int t = 0; t < threadCount; t++) {
+            final int thread = t;
+            executor.submit(() -> {
+                try {
+                    for (int i = 0; i < 2000; i++) {
+                        tree.put((thread + "-" + i).getBytes(), ("value " + i).getBytes());
+                        if (i % 2 == 1) {
+                            tree.remove((thread + "-" + (i - 1)).getBytes());
+                        }
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        executor.shutdown();
+
+        assertEquals(threadCount * 1000, tree.size());
+        for (int t = 0; t < threadCount; t++) {
+            assertNull(tree.get((t + "-0").getBytes()));
+            assertEquals("value 1", new String(tree.get((t + "-1").getBytes())));
+        }
+    }
+}
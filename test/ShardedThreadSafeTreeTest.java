@@ -0,0 +1,119 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+class ShardedThreadSafeTreeTest {
+
+    // Same idea as the concurrent test for the plain tree, but the keys are spread over all shards.
+    @Test
+    void testConcurrentPutsAcrossShards() throws InterruptedException {
+        ShardedThreadSafeTree tree = new ShardedThreadSafeTree("thread: 4".getBytes(), "thread: 8".getBytes(), "thread: c".getBytes());
+        int numThreads = 16;
+        int putsPerThread = 500;
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        CountDownLatch startLatch = new CountDownLatch(1);
+        CountDownLatch doneLatch = new CountDownLatch(numThreads);
+
+        for (int i = 0; i < numThreads; i++) {
+            int threadId = i;
+            executor.submit(() -> {
+                try {
+                    startLatch.await();
+                    for (int j = 0; j < putsPerThread; j++) {
+                        String key = "thread: " + Integer.toHexString(threadId) + " key: " + j;
+                        tree.put(key.getBytes(), "test".getBytes());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    doneLatch.countDown();
+                }
+            });
+        }
+
+        startLatch.countDown();
+        doneLatch.await();
+        executor.shutdown();
+
+        int foundKeys = 0;
+        for (int i = 0; i < numThreads; i++) {
+            for (int j = 0; j < putsPerThread; j++) {
+                String key = "thread: " + Integer.toHexString(i) + " key: " + j;
+                if (tree.get(key.getBytes()) != null) {
+                    foundKeys++;
+                }
+            }
+        }
+        assertEquals(numThreads * putsPerThread, foundKeys);
+    }
+
+    // Walking the shards one after another has to give one globally sorted sequence.
+    @Test
+    void testOrderedIteration() {
+        ShardedThreadSafeTree tree = new ShardedThreadSafeTree("d".getBytes(), "m".getBytes());
+        String[] keys = {"z", "a", "m", "c", "q", "d", "b", "n"};
+        for (String key : keys) {
+            tree.put(key.getBytes(), key.getBytes());
+        }
+
+        List<String> visited = new ArrayList<>();
+        tree.forEach((key, value) -> visited.add(new String(key)));
+
+        String[] sorted = keys.clone();
+        Arrays.sort(sorted);
+        assertEquals(Arrays.asList(sorted), visited);
+    }
+
+    @Test
+    void testSplitPointsFromSample() {
+        List<byte[]> sample = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            sample.add(String.format("key %03d", i).getBytes());
+        }
+
+        ShardedThreadSafeTree tree = ShardedThreadSafeTree.fromSample(sample, 4);
+        assertEquals(4, tree.shardCount());
+        for (byte[] key : sample) {
+            tree.put(key, key);
+        }
+        for (byte[] key : sample) {
+            assertArrayEquals(key, tree.get(key));
+        }
+
+        // A sample with a single distinct key can't be split at all.
+        List<byte[]> skewed = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            skewed.add("same".getBytes());
+        }
+        assertEquals(1, ShardedThreadSafeTree.fromSample(skewed, 4).shardCount());
+    }
+
+    @Test
+    void testInvalidSplitPoints() {
+        assertThrows(IllegalArgumentException.class, () -> new ShardedThreadSafeTree("b".getBytes(), "a".getBytes()));
+        assertThrows(IllegalArgumentException.class, () -> new ShardedThreadSafeTree("a".getBytes(), "a".getBytes()));
+        assertThrows(IllegalArgumentException.class, () -> ShardedThreadSafeTree.fromSample(new ArrayList<>(), 0));
+
+        ShardedThreadSafeTree tree = new ShardedThreadSafeTree("m".getBytes());
+        assertNull(tree.get(null));
+        assertThrows(NullPointerException.class, () -> tree.put(null, "test".getBytes()));
+    }
+
+    @Test
+    void testRemove() {
+        ShardedThreadSafeTree tree = new ShardedThreadSafeTree("m".getBytes());
+        tree.put("a".getBytes(), "first".getBytes());
+        tree.put("z".getBytes(), "second".getBytes());
+
+        assertEquals("first", new String(tree.remove("a".getBytes())));
+        assertEquals("second", new String(tree.remove("z".getBytes())));
+        assertNull(tree.remove("z".getBytes()));
+        assertNull(tree.get("a".getBytes()));
+    }
+}
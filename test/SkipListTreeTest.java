@@ -0,0 +1,59 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+class SkipListTreeTest {
+
+    // The skip list has to order keys exactly like the red-black tree, signed bytes included.
+    @Test
+    void testOrderMatchesThreadSafeTree() {
+        SkipListTree skipList = new SkipListTree();
+        ThreadSafeTree tree = new ThreadSafeTree();
+        byte[][] keys = {{1}, {-1}, {0}, {1, 0}, {}, {127}, {-128}, {-1, -1}};
+        for (byte[] key : keys) {
+            skipList.put(key, key);
+            tree.put(key, key);
+        }
+
+        List<byte[]> fromSkipList = new ArrayList<>();
+        skipList.forEach((key, value) -> fromSkipList.add(key));
+        List<byte[]> fromTree = new ArrayList<>();
+        tree.forEach((key, value) -> fromTree.add(key));
+
+        assertEquals(fromTree.size(), fromSkipList.size());
+        for (int i = 0; i < fromTree.size(); i++) {
+            assertArrayEquals(fromTree.get(i), fromSkipList.get(i));
+        }
+    }
+
+    @Test
+    void testScan() {
+        SkipListTree tree = new SkipListTree();
+        for (int i = 0; i < 50; i++) {
+            tree.put(String.format("key %02d", i).getBytes(), ("value " + i).getBytes());
+        }
+
+        Iterator<Map.Entry<byte[], byte[]>> iterator = tree.scan("key 10".getBytes(), "key 20".getBytes());
+        for (int i = 10; i < 20; i++) {
+            assertEquals(String.format("key %02d", i), new String(iterator.next().getKey()));
+        }
+        assertFalse(iterator.hasNext());
+
+        assertEquals(50, count(tree.scan(null, null)));
+        assertEquals(5, count(tree.scan("key 45".getBytes(), null)));
+        assertEquals(3, count(tree.scan(null, "key 03".getBytes())));
+        assertEquals(0, count(tree.scan("key 30".getBytes(), "key 20".getBytes())));
+    }
+
+    private static int count(Iterator<Map.Entry<byte[], byte[]>> iterator) {
+        int count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        return count;
+    }
+}
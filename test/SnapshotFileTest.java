@@ -0,0 +1,286 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+class SnapshotFileTest {
+
+    @Test
+    void testSnapshotAndLoad() throws IOException {
+        Path path = Files.createTempFile("tree", ".snapshot");
+        try {
+            ThreadSafeTree tree = new ThreadSafeTree();
+            for (int i = 0; i < 1000; i++) {
+                tree.put(String.format("key %04d", i * 2).getBytes(), ("value " + i).getBytes());
+            }
+            tree.snapshot(path);
+
+            ThreadSafeTree loaded = ThreadSafeTree.loadSnapshot(path);
+            for (int i = 0; i < 1000; i++) {
+                assertEquals("value " + i, new String(loaded.get(String.format("key %04d", i * 2).getBytes())));
+                assertNull(loaded.get(String.format("key %04d", i * 2 + 1).getBytes()));
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    // The key order is kept in the file, so lookups in the mapped file and the loaded tree both use it.
+    @Test
+    void testUnsignedSnapshot() throws IOException {
+        Path path = Files.createTempFile("tree", ".snapshot");
+        try {
+            ThreadSafeTree tree = new ThreadSafeTree(ThreadSafeTree.UNSIGNED);
+            for (int i = 0; i < 1000; i++) {
+                tree.put(new byte[]{(byte) (i >> 8), (byte) i}, ("value " + i).getBytes());
+            }
+            tree.snapshot(path);
+
+            SnapshotFile snapshot = new SnapshotFile(path);
+            assertSame(ThreadSafeTree.UNSIGNED, snapshot.comparator());
+            ThreadSafeTree loaded = snapshot.toTree();
+            assertSame(ThreadSafeTree.UNSIGNED, loaded.comparator());
+            for (int i = 0; i < 1000; i++) {
+                byte[] key = {(byte) (i >> 8), (byte) i};
+                assertEquals("value " + i, new String(snapshot.get(key)));
+                assertEquals("value " + i, new String(loaded.get(key)));
+            }
+
+            ThreadSafeTree custom = new ThreadSafeTree(ThreadSafeTree.SIGNED.reversed());
+            assertThrows(IllegalStateException.class, () -> custom.snapshot(path));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    // Reads straight from the mapped file have to find every key, including the first and last of each index block.
+    @Test
+    void testReadsFromMappedFile() throws IOException {
+        Path path = Files.createTempFile("tree", ".snapshot");
+        try {
+            ThreadSafeTree tree = new ThreadSafeTree();
+            for (int i = 0; i < 500; i++) {
+                tree.put(String.format("key %04d", i * 2).getBytes(), ("value " + i).getBytes());
+            }
+            tree.snapshot(path);
+
+            SnapshotFile snapshot = new SnapshotFile(path);
+            assertEquals(500, snapshot.size());
+            for (int i = 0; i < 500; i++) {
+                assertEquals("value " + i, new String(snapshot.get(String.format("key %04d", i * 2).getBytes())));
+                assertNull(snapshot.get(String.format("key %04d", i * 2 + 1).getBytes()));
+            }
+            assertNull(snapshot.get("a".getBytes()));
+            assertNull(snapshot.get("z".getBytes()));
+            assertNull(snapshot.get(null));
+
+            int count = 0;
+            Iterator<Map.Entry<byte[], byte[]>> iterator = snapshot.iterator();
+            while (iterator.hasNext()) {
+                assertEquals(String.format("key %04d", count * 2), new String(iterator.next().getKey()));
+                count++;
+            }
+            assertEquals(500, count);
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test
+    void testEmptySnapshotAndAsyncLoad() throws Exception {
+        Path path = Files.createTempFile("tree", ".snapshot");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            new ThreadSafeTree().snapshot(path);
+            SnapshotFile empty = new SnapshotFile(path);
+            assertEquals(0, empty.size());
+            assertNull(empty.get("key".getBytes()));
+
+            ThreadSafeTree tree = new ThreadSafeTree();
+            tree.put("key".getBytes(), "value".getBytes());
+            tree.snapshot(path);
+            SnapshotFile snapshot = new SnapshotFile(path);
+            CompletableFuture<ThreadSafeTree> loading = snapshot.loadAsync(executor);
+            assertEquals("value", new String(snapshot.get("key".getBytes())));
+            assertEquals("value", new String(loading.get().get("key".getBytes())));
+        } finally {
+            executor.shutdown();
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test
+    void testRejectsOtherFiles() throws IOException {
+        Path path = Files.createTempFile("tree", ".snapshot");
+        try {
+            Files.write(path, "definitely not a snapshot file".getBytes());
+            assertThrows(IOException.class, () -> new SnapshotFile(path));
+            Files.write(path, new byte[3]);
+            assertThrows(IOException.class, () -> new SnapshotFile(path));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    // Broken offsets and lengths have to come out as IOException, or as UncheckedIOException from the reads
+    // that can't throw a checked one, never as some exception from reading past the data.
+    @Test
+    void testRejectsCorruptedSnapshots() throws IOException {
+        Path path = Files.createTempFile("tree", ".snapshot");
+        try {
+            ThreadSafeTree tree = new ThreadSafeTree();
+            for (int i = 0; i < 200; i++) {
+                tree.put(String.format("key %04d", i).getBytes(), ("value " + i).getBytes());
+            }
+            tree.snapshot(path);
+            byte[] valid = Files.readAllBytes(path);
+            int footer = valid.length - 24;
+            int dataEnd = (int) ByteBuffer.wrap(valid).getLong(footer);
+
+            // Truncated, so the footer is gone.
+            Files.write(path, Arrays.copyOf(valid, valid.length - 5));
+            assertThrows(IOException.class, () -> new SnapshotFile(path));
+
+            // The first index entry points past the data, or has a key running into the footer.
+            assertThrows(IOException.class, () -> new SnapshotFile(corrupt(path, valid, dataEnd, Long.MAX_VALUE / 2)));
+            assertThrows(IOException.class, () -> new SnapshotFile(corrupt(path, valid, dataEnd + 8, (int) 1e9)));
+            assertThrows(IOException.class, () -> new SnapshotFile(corrupt(path, valid, dataEnd + 8, -1)));
+            // Too many index entries in the footer, or a pair count that doesn't go with them.
+            assertThrows(IOException.class, () -> new SnapshotFile(corrupt(path, valid, footer + 8, Integer.MAX_VALUE)));
+            assertThrows(IOException.class, () -> new SnapshotFile(corrupt(path, valid, footer + 12, 5000L)));
+
+            // The first pair's key length runs off the data, which only shows once the pair is read.
+            SnapshotFile snapshot = new SnapshotFile(corrupt(path, valid, 12, Integer.MAX_VALUE - 4));
+            assertThrows(UncheckedIOException.class, () -> snapshot.get("key 0000".getBytes()));
+            assertThrows(UncheckedIOException.class, () -> snapshot.iterator().next());
+            assertThrows(IOException.class, () -> ThreadSafeTree.loadSnapshot(path));
+
+            Files.write(path, valid);
+            assertEquals(200, ThreadSafeTree.loadSnapshot(path).size());
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    // Writers move amounts between two keys in single batches while snapshots are taken, so every snapshot
+    // has to add up to the same total, even though the read lock is let go between chunks.
+    @Test
+    void testSnapshotWhileWriting() throws Exception {
+        Path path = Files.createTempFile("tree", ".snapshot");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ThreadSafeTree tree = new ThreadSafeTree();
+            int accounts = 3000;
+            for (int i = 0; i < accounts; i++) {
+                tree.put(String.format("account %04d", i).getBytes(), ByteBuffer.allocate(4).putInt(100).array());
+            }
+
+            AtomicBoolean running = new AtomicBoolean(true);
+            Future<?> writer = executor.submit(() -> {
+                Random random = new Random(42);
+                while (running.get()) {
+                    byte[] from = String.format("account %04d", random.nextInt(accounts)).getBytes();
+                    byte[] to = String.format("account %04d", random.nextInt(accounts)).getBytes();
+                    if (Arrays.equals(from, to)) {
+                        continue;
+                    }
+                    int fromBalance = ByteBuffer.wrap(tree.get(from)).getInt() - 1;
+                    int toBalance = ByteBuffer.wrap(tree.get(to)).getInt() + 1;
+                    tree.putAll(List.of(
+                            new AbstractMap.SimpleImmutableEntry<>(from, ByteBuffer.allocate(4).putInt(fromBalance).array()),
+                            new AbstractMap.SimpleImmutableEntry<>(to, ByteBuffer.allocate(4).putInt(toBalance).array())));
+                }
+            });
+
+            for (int round = 0; round < 5; round++) {
+                tree.snapshot(path);
+                long total = 0;
+                Iterator<Map.Entry<byte[], byte[]>> iterator = new SnapshotFile(path).iterator();
+                while (iterator.hasNext()) {
+                    total += ByteBuffer.wrap(iterator.next().getValue()).getInt();
+                }
+                assertEquals(100L * accounts, total);
+            }
+            running.set(false);
+            writer.get();
+        } finally {
+            executor.shutdown();
+            Files.deleteIfExists(path);
+        }
+    }
+
+    // Snapshots of different trees written to the same path at the same time must not mix their data:
+    // the file that ends up there is one of them, complete, and no temporary files are left behind.
+    @Test
+    void testConcurrentSnapshotsToSamePath() throws Exception {
+        Path path = Files.createTempFile("tree", ".snapshot");
+        int numThreads = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            CountDownLatch startLatch = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < numThreads; t++) {
+                ThreadSafeTree tree = new ThreadSafeTree();
+                for (int i = 0; i < 1000 * (t + 1); i++) {
+                    tree.put(String.format("key %05d", i).getBytes(), ("tree " + t).getBytes());
+                }
+                futures.add(executor.submit(() -> {
+                    startLatch.await();
+                    for (int round = 0; round < 10; round++) {
+                        tree.snapshot(path);
+                    }
+                    return null;
+                }));
+            }
+            startLatch.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+            SnapshotFile snapshot = new SnapshotFile(path);
+            String owner = new String(snapshot.get("key 00000".getBytes()));
+            int t = Integer.parseInt(owner.substring("tree ".length()));
+            assertEquals(1000L * (t + 1), snapshot.size());
+            Iterator<Map.Entry<byte[], byte[]>> iterator = snapshot.iterator();
+            while (iterator.hasNext()) {
+                assertEquals(owner, new String(iterator.next().getValue()));
+            }
+            try (Stream<Path> files = Files.list(path.toAbsolutePath().getParent())) {
+                String prefix = path.getFileName() + ".";
+                assertEquals(0, files.filter(file -> file.getFileName().toString().startsWith(prefix)).count());
+            }
+        } finally {
+            executor.shutdown();
+            Files.deleteIfExists(path);
+        }
+    }
+
+    // Writes a copy of the valid snapshot with an int or a long overwritten at the given position.
+    private static Path corrupt(Path path, byte[] valid, int position, Number number) throws IOException {
+        ByteBuffer copy = ByteBuffer.wrap(valid.clone());
+        if (number instanceof Long) {
+            copy.putLong(position, number.longValue());
+        } else {
+            copy.putInt(position, number.intValue());
+        }
+        Files.write(path, copy.array());
+        return path;
+    }
+}
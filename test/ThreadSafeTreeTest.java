@@ -1,8 +1,26 @@
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+import java.util.stream.IntStream;
 
 class ThreadSafeTreeTest {
 
@@ -82,4 +100,1080 @@ class ThreadSafeTreeTest {
         });
 
     }
-}
\ No newline at end of file
+
+    // Readers run optimistically while writers keep rotating the tree underneath them.
+    // Every key that was put before the readers started has to stay visible the whole time.
+    @Test
+    void testOptimisticReadsDuringPuts() throws InterruptedException {
+        ThreadSafeTree tree = ThreadSafeTree.withOptimisticReads();
+        int preloaded = 1000;
+        for (int i = 0; i < preloaded; i++) {
+            tree.put(("pre " + i).getBytes(), ("value " + i).getBytes());
+        }
+
+        int numWriters = 4;
+        int numReaders = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(numWriters + numReaders);
+        CountDownLatch startLatch = new CountDownLatch(1);
+        CountDownLatch doneLatch = new CountDownLatch(numWriters + numReaders);
+        AtomicInteger missing = new AtomicInteger();
+
+        for (int i = 0; i < numWriters; i++) {
+            int threadId = i;
+            executor.submit(() -> {
+                try {
+                    startLatch.await();
+                    for (int j = 0; j < 2000; j++) {
+                        tree.put(("writer " + threadId + " key " + j).getBytes(), "test".getBytes());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    doneLatch.countDown();
+                }
+            });
+        }
+        for (int i = 0; i < numReaders; i++) {
+            executor.submit(() -> {
+                try {
+                    startLatch.await();
+                    for (int round = 0; round < 5; round++) {
+                        for (int j = 0; j < preloaded; j++) {
+                            byte[] value = tree.get(("pre " + j).getBytes());
+                            if (value == null || !("value " + j).equals(new String(value))) {
+                                missing.incrementAndGet();
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    doneLatch.countDown();
+                }
+            });
+        }
+
+        startLatch.countDown();
+        doneLatch.await();
+        executor.shutdown();
+
+        assertEquals(0, missing.get());
+        for (int i = 0; i < numWriters; i++) {
+            for (int j = 0; j < 2000; j++) {
+                assertNotNull(tree.get(("writer " + i + " key " + j).getBytes()));
+            }
+        }
+    }
+
+    // Removes swap keys of other lengths into nodes that optimistic readers may be comparing against at that moment.
+    // All keys share their first 8 bytes, so every comparison goes on past the cached prefix.
+    // A torn read may give a wrong intermediate result, but it must never reach the caller.
+    @Test
+    void testOptimisticReadsDuringRemoves() throws InterruptedException {
+        ThreadSafeTree tree = ThreadSafeTree.withOptimisticReads();
+        int stableKeys = 500;
+        for (int i = 0; i < stableKeys; i++) {
+            tree.put(("samepref stable " + i).getBytes(), ("value " + i).getBytes());
+        }
+
+        int numWriters = 2;
+        int numReaders = 6;
+        ExecutorService executor = Executors.newFixedThreadPool(numWriters + numReaders);
+        CountDownLatch startLatch = new CountDownLatch(1);
+        CountDownLatch doneLatch = new CountDownLatch(numWriters + numReaders);
+        AtomicInteger failures = new AtomicInteger();
+
+        for (int i = 0; i < numWriters; i++) {
+            int threadId = i;
+            executor.submit(() -> {
+                try {
+                    startLatch.await();
+                    Random random = new Random(threadId);
+                    for (int j = 0; j < 20000; j++) {
+                        byte[] key = ("samepref" + "x".repeat(random.nextInt(30)) + threadId + " " + random.nextInt(200)).getBytes();
+                        if (random.nextBoolean()) {
+                            tree.remove(key);
+                        } else {
+                            tree.put(key, "churn".getBytes());
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    failures.incrementAndGet();
+                } finally {
+                    doneLatch.countDown();
+                }
+            });
+        }
+        for (int i = 0; i < numReaders; i++) {
+            executor.submit(() -> {
+                try {
+                    startLatch.await();
+                    for (int round = 0; round < 10; round++) {
+                        for (int j = 0; j < stableKeys; j++) {
+                            byte[] key = ("samepref stable " + j).getBytes();
+                            byte[] value = tree.get(key);
+                            byte[] fromBuffer = tree.get(ByteBuffer.wrap(key));
+                            if (value == null || !("value " + j).equals(new String(value)) || !Arrays.equals(value, fromBuffer)) {
+                                failures.incrementAndGet();
+                            }
+                            tree.floorEntry(key);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    failures.incrementAndGet();
+                } finally {
+                    doneLatch.countDown();
+                }
+            });
+        }
+
+        startLatch.countDown();
+        doneLatch.await();
+        executor.shutdown();
+
+        assertEquals(0, failures.get());
+    }
+
+    // The comparator throws once, standing in for an optimistic descent tripping over a half-linked node.
+    // The lookup must go on under the read lock, while an exception that happens there too reaches the caller.
+    @Test
+    void testOptimisticReadFallsBackOnException() {
+        AtomicInteger throwsLeft = new AtomicInteger();
+        Comparator<byte[]> comparator = (first, second) -> {
+            if (throwsLeft.getAndDecrement() > 0) {
+                throw new IllegalStateException("Inconsistent node.");
+            }
+            return Arrays.compare(first, second);
+        };
+        ThreadSafeTree tree = new ThreadSafeTree(new StampedLock(), comparator);
+        for (int i = 0; i < 10; i++) {
+            tree.put(("key " + i).getBytes(), ("value " + i).getBytes());
+        }
+
+        throwsLeft.set(1);
+        assertEquals("value 5", new String(tree.get("key 5".getBytes())));
+        throwsLeft.set(1);
+        assertEquals("key 6", new String(tree.ceilingEntry("key 55".getBytes()).getKey()));
+        throwsLeft.set(1);
+        assertNull(tree.remove("key 55".getBytes()));
+        throwsLeft.set(1);
+        assertEquals("value 5", new String(tree.remove("key 5".getBytes())));
+
+        throwsLeft.set(Integer.MAX_VALUE);
+        assertThrows(IllegalStateException.class, () -> tree.get("key 1".getBytes()));
+    }
+
+    @Test
+    void testExternalStampedLock() {
+        assertThrows(IllegalArgumentException.class, () -> new ThreadSafeTree((StampedLock) null));
+
+        StampedLock lock = new StampedLock();
+        ThreadSafeTree tree = new ThreadSafeTree(lock);
+        tree.put("test".getBytes(), "first".getBytes());
+        assertEquals("first", new String(tree.get("test".getBytes())));
+
+        tree.put("test".getBytes(), "second".getBytes());
+        assertEquals("second", new String(tree.get("test".getBytes())));
+    }
+
+    @Test
+    void testForEachIsOrdered() {
+        ThreadSafeTree tree = new ThreadSafeTree();
+        for (int i = 99; i >= 0; i--) {
+            tree.put(String.format("key %02d", i).getBytes(), "test".getBytes());
+        }
+
+        List<String> visited = new ArrayList<>();
+        tree.forEach((key, value) -> visited.add(new String(key)));
+
+        assertEquals(100, visited.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(String.format("key %02d", i), visited.get(i));
+        }
+    }
+
+    @Test
+    void testRemove() {
+        ThreadSafeTree tree = new ThreadSafeTree();
+        assertNull(tree.remove("random".getBytes()));
+        assertNull(tree.remove(null));
+
+        tree.put("test".getBytes(), "first".getBytes());
+        tree.put("test2".getBytes(), "second".getBytes());
+        assertEquals("first", new String(tree.remove("test".getBytes())));
+        assertNull(tree.get("test".getBytes()));
+        assertNull(tree.remove("test".getBytes()));
+        assertEquals("second", new String(tree.get("test2".getBytes())));
+
+        assertEquals("second", new String(tree.remove("test2".getBytes())));
+        assertNull(tree.get("test2".getBytes()));
+
+        tree.put("test".getBytes(), "again".getBytes());
+        assertEquals("again", new String(tree.get("test".getBytes())));
+    }
+
+    // Half of the threads remove the keys of the other half while those keep putting new ones.
+    @Test
+    void testConcurrentRemoves() throws InterruptedException {
+        ThreadSafeTree tree = new ThreadSafeTree();
+        int numThreads = 16;
+        int opsPerThread = 500;
+        for (int i = 0; i < numThreads; i += 2) {
+            for (int j = 0; j < opsPerThread; j++) {
+                tree.put(("thread: " + i + " key: " + j).getBytes(), "test".getBytes());
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        CountDownLatch startLatch = new CountDownLatch(1);
+        CountDownLatch doneLatch = new CountDownLatch(numThreads);
+        AtomicInteger removed = new AtomicInteger();
+
+        for (int i = 0; i < numThreads; i++) {
+            int threadId = i;
+            executor.submit(() -> {
+                try {
+                    startLatch.await();
+                    for (int j = 0; j < opsPerThread; j++) {
+                        if (threadId % 2 == 0) {
+                            if (tree.remove(("thread: " + threadId + " key: " + j).getBytes()) != null) {
+                                removed.incrementAndGet();
+                            }
+                        } else {
+                            tree.put(("thread: " + threadId + " key: " + j).getBytes(), "test".getBytes());
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    doneLatch.countDown();
+                }
+            });
+        }
+
+        startLatch.countDown();
+        doneLatch.await();
+        executor.shutdown();
+
+        assertEquals(numThreads / 2 * opsPerThread, removed.get());
+        for (int i = 0; i < numThreads; i++) {
+            for (int j = 0; j < opsPerThread; j++) {
+                byte[] value = tree.get(("thread: " + i + " key: " + j).getBytes());
+                if (i % 2 == 0) {
+                    assertNull(value);
+                } else {
+                    assertNotNull(value);
+                }
+            }
+        }
+    }
+
+    // Random puts and removes, checked against a TreeMap after every step.
+    @Test
+    void testRandomOperationsAgainstTreeMap() {
+        for (ThreadSafeTree tree : new ThreadSafeTree[]{new ThreadSafeTree(), ThreadSafeTree.withOptimisticReads()}) {
+            TreeMap<String, String> expected = new TreeMap<>();
+            Random random = new Random(42);
+            for (int i = 0; i < 20000; i++) {
+                String key = "key " + random.nextInt(500);
+                if (random.nextInt(3) == 0) {
+                    String old = expected.remove(key);
+                    byte[] removed = tree.remove(key.getBytes());
+                    assertEquals(old, removed == null ? null : new String(removed));
+                } else {
+                    expected.put(key, "value " + i);
+                    tree.put(key.getBytes(), ("value " + i).getBytes());
+                }
+            }
+
+            List<String> visited = new ArrayList<>();
+            tree.forEach((key, value) -> visited.add(new String(key) + "=" + new String(value)));
+            List<String> wanted = new ArrayList<>();
+            for (Map.Entry<String, String> entry : expected.entrySet()) {
+                wanted.add(entry.getKey() + "=" + entry.getValue());
+            }
+            assertEquals(wanted, visited);
+        }
+    }
+
+    @Test
+    void testAtomicUpdates() {
+        ThreadSafeTree tree = new ThreadSafeTree();
+        assertNull(tree.putIfAbsent("a".getBytes(), "first".getBytes()));
+        assertEquals("first", new String(tree.putIfAbsent("a".getBytes(), "second".getBytes())));
+        assertEquals("first", new String(tree.get("a".getBytes())));
+
+        assertFalse(tree.replace("a".getBytes(), "wrong".getBytes(), "second".getBytes()));
+        assertTrue(tree.replace("a".getBytes(), "first".getBytes(), "second".getBytes()));
+        assertEquals("second", new String(tree.get("a".getBytes())));
+        assertFalse(tree.replace("missing".getBytes(), "first".getBytes(), "second".getBytes()));
+        assertNull(tree.get("missing".getBytes()));
+
+        assertEquals("a=second!", new String(tree.compute("a".getBytes(),
+                (key, value) -> (new String(key) + "=" + new String(value) + "!").getBytes())));
+        assertNull(tree.compute("a".getBytes(), (key, value) -> null));
+        assertNull(tree.get("a".getBytes()));
+        assertNull(tree.compute("b".getBytes(), (key, value) -> null));
+
+        assertEquals("computed", new String(tree.computeIfAbsent("b".getBytes(), key -> "computed".getBytes())));
+        assertEquals("computed", new String(tree.computeIfAbsent("b".getBytes(), key -> {
+            throw new AssertionError("must not run");
+        })));
+        assertNull(tree.computeIfAbsent("c".getBytes(), key -> null));
+        assertNull(tree.get("c".getBytes()));
+
+        assertEquals("x", new String(tree.merge("c".getBytes(), "x".getBytes(), (old, value) -> {
+            throw new AssertionError("must not run");
+        })));
+        assertEquals("xy", new String(tree.merge("c".getBytes(), "y".getBytes(), ThreadSafeTreeTest::concat)));
+        assertNull(tree.merge("c".getBytes(), "z".getBytes(), (old, value) -> null));
+        assertNull(tree.get("c".getBytes()));
+        assertEquals(1, tree.size());
+
+        // A function that throws leaves the tree as it was.
+        assertThrows(IllegalStateException.class, () -> tree.compute("b".getBytes(), (key, value) -> {
+            throw new IllegalStateException();
+        }));
+        assertEquals("computed", new String(tree.get("b".getBytes())));
+        assertThrows(NullPointerException.class, () -> tree.putIfAbsent(null, "value".getBytes()));
+        assertThrows(NullPointerException.class, () -> tree.merge("b".getBytes(), "value".getBytes(), null));
+    }
+
+    // Counters updated with merge from many threads must not lose a single increment.
+    @Test
+    void testConcurrentMergeCounters() throws InterruptedException {
+        ThreadSafeTree tree = ThreadSafeTree.withOptimisticReads();
+        int numThreads = 8;
+        int incrementsPerThread = 2000;
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        CountDownLatch latch = new CountDownLatch(numThreads);
+
+        for (int i = 0; i < numThreads; i++) {
+            executor.submit(() -> {
+                try {
+                    for (int j = 0; j < incrementsPerThread; j++) {
+                        byte[] key = ("counter " + (j % 10)).getBytes();
+                        tree.merge(key, ByteBuffer.allocate(4).putInt(1).array(),
+                                (old, one) -> ByteBuffer.allocate(4).putInt(ByteBuffer.wrap(old).getInt() + 1).array());
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        executor.shutdown();
+
+        for (int j = 0; j < 10; j++) {
+            assertEquals(numThreads * incrementsPerThread / 10, ByteBuffer.wrap(tree.get(("counter " + j).getBytes())).getInt());
+        }
+    }
+
+    // Every navigation method, with and without a holder, for probes on, between and beyond the keys.
+    @Test
+    void testNavigation() {
+        for (ThreadSafeTree tree : new ThreadSafeTree[]{new ThreadSafeTree(), ThreadSafeTree.withOptimisticReads()}) {
+            assertNull(tree.firstEntry());
+            assertNull(tree.lastEntry());
+            assertNull(tree.floorEntry("key".getBytes()));
+
+            TreeMap<String, String> expected = new TreeMap<>();
+            for (int i = 10; i < 100; i += 10) {
+                tree.put(String.format("key %03d", i).getBytes(), ("value " + i).getBytes());
+                expected.put(String.format("key %03d", i), "value " + i);
+            }
+
+            ThreadSafeTree.EntryHolder holder = new ThreadSafeTree.EntryHolder();
+            for (int i = 0; i <= 100; i += 5) {
+                String probe = String.format("key %03d", i);
+                byte[] key = probe.getBytes();
+                assertNavigated(expected.floorEntry(probe), tree.floorEntry(key), tree.floorEntry(key, holder), holder);
+                assertNavigated(expected.ceilingEntry(probe), tree.ceilingEntry(key), tree.ceilingEntry(key, holder), holder);
+                assertNavigated(expected.higherEntry(probe), tree.higherEntry(key), tree.higherEntry(key, holder), holder);
+                assertNavigated(expected.lowerEntry(probe), tree.lowerEntry(key), tree.lowerEntry(key, holder), holder);
+            }
+            assertNavigated(expected.firstEntry(), tree.firstEntry(), tree.firstEntry(holder), holder);
+            assertNavigated(expected.lastEntry(), tree.lastEntry(), tree.lastEntry(holder), holder);
+            assertNull(tree.floorEntry(null));
+            assertFalse(tree.floorEntry(null, holder));
+        }
+    }
+
+    // Subtree sizes have to survive every way of changing the tree: a bulk build, single puts, finger inserts and removes.
+    @Test
+    void testOrderStatistics() {
+        List<Map.Entry<byte[], byte[]>> initial = new ArrayList<>();
+        for (int i = 0; i < 300; i += 3) {
+            initial.add(entry(String.format("key %03d", i), "initial"));
+        }
+        ThreadSafeTree tree = ThreadSafeTree.fromSorted(initial.iterator(), initial.size());
+        TreeMap<String, String> expected = new TreeMap<>();
+        for (Map.Entry<byte[], byte[]> entry : initial) {
+            expected.put(new String(entry.getKey()), "initial");
+        }
+
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            String key = String.format("key %03d", random.nextInt(300));
+            switch (random.nextInt(3)) {
+                case 0:
+                    tree.remove(key.getBytes());
+                    expected.remove(key);
+                    break;
+                case 1:
+                    tree.put(key.getBytes(), "single".getBytes());
+                    expected.put(key, "single");
+                    break;
+                default:
+                    List<Map.Entry<byte[], byte[]>> batch = new ArrayList<>();
+                    for (int j = random.nextInt(300); j < 300 && batch.size() < 10; j += 1 + random.nextInt(5)) {
+                        batch.add(entry(String.format("key %03d", j), "batch"));
+                        expected.put(String.format("key %03d", j), "batch");
+                    }
+                    tree.putAllSorted(batch);
+            }
+
+            assertEquals(expected.size(), tree.size());
+            String probe = String.format("key %03d", random.nextInt(310));
+            assertEquals(expected.headMap(probe).size(), tree.rank(probe.getBytes()));
+            assertEquals(expected.headMap(probe, true).size(), tree.rank((probe + " and more").getBytes()));
+            String upper = String.format("key %03d", random.nextInt(310));
+            int wanted = probe.compareTo(upper) < 0 ? expected.subMap(probe, upper).size() : 0;
+            assertEquals(wanted, tree.countRange(probe.getBytes(), upper.getBytes()));
+        }
+
+        int index = 0;
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            Map.Entry<byte[], byte[]> selected = tree.select(index++);
+            assertEquals(entry.getKey(), new String(selected.getKey()));
+            assertEquals(entry.getValue(), new String(selected.getValue()));
+        }
+        assertNull(tree.select(-1));
+        assertNull(tree.select(expected.size()));
+        assertEquals(expected.size(), tree.countRange(null, null));
+        assertEquals(expected.tailMap("key 150").size(), tree.countRange("key 150".getBytes(), null));
+        assertEquals(expected.headMap("key 150").size(), tree.countRange(null, "key 150".getBytes()));
+        assertEquals(0, new ThreadSafeTree().countRange(null, null));
+        assertEquals(0, new ThreadSafeTree().rank("key".getBytes()));
+    }
+
+    // Keys of every length around the cached 8-byte prefix, with signed bytes and shared prefixes,
+    // have to come out in Arrays.compare order.
+    @Test
+    void testOrderAcrossPrefixLengths() {
+        ThreadSafeTree tree = new ThreadSafeTree();
+        TreeMap<byte[], byte[]> expected = new TreeMap<>(Arrays::compare);
+        Random random = new Random(7);
+        byte[] alphabet = {-128, -1, 0, 1, 127};
+        for (int i = 0; i < 5000; i++) {
+            byte[] key = new byte[random.nextInt(12)];
+            for (int j = 0; j < key.length; j++) {
+                key[j] = alphabet[random.nextInt(alphabet.length)];
+            }
+            if (random.nextInt(4) == 0) {
+                byte[] old = expected.remove(key);
+                assertArrayEquals(old, tree.remove(key));
+            } else {
+                expected.put(key, key);
+                tree.put(key, key);
+            }
+        }
+
+        List<byte[]> visited = new ArrayList<>();
+        tree.forEach((key, value) -> visited.add(key));
+        assertEquals(expected.size(), visited.size());
+        int position = 0;
+        for (byte[] key : expected.keySet()) {
+            assertArrayEquals(key, visited.get(position++));
+            assertArrayEquals(key, tree.get(key));
+        }
+        Iterator<Map.Entry<byte[], byte[]>> range = tree.scan(new byte[]{0}, new byte[]{0, 0, 0, 0, 0, 0, 0, 0, 1});
+        for (byte[] key : expected.subMap(new byte[]{0}, new byte[]{0, 0, 0, 0, 0, 0, 0, 0, 1}).keySet()) {
+            assertArrayEquals(key, range.next().getKey());
+        }
+        assertFalse(range.hasNext());
+    }
+
+    @Test
+    void testUnsignedOrder() {
+        for (ThreadSafeTree tree : new ThreadSafeTree[]{new ThreadSafeTree(ThreadSafeTree.UNSIGNED),
+                new ThreadSafeTree(new StampedLock(), ThreadSafeTree.UNSIGNED)}) {
+            TreeMap<byte[], byte[]> expected = new TreeMap<>(Arrays::compareUnsigned);
+            Random random = new Random(11);
+            for (int i = 0; i < 5000; i++) {
+                byte[] key = new byte[random.nextInt(12)];
+                for (int j = 0; j < key.length; j++) {
+                    key[j] = (byte) (random.nextInt(3) * 127);
+                }
+                if (random.nextInt(4) == 0) {
+                    assertArrayEquals(expected.remove(key), tree.remove(key));
+                } else {
+                    expected.put(key, key);
+                    tree.put(key, key);
+                }
+            }
+
+            Iterator<Map.Entry<byte[], byte[]>> iterator = tree.scan(null, null);
+            for (byte[] key : expected.keySet()) {
+                assertArrayEquals(key, iterator.next().getKey());
+                assertArrayEquals(key, tree.get(key));
+            }
+            assertFalse(iterator.hasNext());
+        }
+
+        // 0x80 comes after 0x7F unsigned, but before it signed.
+        ThreadSafeTree tree = ThreadSafeTree.fromSorted(
+                List.of(entry("\u0001", "a"), new AbstractMap.SimpleImmutableEntry<>(new byte[]{(byte) 0x80}, "b".getBytes())).iterator(),
+                2, ThreadSafeTree.UNSIGNED);
+        assertEquals("b", new String(tree.get(new byte[]{(byte) 0x80})));
+        assertThrows(IllegalArgumentException.class, () -> ThreadSafeTree.fromSorted(
+                List.of(entry("\u0001", "a"), new AbstractMap.SimpleImmutableEntry<>(new byte[]{(byte) 0x80}, "b".getBytes())).iterator(), 2));
+
+        ThreadSafeTree fromStream = ThreadSafeTree.fromSorted(IntStream.range(0, 256)
+                .mapToObj(i -> new AbstractMap.SimpleImmutableEntry<>(new byte[]{(byte) i}, new byte[]{(byte) i})),
+                ThreadSafeTree.UNSIGNED);
+        assertSame(ThreadSafeTree.UNSIGNED, fromStream.comparator());
+        assertArrayEquals(new byte[]{(byte) 0x80}, fromStream.higherEntry(new byte[]{0x7f}).getKey());
+        assertThrows(IllegalArgumentException.class, () -> ThreadSafeTree.fromSorted(IntStream.range(0, 256)
+                .mapToObj(i -> new AbstractMap.SimpleImmutableEntry<>(new byte[]{(byte) i}, new byte[]{(byte) i}))));
+    }
+
+    @Test
+    void testCustomComparator() {
+        ThreadSafeTree tree = new ThreadSafeTree(ThreadSafeTree.SIGNED.reversed());
+        for (int i = 0; i < 100; i++) {
+            tree.put(String.format("key %03d", i).getBytes(), ("value " + i).getBytes());
+        }
+        tree.remove("key 050".getBytes());
+
+        List<String> visited = new ArrayList<>();
+        tree.forEach((key, value) -> visited.add(new String(key)));
+        assertEquals(99, visited.size());
+        assertEquals("key 099", visited.get(0));
+        assertEquals("key 000", visited.get(98));
+        assertEquals("value 7", new String(tree.get("key 007".getBytes())));
+        assertNull(tree.get("key 050".getBytes()));
+        assertEquals(9, count(tree.scan("key 059".getBytes(), "key 049".getBytes())));
+        assertThrows(IllegalArgumentException.class, () -> new ThreadSafeTree((Comparator<byte[]>) null));
+    }
+
+    // Buffer keys are compared in place, whatever their position, byte order or key order of the tree.
+    @Test
+    void testByteBufferKeys() {
+        for (ThreadSafeTree tree : new ThreadSafeTree[]{new ThreadSafeTree(), ThreadSafeTree.withOptimisticReads(),
+                new ThreadSafeTree(ThreadSafeTree.UNSIGNED), new ThreadSafeTree(ThreadSafeTree.SIGNED.reversed())}) {
+            Random random = new Random(3);
+            List<byte[]> keys = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                byte[] key = new byte[random.nextInt(14)];
+                random.nextBytes(key);
+                keys.add(key);
+                tree.put(key, ("value " + i).getBytes());
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64).order(ByteOrder.LITTLE_ENDIAN);
+            for (byte[] key : keys) {
+                buffer.clear();
+                buffer.position(3);
+                buffer.put(key);
+                buffer.flip();
+                buffer.position(3);
+                assertArrayEquals(tree.get(key), tree.get(buffer));
+                assertEquals(3, buffer.position());
+
+                byte[] missing = Arrays.copyOf(key, key.length + 1);
+                missing[key.length] = 42;
+                assertEquals(tree.get(missing), tree.get(ByteBuffer.wrap(missing)));
+            }
+
+            ByteBuffer out = ByteBuffer.allocate(16);
+            assertEquals("value 7".length(), tree.get(ByteBuffer.wrap(keys.get(7)), out));
+            assertEquals("value 7", new String(out.array(), 0, out.position()));
+            assertEquals(-1, tree.get(ByteBuffer.wrap(new byte[20]), out));
+            ByteBuffer tiny = ByteBuffer.allocate(2);
+            assertThrows(BufferOverflowException.class, () -> tree.get(ByteBuffer.wrap(keys.get(7)), tiny));
+            assertEquals(0, tiny.position());
+
+            ByteBuffer key = ByteBuffer.allocateDirect(8).put(keys.get(9), 0, Math.min(8, keys.get(9).length));
+            key.flip();
+            byte[] keyBytes = new byte[key.remaining()];
+            key.get(0, keyBytes);
+            tree.put(key, ByteBuffer.wrap("updated".getBytes()));
+            tree.put(ByteBuffer.wrap("new key".getBytes()), ByteBuffer.wrap("new value".getBytes()));
+            assertEquals("updated", new String(tree.get(keyBytes)));
+            assertEquals("new value", new String(tree.get("new key".getBytes())));
+
+            // Keys put through buffers have to land in their place in the order, just like ones put as arrays.
+            TreeMap<byte[], byte[]> expected = new TreeMap<>(tree.comparator());
+            tree.forEach(expected::put);
+            for (int i = 0; i < 500; i++) {
+                byte[] newKey = new byte[random.nextInt(14)];
+                random.nextBytes(newKey);
+                tree.put(ByteBuffer.wrap(newKey), ByteBuffer.wrap(("buffer " + i).getBytes()));
+                expected.put(newKey, ("buffer " + i).getBytes());
+            }
+            assertEquals(expected.size(), tree.size());
+            Iterator<Map.Entry<byte[], byte[]>> iterator = tree.scan(null, null);
+            for (Map.Entry<byte[], byte[]> entry : expected.entrySet()) {
+                Map.Entry<byte[], byte[]> actual = iterator.next();
+                assertArrayEquals(entry.getKey(), actual.getKey());
+                assertArrayEquals(entry.getValue(), actual.getValue());
+            }
+            assertFalse(iterator.hasNext());
+        }
+    }
+
+    @Test
+    void testScan() {
+        ThreadSafeTree tree = new ThreadSafeTree();
+        for (int i = 0; i < 50; i++) {
+            tree.put(String.format("key %02d", i).getBytes(), ("value " + i).getBytes());
+        }
+
+        Iterator<Map.Entry<byte[], byte[]>> iterator = tree.scan("key 10".getBytes(), "key 20".getBytes());
+        for (int i = 10; i < 20; i++) {
+            assertTrue(iterator.hasNext());
+            Map.Entry<byte[], byte[]> entry = iterator.next();
+            assertEquals(String.format("key %02d", i), new String(entry.getKey()));
+            assertEquals("value " + i, new String(entry.getValue()));
+        }
+        assertFalse(iterator.hasNext());
+        assertThrows(NoSuchElementException.class, iterator::next);
+
+        // Bounds don't have to be keys of the tree, and null means unbounded.
+        assertEquals(50, count(tree.scan(null, null)));
+        assertEquals(5, count(tree.scan("key 44x".getBytes(), null)));
+        assertEquals(3, count(tree.scan(null, "key 02x".getBytes())));
+        assertEquals(0, count(tree.scan("key 30".getBytes(), "key 30".getBytes())));
+        assertEquals(0, count(new ThreadSafeTree().scan(null, null)));
+    }
+
+    // Once created, a scan must not see any writes that happen while it is being consumed.
+    @Test
+    void testScanIsPointInTime() {
+        ThreadSafeTree tree = ThreadSafeTree.withOptimisticReads();
+        for (int i = 0; i < 10; i++) {
+            tree.put(("key " + i).getBytes(), "old".getBytes());
+        }
+
+        Iterator<Map.Entry<byte[], byte[]>> iterator = tree.scan(null, null);
+        tree.remove("key 5".getBytes());
+        tree.put("key 3".getBytes(), "new".getBytes());
+        tree.put("key 55".getBytes(), "new".getBytes());
+
+        List<String> visited = new ArrayList<>();
+        while (iterator.hasNext()) {
+            Map.Entry<byte[], byte[]> entry = iterator.next();
+            visited.add(new String(entry.getKey()) + "=" + new String(entry.getValue()));
+        }
+        List<String> wanted = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            wanted.add("key " + i + "=old");
+        }
+        assertEquals(wanted, visited);
+    }
+
+    // A scan over many chunks lets go of the lock in between, so a writer on another thread gets through while it
+    // is open. Still it must return exactly the pairs from when it was opened: old values of updated keys,
+    // removed keys, no inserted ones, also when a key changes several times or gets removed and put back.
+    @Test
+    void testLongScanIsPointInTime() throws Exception {
+        ThreadSafeTree tree = ThreadSafeTree.withOptimisticReads();
+        TreeMap<String, String> expected = new TreeMap<>();
+        for (int i = 0; i < 3000; i++) {
+            tree.put(String.format("key %04d", i).getBytes(), "old".getBytes());
+            if (i < 2900) {
+                expected.put(String.format("key %04d", i), "old");
+            }
+        }
+
+        Iterator<Map.Entry<byte[], byte[]>> iterator = tree.scan(null, "key 2900".getBytes());
+        List<String> visited = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Map.Entry<byte[], byte[]> entry = iterator.next();
+            visited.add(new String(entry.getKey()) + "=" + new String(entry.getValue()));
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.submit(() -> {
+            for (int i = 0; i < 3000; i += 3) {
+                tree.put(String.format("key %04d", i).getBytes(), "new".getBytes());
+                tree.put(String.format("key %04d", i).getBytes(), "newer".getBytes());
+                tree.remove(String.format("key %04d", i + 1).getBytes());
+                tree.put(String.format("key %04dx", i).getBytes(), "new".getBytes());
+            }
+            tree.remove("key 2000".getBytes());
+            tree.put("key 2000".getBytes(), "new".getBytes());
+            tree.put("key".getBytes(), "new".getBytes());
+        }).get(10, TimeUnit.SECONDS);
+        executor.shutdown();
+        while (iterator.hasNext()) {
+            Map.Entry<byte[], byte[]> entry = iterator.next();
+            visited.add(new String(entry.getKey()) + "=" + new String(entry.getValue()));
+        }
+
+        List<String> wanted = new ArrayList<>();
+        expected.forEach((key, value) -> wanted.add(key + "=" + value));
+        assertEquals(wanted, visited);
+        assertEquals("newer", new String(tree.get("key 0999".getBytes())));
+        assertNull(tree.get("key 1000".getBytes()));
+    }
+
+    // Writers move amounts between two keys in single batches, so every point-in-time view adds up to the same total,
+    // even one that spans many chunks collected while the writers keep going.
+    @Test
+    void testConcurrentScansSeeConsistentTotals() throws InterruptedException {
+        ThreadSafeTree tree = new ThreadSafeTree();
+        int accounts = 2000;
+        for (int i = 0; i < accounts; i++) {
+            tree.put(String.format("account %04d", i).getBytes(), ByteBuffer.allocate(4).putInt(100).array());
+        }
+
+        int numWriters = 2;
+        int numReaders = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(numWriters + numReaders);
+        CountDownLatch startLatch = new CountDownLatch(1);
+        CountDownLatch doneLatch = new CountDownLatch(numWriters + numReaders);
+        AtomicInteger failures = new AtomicInteger();
+
+        for (int i = 0; i < numWriters; i++) {
+            int threadId = i;
+            executor.submit(() -> {
+                try {
+                    startLatch.await();
+                    Random random = new Random(threadId);
+                    for (int j = 0; j < 5000; j++) {
+                        // Each writer owns half of the accounts, so a batch never overwrites another writer's transfer.
+                        byte[] from = String.format("account %04d", random.nextInt(accounts / 2) * 2 + threadId).getBytes();
+                        byte[] to = String.format("account %04d", random.nextInt(accounts / 2) * 2 + threadId).getBytes();
+                        if (Arrays.equals(from, to)) {
+                            continue;
+                        }
+                        int amount = random.nextInt(10);
+                        int fromBalance = ByteBuffer.wrap(tree.get(from)).getInt() - amount;
+                        int toBalance = ByteBuffer.wrap(tree.get(to)).getInt() + amount;
+                        tree.putAll(List.of(
+                                new AbstractMap.SimpleImmutableEntry<>(from, ByteBuffer.allocate(4).putInt(fromBalance).array()),
+                                new AbstractMap.SimpleImmutableEntry<>(to, ByteBuffer.allocate(4).putInt(toBalance).array())));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    doneLatch.countDown();
+                }
+            });
+        }
+        for (int i = 0; i < numReaders; i++) {
+            executor.submit(() -> {
+                try {
+                    startLatch.await();
+                    for (int round = 0; round < 20; round++) {
+                        long total = 0;
+                        int count = 0;
+                        Iterator<Map.Entry<byte[], byte[]>> iterator = tree.scan(null, null);
+                        while (iterator.hasNext()) {
+                            total += ByteBuffer.wrap(iterator.next().getValue()).getInt();
+                            count++;
+                        }
+                        if (total != 100L * accounts || count != accounts) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    doneLatch.countDown();
+                }
+            });
+        }
+
+        startLatch.countDown();
+        doneLatch.await();
+        executor.shutdown();
+
+        assertEquals(0, failures.get());
+        tree.put("account".getBytes(), new byte[4]);
+        assertEquals(0, tree.retainedPairs());
+    }
+
+    // The pairs kept for a scan are freed by the next write once the scan is closed or exhausted.
+    @Test
+    void testRetiredPairsAreFreed() {
+        ThreadSafeTree tree = new ThreadSafeTree();
+        for (int i = 0; i < 1000; i++) {
+            tree.put(String.format("key %04d", i).getBytes(), "old".getBytes());
+        }
+
+        // Without an open scan nothing is kept.
+        tree.put("key 0000".getBytes(), "new".getBytes());
+        assertEquals(0, tree.retainedPairs());
+
+        ThreadSafeTree.ScanIterator first = tree.scan(null, null);
+        ThreadSafeTree.ScanIterator second = tree.scan("key 0500".getBytes(), null);
+        for (int i = 0; i < 100; i++) {
+            tree.put(String.format("key %04d", i).getBytes(), "new".getBytes());
+        }
+        // A pair that was written after both scans were opened isn't kept again.
+        tree.put("key 0001".getBytes(), "newer".getBytes());
+        tree.remove("key 0002".getBytes());
+        assertEquals(100, tree.retainedPairs());
+
+        first.close();
+        first.close();
+        assertFalse(first.hasNext());
+        tree.put("key 0003".getBytes(), "newer".getBytes());
+        assertEquals(100, tree.retainedPairs());
+
+        assertEquals(500, count(second));
+        tree.put("key 0004".getBytes(), "newer".getBytes());
+        assertEquals(0, tree.retainedPairs());
+    }
+
+    // Scans running next to writers always have to come out sorted and contain the preloaded keys.
+    @Test
+    void testConcurrentScans() throws InterruptedException {
+        ThreadSafeTree tree = ThreadSafeTree.withOptimisticReads();
+        for (int i = 0; i < 500; i++) {
+            tree.put(("pre " + i).getBytes(), "test".getBytes());
+        }
+
+        int numThreads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        CountDownLatch startLatch = new CountDownLatch(1);
+        CountDownLatch doneLatch = new CountDownLatch(numThreads);
+        AtomicInteger failures = new AtomicInteger();
+
+        for (int i = 0; i < numThreads; i++) {
+            int threadId = i;
+            executor.submit(() -> {
+                try {
+                    startLatch.await();
+                    for (int j = 0; j < 200; j++) {
+                        if (threadId % 2 == 0) {
+                            tree.put(("thread: " + threadId + " key: " + j).getBytes(), "test".getBytes());
+                            tree.remove(("thread: " + threadId + " key: " + (j / 2)).getBytes());
+                        } else {
+                            byte[] previous = null;
+                            int preloaded = 0;
+                            Iterator<Map.Entry<byte[], byte[]>> iterator = tree.scan(null, null);
+                            while (iterator.hasNext()) {
+                                byte[] key = iterator.next().getKey();
+                                if (previous != null && Arrays.compare(previous, key) >= 0) {
+                                    failures.incrementAndGet();
+                                }
+                                if (new String(key).startsWith("pre ")) {
+                                    preloaded++;
+                                }
+                                previous = key;
+                            }
+                            if (preloaded != 500) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    doneLatch.countDown();
+                }
+            });
+        }
+
+        startLatch.countDown();
+        doneLatch.await();
+        executor.shutdown();
+
+        assertEquals(0, failures.get());
+    }
+
+    // Trees of every size up to a few levels have to be built correctly and stay usable afterwards.
+    @Test
+    void testFromSorted() {
+        for (int size = 0; size < 70; size++) {
+            List<Map.Entry<byte[], byte[]>> entries = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                entries.add(entry(String.format("key %03d", i * 2), "value " + i));
+            }
+            ThreadSafeTree tree = ThreadSafeTree.fromSorted(entries.iterator(), size);
+
+            assertEquals(size, count(tree.scan(null, null)));
+            for (int i = 0; i < size; i++) {
+                assertEquals("value " + i, new String(tree.get(String.format("key %03d", i * 2).getBytes())));
+            }
+
+            // Inserting in between and removing again has to keep working on the built tree.
+            for (int i = 0; i < size; i++) {
+                tree.put(String.format("key %03d", i * 2 + 1).getBytes(), "odd".getBytes());
+            }
+            for (int i = 0; i < size; i += 2) {
+                assertNotNull(tree.remove(String.format("key %03d", i * 2).getBytes()));
+            }
+            assertEquals(size + size / 2, count(tree.scan(null, null)));
+            assertEquals(size + size / 2, tree.size());
+        }
+
+        ThreadSafeTree fromStream = ThreadSafeTree.fromSorted(IntStream.range(0, 1000)
+                .mapToObj(i -> entry(String.format("key %04d", i), "test")));
+        assertEquals(1000, count(fromStream.scan(null, null)));
+        assertEquals("test", new String(fromStream.get("key 0999".getBytes())));
+    }
+
+    @Test
+    void testFromSortedRejectsBadInput() {
+        List<Map.Entry<byte[], byte[]>> unsorted = List.of(entry("b", "test"), entry("a", "test"));
+        assertThrows(IllegalArgumentException.class, () -> ThreadSafeTree.fromSorted(unsorted.iterator(), 2));
+
+        List<Map.Entry<byte[], byte[]>> duplicates = List.of(entry("a", "test"), entry("a", "test"));
+        assertThrows(IllegalArgumentException.class, () -> ThreadSafeTree.fromSorted(duplicates.iterator(), 2));
+
+        List<Map.Entry<byte[], byte[]>> sorted = List.of(entry("a", "test"), entry("b", "test"));
+        assertThrows(IllegalArgumentException.class, () -> ThreadSafeTree.fromSorted(sorted.iterator(), 3));
+        assertThrows(IllegalArgumentException.class, () -> ThreadSafeTree.fromSorted(sorted.iterator(), 1));
+        assertThrows(NullPointerException.class, () -> ThreadSafeTree.fromSorted(null, 0));
+    }
+
+    private static int count(Iterator<Map.Entry<byte[], byte[]>> iterator) {
+        int count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    void testPutAll() {
+        ThreadSafeTree tree = new ThreadSafeTree();
+        tree.put("b".getBytes(), "old".getBytes());
+
+        List<Map.Entry<byte[], byte[]>> batch = new ArrayList<>();
+        batch.add(entry("c", "third"));
+        batch.add(entry("a", "first"));
+        batch.add(entry("b", "second"));
+        tree.putAll(batch);
+
+        assertEquals("first", new String(tree.get("a".getBytes())));
+        assertEquals("second", new String(tree.get("b".getBytes())));
+        assertEquals("third", new String(tree.get("c".getBytes())));
+
+        // A single bad entry rejects the whole batch.
+        List<Map.Entry<byte[], byte[]>> bad = new ArrayList<>();
+        bad.add(entry("d", "fourth"));
+        bad.add(new AbstractMap.SimpleEntry<>("e".getBytes(), null));
+        assertThrows(NullPointerException.class, () -> tree.putAll(bad));
+        assertThrows(NullPointerException.class, () -> tree.putAllSorted(bad));
+        assertThrows(NullPointerException.class, () -> tree.putAll(null));
+        assertNull(tree.get("d".getBytes()));
+    }
+
+    // Sorted batches go in between existing keys, and an out of order entry must still land in the right place.
+    @Test
+    void testPutAllSorted() {
+        ThreadSafeTree tree = new ThreadSafeTree();
+        TreeMap<String, String> expected = new TreeMap<>();
+        for (int i = 0; i < 1000; i += 3) {
+            String key = String.format("key %04d", i);
+            tree.put(key.getBytes(), "old".getBytes());
+            expected.put(key, "old");
+        }
+
+        for (int round = 0; round < 3; round++) {
+            List<Map.Entry<byte[], byte[]>> batch = new ArrayList<>();
+            for (int i = round; i < 1000; i += 2) {
+                String key = String.format("key %04d", i);
+                batch.add(entry(key, "round " + round));
+                expected.put(key, "round " + round);
+            }
+            if (round == 2) {
+                batch.add(entry("key 0000x", "late"));
+                expected.put("key 0000x", "late");
+                batch.add(entry("key 9999", "last"));
+                expected.put("key 9999", "last");
+            }
+            tree.putAllSorted(batch);
+        }
+
+        List<String> visited = new ArrayList<>();
+        tree.forEach((key, value) -> visited.add(new String(key) + "=" + new String(value)));
+        List<String> wanted = new ArrayList<>();
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            wanted.add(entry.getKey() + "=" + entry.getValue());
+        }
+        assertEquals(wanted, visited);
+
+        ThreadSafeTree empty = new ThreadSafeTree();
+        empty.putAllSorted(Collections.emptyList());
+        assertEquals(0, count(empty.scan(null, null)));
+    }
+
+    @Test
+    void testConcurrentBatches() throws InterruptedException {
+        ThreadSafeTree tree = new ThreadSafeTree();
+        int numThreads = 16;
+        int batchesPerThread = 20;
+        int batchSize = 50;
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        CountDownLatch startLatch = new CountDownLatch(1);
+        CountDownLatch doneLatch = new CountDownLatch(numThreads);
+
+        for (int i = 0; i < numThreads; i++) {
+            int threadId = i;
+            executor.submit(() -> {
+                try {
+                    startLatch.await();
+                    for (int b = 0; b < batchesPerThread; b++) {
+                        List<Map.Entry<byte[], byte[]>> batch = new ArrayList<>();
+                        for (int j = 0; j < batchSize; j++) {
+                            batch.add(entry(String.format("thread: %02d key: %05d", threadId, b * batchSize + j), "test"));
+                        }
+                        if (b % 2 == 0) {
+                            tree.putAllSorted(batch);
+                        } else {
+                            tree.putAll(batch);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    doneLatch.countDown();
+                }
+            });
+        }
+
+        startLatch.countDown();
+        doneLatch.await();
+        executor.shutdown();
+
+        assertEquals(numThreads * batchesPerThread * batchSize, count(tree.scan(null, null)));
+    }
+
+    private static void assertNavigated(Map.Entry<String, String> expected, Map.Entry<byte[], byte[]> entry,
+                                        boolean found, ThreadSafeTree.EntryHolder holder) {
+        if (expected == null) {
+            assertNull(entry);
+            assertFalse(found);
+            assertNull(holder.key());
+            assertNull(holder.value());
+        } else {
+            assertEquals(expected.getKey(), new String(entry.getKey()));
+            assertEquals(expected.getValue(), new String(entry.getValue()));
+            assertTrue(found);
+            assertEquals(expected.getKey(), new String(holder.key()));
+            assertEquals(expected.getValue(), new String(holder.value()));
+        }
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static Map.Entry<byte[], byte[]> entry(String key, String value) {
+        return new AbstractMap.SimpleImmutableEntry<>(key.getBytes(), value.getBytes());
+    }
+}
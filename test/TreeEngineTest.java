@@ -0,0 +1,94 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Runs the SortedByteMap contract against every engine, so new engines are covered as soon as they are added.
+class TreeEngineTest {
+
+    @Test
+    void testConcurrentPuts() throws InterruptedException {
+        for (TreeEngine engine : TreeEngine.values()) {
+            SortedByteMap tree = engine.create();
+            int numThreads = 16;
+            int putsPerThread = 500;
+
+            ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+            CountDownLatch startLatch = new CountDownLatch(1);
+            CountDownLatch doneLatch = new CountDownLatch(numThreads);
+
+            for (int i = 0; i < numThreads; i++) {
+                int threadId = i;
+                executor.submit(() -> {
+                    try {
+                        startLatch.await();
+                        for (int j = 0; j < putsPerThread; j++) {
+                            String key = "thread: " + threadId + " key: " + j;
+                            tree.put(key.getBytes(), "test".getBytes());
+                            if (j % 3 == 0) {
+                                tree.remove(key.getBytes());
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        doneLatch.countDown();
+                    }
+                });
+            }
+
+            startLatch.countDown();
+            doneLatch.await();
+            executor.shutdown();
+
+            for (int i = 0; i < numThreads; i++) {
+                for (int j = 0; j < putsPerThread; j++) {
+                    byte[] value = tree.get(("thread: " + i + " key: " + j).getBytes());
+                    if (j % 3 == 0) {
+                        assertNull(value, engine.name());
+                    } else {
+                        assertNotNull(value, engine.name());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void testRandomOperationsAgainstTreeMap() {
+        for (TreeEngine engine : TreeEngine.values()) {
+            SortedByteMap tree = engine.create();
+            TreeMap<String, String> expected = new TreeMap<>();
+            Random random = new Random(42);
+            for (int i = 0; i < 20000; i++) {
+                String key = "key " + random.nextInt(500);
+                if (random.nextInt(3) == 0) {
+                    String old = expected.remove(key);
+                    byte[] removed = tree.remove(key.getBytes());
+                    assertEquals(old, removed == null ? null : new String(removed), engine.name());
+                } else {
+                    expected.put(key, "value " + i);
+                    tree.put(key.getBytes(), ("value " + i).getBytes());
+                }
+            }
+            for (int i = 0; i < 500; i++) {
+                byte[] value = tree.get(("key " + i).getBytes());
+                assertEquals(expected.get("key " + i), value == null ? null : new String(value), engine.name());
+            }
+        }
+    }
+
+    @Test
+    void testNullHandling() {
+        for (TreeEngine engine : TreeEngine.values()) {
+            SortedByteMap tree = engine.create();
+            assertNull(tree.get(null));
+            assertNull(tree.remove(null));
+            assertThrows(NullPointerException.class, () -> tree.put(null, "test".getBytes()));
+            assertThrows(NullPointerException.class, () -> tree.put("test".getBytes(), null));
+        }
+    }
+}
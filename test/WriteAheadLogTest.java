@@ -0,0 +1,250 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+class WriteAheadLogTest {
+
+    @Test
+    void testRecoverPutsAndRemoves() throws IOException {
+        Path path = Files.createTempFile("tree", ".wal");
+        try {
+            ThreadSafeTree tree = new ThreadSafeTree();
+            try (WriteAheadLog log = new WriteAheadLog(path, WriteAheadLog.SyncPolicy.EVERY_OP)) {
+                tree.setWriteAheadLog(log);
+                tree.put("a".getBytes(), "first".getBytes());
+                tree.put("b".getBytes(), "second".getBytes());
+                tree.put("a".getBytes(), "changed!".getBytes());
+                assertEquals("second", new String(tree.remove("b".getBytes())));
+                assertNull(tree.remove("missing".getBytes()));
+                tree.putAll(List.of(entry("c", "third"), entry("d", "fourth")));
+                tree.putAllSorted(List.of(entry("e", "fifth"), entry("f", "sixth")));
+            }
+
+            ThreadSafeTree recovered = WriteAheadLog.recover(path);
+            assertEquals("changed!", new String(recovered.get("a".getBytes())));
+            assertNull(recovered.get("b".getBytes()));
+            assertEquals("third", new String(recovered.get("c".getBytes())));
+            assertEquals("fourth", new String(recovered.get("d".getBytes())));
+            assertEquals("fifth", new String(recovered.get("e".getBytes())));
+            assertEquals("sixth", new String(recovered.get("f".getBytes())));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    // Atomic updates are logged with their outcome, as a put or a remove, and unchanged keys aren't logged at all.
+    @Test
+    void testRecoverAtomicUpdates() throws IOException {
+        Path path = Files.createTempFile("tree", ".wal");
+        try {
+            ThreadSafeTree tree = new ThreadSafeTree();
+            try (WriteAheadLog log = new WriteAheadLog(path, WriteAheadLog.SyncPolicy.EVERY_OP)) {
+                tree.setWriteAheadLog(log);
+                tree.putIfAbsent("a".getBytes(), "first".getBytes());
+                tree.putIfAbsent("a".getBytes(), "ignored".getBytes());
+                tree.replace("a".getBytes(), "first".getBytes(), "replaced".getBytes());
+                tree.computeIfAbsent("b".getBytes(), key -> "computed".getBytes());
+                tree.merge("c".getBytes(), "merged".getBytes(), (old, value) -> value);
+                tree.compute("c".getBytes(), (key, value) -> null);
+            }
+
+            ThreadSafeTree recovered = WriteAheadLog.recover(path);
+            assertEquals("replaced", new String(recovered.get("a".getBytes())));
+            assertEquals("computed", new String(recovered.get("b".getBytes())));
+            assertNull(recovered.get("c".getBytes()));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    // A crash in the middle of an append leaves a torn record, which must be ignored and then cut off.
+    @Test
+    void testTornTailIsCutOff() throws IOException {
+        Path path = Files.createTempFile("tree", ".wal");
+        try {
+            ThreadSafeTree tree = new ThreadSafeTree();
+            try (WriteAheadLog log = new WriteAheadLog(path, WriteAheadLog.SyncPolicy.NONE)) {
+                tree.setWriteAheadLog(log);
+                tree.put("a".getBytes(), "first".getBytes());
+                tree.put("b".getBytes(), "second".getBytes());
+            }
+            long validLength = Files.size(path);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(validLength - 3);
+            }
+
+            ThreadSafeTree recovered = WriteAheadLog.recover(path);
+            assertEquals("first", new String(recovered.get("a".getBytes())));
+            assertNull(recovered.get("b".getBytes()));
+
+            // Reopening cuts the torn record, so new records don't end up behind garbage.
+            try (WriteAheadLog log = new WriteAheadLog(path, WriteAheadLog.SyncPolicy.EVERY_OP)) {
+                recovered.setWriteAheadLog(log);
+                recovered.put("c".getBytes(), "third".getBytes());
+            }
+            ThreadSafeTree again = WriteAheadLog.recover(path);
+            assertEquals("first", new String(again.get("a".getBytes())));
+            assertEquals("third", new String(again.get("c".getBytes())));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test
+    void testCorruptedRecordEndsTheLog() throws IOException {
+        Path path = Files.createTempFile("tree", ".wal");
+        try {
+            ThreadSafeTree tree = new ThreadSafeTree();
+            try (WriteAheadLog log = new WriteAheadLog(path, WriteAheadLog.SyncPolicy.NONE)) {
+                tree.setWriteAheadLog(log);
+                tree.put("a".getBytes(), "first".getBytes());
+                tree.put("b".getBytes(), "second".getBytes());
+            }
+            byte[] bytes = Files.readAllBytes(path);
+            bytes[bytes.length - 1] ^= 1;
+            Files.write(path, bytes);
+
+            ThreadSafeTree recovered = WriteAheadLog.recover(path);
+            assertEquals("first", new String(recovered.get("a".getBytes())));
+            assertNull(recovered.get("b".getBytes()));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    // A log written by an unsigned tree has to be recovered in unsigned order, where 0x80 sorts after 0x7f.
+    @Test
+    void testRecoverWithKeyOrder() throws IOException {
+        Path path = Files.createTempFile("tree", ".wal");
+        try {
+            ThreadSafeTree tree = new ThreadSafeTree(ThreadSafeTree.UNSIGNED);
+            try (WriteAheadLog log = new WriteAheadLog(path, WriteAheadLog.SyncPolicy.NONE)) {
+                tree.setWriteAheadLog(log);
+                for (int i = 0; i < 256; i++) {
+                    tree.put(new byte[]{(byte) i}, new byte[]{(byte) i});
+                }
+                tree.remove(new byte[]{(byte) 0x90});
+            }
+
+            ThreadSafeTree recovered = WriteAheadLog.recover(path, ThreadSafeTree.UNSIGNED);
+            assertSame(ThreadSafeTree.UNSIGNED, recovered.comparator());
+            assertEquals(255, recovered.size());
+            assertArrayEquals(new byte[]{(byte) 0x80}, recovered.higherEntry(new byte[]{0x7f}).getKey());
+            assertArrayEquals(new byte[]{(byte) 0x91}, recovered.ceilingEntry(new byte[]{(byte) 0x90}).getKey());
+            assertArrayEquals(new byte[]{(byte) 0xff}, recovered.lastEntry().getKey());
+            assertEquals(128, recovered.rank(new byte[]{(byte) 0x80}));
+
+            assertSame(ThreadSafeTree.SIGNED, WriteAheadLog.recover(path).comparator());
+            assertThrows(IllegalArgumentException.class, () -> WriteAheadLog.recover(path, null));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    // Concurrent writers share fsyncs, but every single put still has to make it into the log.
+    @Test
+    void testConcurrentPutsWithGroupCommit() throws Exception {
+        Path path = Files.createTempFile("tree", ".wal");
+        try {
+            for (WriteAheadLog.SyncPolicy policy : WriteAheadLog.SyncPolicy.values()) {
+                Files.deleteIfExists(path);
+                ThreadSafeTree tree = ThreadSafeTree.withOptimisticReads();
+                int numThreads = 8;
+                int putsPerThread = 100;
+                try (WriteAheadLog log = new WriteAheadLog(path, policy, 5)) {
+                    tree.setWriteAheadLog(log);
+
+                    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+                    CountDownLatch startLatch = new CountDownLatch(1);
+                    CountDownLatch doneLatch = new CountDownLatch(numThreads);
+                    for (int i = 0; i < numThreads; i++) {
+                        int threadId = i;
+                        executor.submit(() -> {
+                            try {
+                                startLatch.await();
+                                for (int j = 0; j < putsPerThread; j++) {
+                                    tree.put(("thread: " + threadId + " key: " + j).getBytes(), "test".getBytes());
+                                }
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            } finally {
+                                doneLatch.countDown();
+                            }
+                        });
+                    }
+                    startLatch.countDown();
+                    doneLatch.await();
+                    executor.shutdown();
+                }
+
+                ThreadSafeTree recovered = WriteAheadLog.recover(path);
+                int foundKeys = 0;
+                for (int i = 0; i < numThreads; i++) {
+                    for (int j = 0; j < putsPerThread; j++) {
+                        if (recovered.get(("thread: " + i + " key: " + j).getBytes()) != null) {
+                            foundKeys++;
+                        }
+                    }
+                }
+                assertEquals(numThreads * putsPerThread, foundKeys, policy.name());
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    // 33 records of 64 MB add up to more than an int can hold. The batch has to be rejected with a clear exception
+    // before anything is logged or applied, instead of the size silently wrapping around.
+    @Test
+    void testOversizedBatchIsRejected() throws IOException {
+        Path path = Files.createTempFile("tree", ".wal");
+        try {
+            ThreadSafeTree tree = new ThreadSafeTree();
+            try (WriteAheadLog log = new WriteAheadLog(path, WriteAheadLog.SyncPolicy.NONE)) {
+                tree.setWriteAheadLog(log);
+                tree.put("a".getBytes(), "first".getBytes());
+
+                byte[] value = new byte[64 << 20];
+                List<Map.Entry<byte[], byte[]>> batch = new ArrayList<>();
+                for (int i = 0; i < 33; i++) {
+                    batch.add(new AbstractMap.SimpleImmutableEntry<>(("big " + i).getBytes(), value));
+                }
+                IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> tree.putAll(batch));
+                assertTrue(e.getMessage().contains("split the batch"));
+                assertNull(tree.get("big 0".getBytes()));
+
+                tree.put("b".getBytes(), "second".getBytes());
+            }
+
+            ThreadSafeTree recovered = WriteAheadLog.recover(path);
+            assertEquals(2, recovered.size());
+            assertEquals("second", new String(recovered.get("b".getBytes())));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test
+    void testInvalidArguments() {
+        Path path = Path.of("unused.wal");
+        assertThrows(IllegalArgumentException.class, () -> new WriteAheadLog(null, WriteAheadLog.SyncPolicy.NONE));
+        assertThrows(IllegalArgumentException.class, () -> new WriteAheadLog(path, null));
+        assertThrows(IllegalArgumentException.class, () -> new WriteAheadLog(path, WriteAheadLog.SyncPolicy.INTERVAL));
+        assertFalse(Files.exists(path));
+    }
+
+    private static Map.Entry<byte[], byte[]> entry(String key, String value) {
+        return new AbstractMap.SimpleImmutableEntry<>(key.getBytes(), value.getBytes());
+    }
+}